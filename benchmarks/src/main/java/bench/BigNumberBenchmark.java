@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Main programs whose numbers outgrow a long and go on as BigIntegers (factorial, fibonacci),
+ * run like InterpretBenchmark does. They have their own N, since their numbers get N digits
+ * or more: factorial at N = 100,000 already takes seconds per run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BigNumberBenchmark {
+
+    @Param({"factorial", "fibonacci"})
+    public String program;
+
+    @Param({"10", "1000", "10000"})
+    public int n;
+
+    @Param({"tree", "vm"})
+    public String engine;
+
+    private Object interpreter;
+    private Object bytecode;
+    private Object sink;
+
+    @Setup
+    public void setUp() {
+        String source = Programs.source(program, n);
+        List<?> tokens = Core.tokenize(source);
+        if (engine.equals("vm")) {
+            bytecode = Core.compileForVm(tokens, source);
+            sink = Core.nullSink();
+        } else {
+            interpreter = Core.newInterpreter(tokens, source);
+        }
+    }
+
+    @Benchmark
+    public void interpret() {
+        if (engine.equals("vm")) {
+            Core.run(Core.newVm(bytecode, sink));
+        } else {
+            Core.interpret(interpreter);
+        }
+    }
+}
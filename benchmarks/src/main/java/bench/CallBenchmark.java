@@ -0,0 +1,72 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a function call costs: each "...Calls" program against its "...Inline" twin
+ * (see Programs), on the tree interpreter and the VM. gcdCalls is tail recursion,
+ * squareCalls one small call per loop iteration.
+ *
+ * The tree interpreter compiles the inline loops with LoopJit but never loops with
+ * calls in them, so "tree-nojit" (LoopJit off) is the fair comparison of the call itself.
+ * A VM runs its program only once, so every vm run gets a new VM for the
+ * bytecode compiled in setUp().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+
+    @Param({"gcdCalls", "gcdInline", "squareCalls", "squareInline"})
+    public String program;
+
+    @Param({"100000"})
+    public int n;
+
+    @Param({"tree", "tree-nojit", "vm"})
+    public String engine;
+
+    private Object interpreter;
+    private Object bytecode;
+    private Object sink;
+
+    @Setup
+    public void setUp() {
+        String source = Programs.source(program, n);
+        List<?> tokens = Core.tokenize(source);
+        if (engine.equals("vm")) {
+            bytecode = Core.compileForVm(tokens, source);
+            sink = Core.nullSink();
+        } else {
+            interpreter = Core.newInterpreter(tokens, source);
+            if (engine.equals("tree-nojit")) {
+                Core.setJitThreshold(interpreter, 0);
+            }
+        }
+    }
+
+    @Benchmark
+    public void run() {
+        if (engine.equals("vm")) {
+            Core.run(Core.newVm(bytecode, sink));
+        } else {
+            Core.interpret(interpreter);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter construction, without lexing:
+ * - splitIntoIndentedLines: grouping tokens into indented lines
+ * - construct: the whole constructor (lines, parsing, optimizer passes)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstructionBenchmark {
+
+    @Param({"sumOfN", "primeCheck", "fibonacci"})
+    public String program;
+
+    @Param({"1", "100", "10000"})
+    public int copies;
+
+    private String source;
+    private List<?> tokens;
+    private Object tokenBuffer;
+
+    @Setup
+    public void setUp() {
+        source = Programs.repeated(program, 10, copies);
+        tokens = Core.tokenize(source);
+        tokenBuffer = Core.tokenizeToBuffer(source);
+    }
+
+    @Benchmark
+    public List<?> splitIntoIndentedLines() {
+        return Core.splitIntoIndentedLines(tokenBuffer, source);
+    }
+
+    @Benchmark
+    public Object construct() {
+        return Core.newInterpreter(tokens, source);
+    }
+}
@@ -0,0 +1,188 @@
+package bench;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * Core: access to the interpreter classes from the benchmarks.
+ *
+ * The interpreter lives in the default package, which Java code in a named package
+ * (and JMH requires one) can't import. So we look the pieces up once through
+ * method handles. They are static finals, so the JIT inlines the calls and the
+ * benchmarks measure the interpreter, not reflection.
+ */
+final class Core {
+    private static final MethodHandle NEW_LEXER;
+    private static final MethodHandle TOKENIZE;
+    private static final MethodHandle TOKENIZE_TO_BUFFER;
+    private static final MethodHandle TOKENIZE_PARALLEL;
+    private static final MethodHandle SPLIT_INTO_LINES;
+    private static final MethodHandle NEW_INTERPRETER;
+    private static final MethodHandle INTERPRET;
+    private static final MethodHandle INTERPRETER_SET_OUTPUT;
+    private static final MethodHandle INTERPRETER_SET_JIT_THRESHOLD;
+    private static final MethodHandle NEW_VM;
+    private static final MethodHandle NEW_VM_FROM_BYTECODE;
+    private static final MethodHandle VM_BYTECODE;
+    private static final MethodHandle VM_RUN;
+    private static final MethodHandle VM_SET_OUTPUT;
+    private static final MethodHandle NEW_BUFFERED_SINK;
+
+    static {
+        try {
+            Class<?> lexer = Class.forName("Lexer");
+            Class<?> tokenBuffer = Class.forName("TokenBuffer");
+            Class<?> interpreter = Class.forName("Interpreter");
+            Class<?> vm = Class.forName("VM");
+            Class<?> bytecode = Class.forName("Bytecode");
+            Class<?> outputSink = Class.forName("OutputSink");
+            Class<?> bufferedSink = Class.forName("BufferedOutputSink");
+
+            NEW_LEXER = lookup(lexer).findConstructor(lexer, MethodType.methodType(void.class, String.class));
+            TOKENIZE = lookup(lexer).findVirtual(lexer, "tokenize", MethodType.methodType(List.class));
+            TOKENIZE_TO_BUFFER = lookup(lexer).findVirtual(lexer, "tokenizeToBuffer", MethodType.methodType(tokenBuffer));
+            TOKENIZE_PARALLEL = lookup(lexer).findVirtual(lexer, "tokenizeParallel", MethodType.methodType(tokenBuffer));
+            SPLIT_INTO_LINES = lookup(interpreter).findStatic(interpreter, "splitIntoIndentedLines",
+                    MethodType.methodType(List.class, tokenBuffer, String.class));
+            NEW_INTERPRETER = lookup(interpreter).findConstructor(interpreter,
+                    MethodType.methodType(void.class, List.class, String.class));
+            INTERPRET = lookup(interpreter).findVirtual(interpreter, "interpret", MethodType.methodType(void.class));
+            INTERPRETER_SET_OUTPUT = lookup(interpreter).findVirtual(interpreter, "setOutput",
+                    MethodType.methodType(void.class, outputSink));
+            INTERPRETER_SET_JIT_THRESHOLD = lookup(interpreter).findVirtual(interpreter, "setJitThreshold",
+                    MethodType.methodType(void.class, int.class));
+            NEW_VM = lookup(vm).findConstructor(vm, MethodType.methodType(void.class, List.class, String.class));
+            NEW_VM_FROM_BYTECODE = lookup(vm).findConstructor(vm, MethodType.methodType(void.class, bytecode));
+            VM_BYTECODE = lookup(vm).findGetter(vm, "bytecode", bytecode);
+            VM_RUN = lookup(vm).findVirtual(vm, "run", MethodType.methodType(void.class));
+            VM_SET_OUTPUT = lookup(vm).findVirtual(vm, "setOutput", MethodType.methodType(void.class, outputSink));
+            NEW_BUFFERED_SINK = lookup(bufferedSink).findConstructor(bufferedSink,
+                    MethodType.methodType(void.class, OutputStream.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Core() {
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> target) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(target, MethodHandles.lookup());
+    }
+
+    /** new Lexer(source).tokenize() */
+    static List<?> tokenize(String source) {
+        try {
+            return (List<?>) TOKENIZE.invoke(NEW_LEXER.invoke(source));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** new Lexer(source).tokenizeToBuffer() */
+    static Object tokenizeToBuffer(String source) {
+        try {
+            return TOKENIZE_TO_BUFFER.invoke(NEW_LEXER.invoke(source));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** new Lexer(source).tokenizeParallel() */
+    static Object tokenizeParallel(String source) {
+        try {
+            return TOKENIZE_PARALLEL.invoke(NEW_LEXER.invoke(source));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Interpreter.splitIntoIndentedLines(buffer, source) */
+    static List<?> splitIntoIndentedLines(Object tokenBuffer, String source) {
+        try {
+            return (List<?>) SPLIT_INTO_LINES.invoke(tokenBuffer, source);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** new Interpreter(tokens, source), printing into nothing */
+    static Object newInterpreter(List<?> tokens, String source) {
+        try {
+            Object interpreter = NEW_INTERPRETER.invoke(tokens, source);
+            INTERPRETER_SET_OUTPUT.invoke(interpreter, NEW_BUFFERED_SINK.invoke(OutputStream.nullOutputStream()));
+            return interpreter;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** interpreter.setJitThreshold(threshold) */
+    static void setJitThreshold(Object interpreter, int threshold) {
+        try {
+            INTERPRETER_SET_JIT_THRESHOLD.invoke(interpreter, threshold);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** interpreter.interpret() */
+    static void interpret(Object interpreter) {
+        try {
+            INTERPRET.invoke(interpreter);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** new VM(tokens, source).bytecode: the compiled program, to run on fresh VMs */
+    static Object compileForVm(List<?> tokens, String source) {
+        try {
+            return VM_BYTECODE.invoke(NEW_VM.invoke(tokens, source));
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** new VM(bytecode), printing into 'sink' (from nullSink(), made once: its buffer is 64 KB) */
+    static Object newVm(Object bytecode, Object sink) {
+        try {
+            Object vm = NEW_VM_FROM_BYTECODE.invoke(bytecode);
+            VM_SET_OUTPUT.invoke(vm, sink);
+            return vm;
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** An output sink that prints into nothing */
+    static Object nullSink() {
+        try {
+            return NEW_BUFFERED_SINK.invoke(OutputStream.nullOutputStream());
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** vm.run() */
+    static void run(Object vm) {
+        try {
+            VM_RUN.invoke(vm);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running an already constructed program, on the tree interpreter or the VM.
+ * Every program sets its own variables first, so running the same interpreter
+ * again and again does the same work each time. A VM runs its program only once,
+ * so every vm run gets a new VM for the bytecode compiled in setUp() (that costs some
+ * microseconds, which shows at small n). Output goes nowhere.
+ * factorial and fibonacci turn into BigIntegers with millions of digits at these n,
+ * so they run in BigNumberBenchmark instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpretBenchmark {
+
+    @Param({"sumOfN", "gcd", "reverseNumber", "primeCheck", "multiplicationTable"})
+    public String program;
+
+    @Param({"10", "1000", "100000", "10000000"})
+    public int n;
+
+    @Param({"tree", "vm"})
+    public String engine;
+
+    private Object interpreter;
+    private Object bytecode;
+    private Object sink;
+
+    @Setup
+    public void setUp() {
+        String source = Programs.source(program, n);
+        List<?> tokens = Core.tokenize(source);
+        if (engine.equals("vm")) {
+            bytecode = Core.compileForVm(tokens, source);
+            sink = Core.nullSink();
+        } else {
+            interpreter = Core.newInterpreter(tokens, source);
+        }
+    }
+
+    @Benchmark
+    public void interpret() {
+        if (engine.equals("vm")) {
+            Core.run(Core.newVm(bytecode, sink));
+        } else {
+            Core.interpret(interpreter);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexing only: Lexer.tokenize() (Token objects) vs Lexer.tokenizeToBuffer()
+ * vs Lexer.tokenizeParallel() (which only splits sources of over a million chars,
+ * so only copies=100000 shows it).
+ * The source is one of the Main programs repeated 'copies' times.
+ * Besides ops/s, every benchmark reports "megabytes": lexing throughput in MB/s
+ * (the programs are plain ASCII, so one char is one byte).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    @Param({"sumOfN", "primeCheck", "fibonacci"})
+    public String program;
+
+    @Param({"1", "100", "10000", "100000"})
+    public int copies;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = Programs.repeated(program, 10, copies);
+    }
+
+    /** Source bytes lexed, per second (JMH divides by the iteration time) */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Benchmark
+    public List<?> tokenize(Bytes bytes) {
+        bytes.megabytes += source.length() / 1e6;
+        return Core.tokenize(source);
+    }
+
+    @Benchmark
+    public Object tokenizeToBuffer(Bytes bytes) {
+        bytes.megabytes += source.length() / 1e6;
+        return Core.tokenizeToBuffer(source);
+    }
+
+    @Benchmark
+    public Object tokenizeParallel(Bytes bytes) {
+        bytes.megabytes += source.length() / 1e6;
+        return Core.tokenizeParallel(source);
+    }
+}
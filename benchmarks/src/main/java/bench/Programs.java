@@ -0,0 +1,151 @@
+package bench;
+
+/**
+ * Programs: the snippets from Main, with their size turned into a parameter N.
+ * The "...Calls" programs do N function calls, each next to an "...Inline" twin
+ * doing the same work without them (see CallBenchmark).
+ */
+final class Programs {
+    private Programs() {
+    }
+
+    /**
+     * Source of a program by name, with N filled in.
+     */
+    static String source(String name, long n) {
+        switch (name) {
+            case "sumOfN":
+                return ""
+                        + "N = " + n + "\n"
+                        + "sum = 0\n"
+                        + "i = 1\n"
+                        + "while i <= N:\n"
+                        + "    sum = sum + i\n"
+                        + "    i = i + 1\n"
+                        + "print(sum)\n";
+            case "factorial":
+                return ""
+                        + "N = " + n + "\n"
+                        + "fact = 1\n"
+                        + "i = 1\n"
+                        + "while i <= N:\n"
+                        + "    fact = fact * i\n"
+                        + "    i = i + 1\n"
+                        + "print(fact)\n";
+            case "gcd":
+                return ""
+                        + "a = " + n + "\n"
+                        + "b = 18\n"
+                        + "while b != 0:\n"
+                        + "    temp = b\n"
+                        + "    b = a % b\n"
+                        + "    a = temp\n"
+                        + "print(a)\n";
+            case "reverseNumber":
+                return ""
+                        + "n = " + n + "\n"
+                        + "rev = 0\n"
+                        + "while n > 0:\n"
+                        + "    digit = n % 10\n"
+                        + "    rev = rev * 10 + digit\n"
+                        + "    n = n / 10\n"
+                        + "print(rev)\n";
+            case "primeCheck":
+                return ""
+                        + "N = " + n + "\n"
+                        + "i = 2\n"
+                        + "flag = 1\n"
+                        + "while i < N:\n"
+                        + "    if N % i == 0:\n"
+                        + "        flag = 0\n"
+                        + "    i = i + 1\n"
+                        + "if flag == 1:\n"
+                        + "    print(1)\n"
+                        + "else:\n"
+                        + "    print(0)\n";
+            case "multiplicationTable":
+                return ""
+                        + "N = 5\n"
+                        + "i = 1\n"
+                        + "while i <= " + n + ":\n"
+                        + "    print(N * i)\n"
+                        + "    i = i + 1\n";
+            case "fibonacci":
+                return ""
+                        + "N = " + n + "\n"
+                        + "if N == 0:\n"
+                        + "    print(0)\n"
+                        + "else:\n"
+                        + "    a = 0\n"
+                        + "    b = 1\n"
+                        + "    i = 2\n"
+                        + "    while i <= N:\n"
+                        + "        c = a + b\n"
+                        + "        a = b\n"
+                        + "        b = c\n"
+                        + "        i = i + 1\n"
+                        + "    print(b)\n";
+            case "gcdCalls":
+                return ""
+                        + "def gcd(a, b):\n"
+                        + "    if b == 0:\n"
+                        + "        return a\n"
+                        + "    return gcd(b, a % b)\n"
+                        + "k = 0\n"
+                        + "t = 0\n"
+                        + "while k < " + n + ":\n"
+                        + "    t = t + gcd(48 + k, 18)\n"
+                        + "    k = k + 1\n"
+                        + "print(t)\n";
+            case "gcdInline":
+                return ""
+                        + "k = 0\n"
+                        + "t = 0\n"
+                        + "while k < " + n + ":\n"
+                        + "    a = 48 + k\n"
+                        + "    b = 18\n"
+                        + "    while b != 0:\n"
+                        + "        temp = b\n"
+                        + "        b = a % b\n"
+                        + "        a = temp\n"
+                        + "    t = t + a\n"
+                        + "    k = k + 1\n"
+                        + "print(t)\n";
+            case "squareCalls":
+                return ""
+                        + "def square(x):\n"
+                        + "    sq = x * x\n"
+                        + "    return sq\n"
+                        + "k = 0\n"
+                        + "t = 0\n"
+                        + "while k < " + n + ":\n"
+                        + "    t = t + square(k % 1000)\n"
+                        + "    k = k + 1\n"
+                        + "print(t)\n";
+            case "squareInline":
+                return ""
+                        + "k = 0\n"
+                        + "t = 0\n"
+                        + "while k < " + n + ":\n"
+                        + "    x = k % 1000\n"
+                        + "    sq = x * x\n"
+                        + "    t = t + sq\n"
+                        + "    k = k + 1\n"
+                        + "print(t)\n";
+            default:
+                throw new IllegalArgumentException("Unknown program: " + name);
+        }
+    }
+
+    /**
+     * The program repeated 'copies' times, one after another (bigger input for the lexer).
+     */
+    static String repeated(String name, long n, int copies) {
+        String one = source(name, n);
+        StringBuilder sb = new StringBuilder(one.length() * copies);
+        for (int i = 0; i < copies; i++) {
+            sb.append(one);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,177 @@
+import java.math.BigInteger;
+
+/**
+ ArrayOps: the array built-ins that work on a whole array at once
+ (sum, max, fill, add, mul), shared by the Interpreter, the VM and LoopJit.
+ Also the errors array code throws, so every engine says the same thing.
+
+ Array elements are plain longs, never Numbers.BIG: storing a number that doesn't
+ fit (or a result that overflows) is an error, so reading a[i] never needs
+ a BigInteger. Only sum() can get too big, and then it's a normal big number.
+
+ When the JVM has the incubating Vector API (java --add-modules jdk.incubator.vector ...)
+ the operations run in VectorArrayOps, several elements per instruction;
+ without it they run the plain loops below. Both give exactly the same results and errors.
+ */
+final class ArrayOps {
+    // Arrays shorter than this aren't worth setting up vectors for
+    private static final int VECTOR_MIN_LENGTH = 32;
+
+    // Biggest array we make (the JVM can't quite do Integer.MAX_VALUE)
+    static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    static final boolean VECTORIZED = vectorApiAvailable();
+
+    private ArrayOps() {
+    }
+
+    // The Vector API is there (and has more than one lane), so VectorArrayOps can load
+    private static boolean vectorApiAvailable() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorArrayOps.LANES > 1;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    // ---------------------------------
+    // Bulk operations
+    // ---------------------------------
+
+    /**
+     The sum of all elements, or BIG if it doesn't fit in a long (then bigSum() has it).
+     Each element is added as its high and low 32 bits, in two longs that can't
+     overflow for any array length, so the answer is exact in whatever order we add.
+     */
+    static long sum(long[] array) {
+        if (VECTORIZED && array.length >= VECTOR_MIN_LENGTH) {
+            return VectorArrayOps.sum(array);
+        }
+        long high = 0;
+        long low = 0;
+        for (long value : array) {
+            high += value >> 32;
+            low += value & 0xFFFFFFFFL;
+        }
+        return combine(high, low);
+    }
+
+    // high * 2^32 + low as a value (BIG if it doesn't fit)
+    static long combine(long high, long low) {
+        high += low >>> 32;
+        low &= 0xFFFFFFFFL;
+        if (high < Integer.MIN_VALUE || high > Integer.MAX_VALUE) {
+            return Numbers.BIG;
+        }
+        return (high << 32) + low; // exactly Long.MIN_VALUE comes out as BIG too, as it should
+    }
+
+    // The sum as a BigInteger, for when sum() said BIG
+    static BigInteger bigSum(long[] array) {
+        BigInteger total = BigInteger.ZERO;
+        for (long value : array) {
+            total = total.add(BigInteger.valueOf(value));
+        }
+        return total;
+    }
+
+    /**
+     The biggest element. The array must not be empty.
+     */
+    static long max(long[] array) {
+        if (VECTORIZED && array.length >= VECTOR_MIN_LENGTH) {
+            return VectorArrayOps.max(array);
+        }
+        long max = array[0];
+        for (long value : array) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     Set every element to value (never BIG).
+     */
+    static void fill(long[] array, long value) {
+        if (VECTORIZED && array.length >= VECTOR_MIN_LENGTH) {
+            VectorArrayOps.fill(array, value);
+            return;
+        }
+        for (int i = 0; i < array.length; i++) {
+            array[i] = value;
+        }
+    }
+
+    /**
+     target[i] = target[i] + other[i] for every i (same lengths).
+     Returns -1, or the index of the first result that doesn't fit:
+     then everything before that index is done and nothing after it.
+     */
+    static int add(long[] target, long[] other) {
+        if (VECTORIZED && target.length >= VECTOR_MIN_LENGTH) {
+            return VectorArrayOps.add(target, other);
+        }
+        return add(target, other, 0, target.length);
+    }
+
+    // add() on the elements from..to-1, without vectors
+    static int add(long[] target, long[] other, int from, int to) {
+        for (int i = from; i < to; i++) {
+            long result = Numbers.add(target[i], other[i]);
+            if (result == Numbers.BIG) {
+                return i;
+            }
+            target[i] = result;
+        }
+        return -1;
+    }
+
+    /**
+     target[i] = target[i] * other[i] for every i, like add().
+     */
+    static int multiply(long[] target, long[] other) {
+        if (VECTORIZED && target.length >= VECTOR_MIN_LENGTH) {
+            return VectorArrayOps.multiply(target, other);
+        }
+        return multiply(target, other, 0, target.length);
+    }
+
+    static int multiply(long[] target, long[] other, int from, int to) {
+        for (int i = from; i < to; i++) {
+            long result = Numbers.multiply(target[i], other[i]);
+            if (result == Numbers.BIG) {
+                return i;
+            }
+            target[i] = result;
+        }
+        return -1;
+    }
+
+    // ---------------------------------
+    // Errors
+    // ---------------------------------
+
+    static RuntimeException outOfRange(String name, String index, int length) {
+        return new RuntimeException("Index " + index + " out of range for array " + name + " (length " + length + ").");
+    }
+
+    static RuntimeException tooBig(String name) {
+        return new RuntimeException("Number too big for an element of array " + name + ".");
+    }
+
+    static RuntimeException badSize(String size) {
+        return new RuntimeException("Bad array size: " + size + ".");
+    }
+
+    static RuntimeException differentLengths(String name, int length, String otherName, int otherLength) {
+        return new RuntimeException("Arrays " + name + " and " + otherName + " have different lengths ("
+                + length + " and " + otherLength + ").");
+    }
+
+    static RuntimeException empty(String function, String name) {
+        return new RuntimeException(function + "() of empty array " + name + ".");
+    }
+}
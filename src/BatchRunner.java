@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ BatchRunner: runs many script files at the same time.
+ Every script gets its own Interpreter (or VM) with its own variables,
+ so they share nothing and can run on any thread. Each one prints into
+ its own MemoryOutputSink; nothing is written to System.out while they run.
+
+ The results come back in the same order as the scripts were given,
+ no matter which one finished first, so the combined report is always the same.
+
+ With a time slice set, the scripts run on the VM through a Scheduler instead:
+ a few carrier threads take turns over all of them, so no script needs a thread
+ and a script that loops forever can't hold one up.
+ */
+public final class BatchRunner {
+
+    /**
+     What one script did: its output, its error (null if it ran fine) and how long it took.
+     */
+    public static final class Result {
+        public final Path script;
+        public final String output;
+        public final String error;
+        public final long nanos;
+
+        Result(Path script, String output, String error, long nanos) {
+            this.script = script;
+            this.output = output;
+            this.error = error;
+            this.nanos = nanos;
+        }
+    }
+
+    // 0 = one virtual thread per script, otherwise a pool of this many platform threads
+    private final int threads;
+    private final boolean useVm;
+
+    // Steps per turn when running on a Scheduler (0 = every script runs start to end),
+    // and how many steps a script gets in total there (0 = no limit)
+    private long sliceSteps = 0;
+    private long stepLimit = 0;
+
+    private InterpreterMetrics metrics; // null = not counted
+
+    /**
+     threads = 0 runs every script on its own virtual thread,
+     threads > 0 uses a fixed pool of that many threads.
+     useVm picks the bytecode VM instead of the tree interpreter.
+     */
+    public BatchRunner(int threads, boolean useVm) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must be >= 0, got " + threads);
+        }
+        this.threads = threads;
+        this.useVm = useVm;
+    }
+
+    /**
+     Run the scripts in turns of 'steps' steps (see Scheduler), on the VM and on
+     'threads' carrier threads (all cores when threads is 0). 0 switches it off again.
+     A script still running after 'stepLimit' steps fails (0 = no limit).
+     */
+    public void setTimeSlice(long steps, long stepLimit) {
+        if (steps < 0 || stepLimit < 0) {
+            throw new IllegalArgumentException("steps and stepLimit must be >= 0, got " + steps + ", " + stepLimit);
+        }
+        this.sliceSteps = steps;
+        this.stepLimit = stepLimit;
+    }
+
+    /**
+     Count every script's run in 'metrics' (see InterpreterMetrics), null to stop.
+     */
+    public void setMetrics(InterpreterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     Run all scripts and wait for them. Results are in the order of 'scripts'.
+     */
+    public List<Result> run(List<Path> scripts) throws InterruptedException {
+        if (sliceSteps > 0) {
+            return runSliced(scripts);
+        }
+        try (ExecutorService executor = (threads == 0)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(threads)) {
+            List<Future<Result>> futures = new ArrayList<>(scripts.size());
+            for (Path script : scripts) {
+                futures.add(executor.submit(() -> runOne(script)));
+            }
+            List<Result> results = new ArrayList<>(scripts.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // runOne catches what scripts throw, so this is an Error (out of memory etc.)
+                    throw new IllegalStateException("Batch worker failed", e.getCause());
+                }
+            }
+            return results;
+        }
+    }
+
+    // All scripts on a Scheduler; a script's time is from its submit to its end
+    private List<Result> runSliced(List<Path> scripts) throws InterruptedException {
+        try (Scheduler scheduler = new Scheduler(carriers(), sliceSteps, stepLimit)) {
+            List<CompletableFuture<Result>> futures = new ArrayList<>(scripts.size());
+            for (Path script : scripts) {
+                MemoryOutputSink out = new MemoryOutputSink();
+                long start = System.nanoTime();
+                VM vm;
+                try (TokenStream tokens = TokenStream.mapFile(script)) {
+                    vm = new VM(tokens);
+                } catch (IOException | RuntimeException e) {
+                    futures.add(CompletableFuture.completedFuture(
+                            new Result(script, "", e.getMessage(), System.nanoTime() - start)));
+                    continue;
+                }
+                vm.setOutput(out);
+                vm.setMetrics(metrics);
+                futures.add(scheduler.submit(vm).handle((ignored, error) -> new Result(script, out.toString(),
+                        error == null ? null : error.getMessage(), System.nanoTime() - start)));
+            }
+            List<Result> results = new ArrayList<>(scripts.size());
+            for (CompletableFuture<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Batch worker failed", e.getCause());
+                }
+            }
+            return results;
+        }
+    }
+
+    private int carriers() {
+        return (threads == 0) ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    // One script, start to end, on the current thread
+    private Result runOne(Path script) {
+        MemoryOutputSink out = new MemoryOutputSink();
+        String error = null;
+        long start = System.nanoTime();
+        try (TokenStream tokens = TokenStream.mapFile(script)) {
+            if (useVm) {
+                VM vm = new VM(tokens);
+                vm.setOutput(out);
+                vm.setMetrics(metrics);
+                vm.run();
+            } else {
+                Interpreter interpreter = new Interpreter(tokens);
+                interpreter.setOutput(out);
+                interpreter.setMetrics(metrics);
+                interpreter.interpret();
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e.getMessage();
+        }
+        return new Result(script, out.toString(), error, System.nanoTime() - start);
+    }
+
+    /**
+     The scripts to run for a list of paths: files as they are,
+     directories replaced by the *.py files in them (sorted by name).
+     */
+    public static List<Path> collectScripts(List<Path> paths) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    scripts.addAll(files
+                            .filter(f -> f.getFileName().toString().endsWith(".py") && Files.isRegularFile(f))
+                            .sorted()
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                scripts.add(path);
+            }
+        }
+        return scripts;
+    }
+
+    /**
+     The combined report: every script's output in order, then a summary line
+     with the wall-clock time and the time all scripts took together.
+     */
+    public void printReport(List<Result> results, long wallNanos, PrintStream ps) {
+        long totalNanos = 0;
+        int failed = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Result r : results) {
+            sb.append("===== ").append(r.script).append(" (").append(millis(r.nanos)).append(" ms) =====\n");
+            sb.append(r.output);
+            if (r.error != null) {
+                sb.append("Error: ").append(r.error).append('\n');
+                failed++;
+            }
+            totalNanos += r.nanos;
+        }
+        sb.append("===== ").append(results.size()).append(" scripts, ")
+                .append(failed).append(" failed, on ")
+                .append(sliceSteps > 0 ? carriers() + " carriers, " + sliceSteps + " steps per turn"
+                        : threads == 0 ? "virtual threads" : threads + " threads")
+                .append(" | wall ").append(millis(wallNanos)).append(" ms")
+                .append(", sum of scripts ").append(millis(totalNanos)).append(" ms =====\n");
+        ps.print(sb);
+        ps.flush();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1_000_000.0);
+    }
+}
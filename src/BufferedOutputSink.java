@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+
+/**
+ BufferedOutputSink: formats printed numbers directly into a byte buffer
+ and hands that to the OutputStream only when it's full or on flush().
+ Printing a value creates no objects and takes no locks.
+ */
+final class BufferedOutputSink implements OutputSink {
+    private static final int DEFAULT_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count = 0; // bytes waiting in buffer
+
+    BufferedOutputSink(OutputStream out) {
+        this(out, DEFAULT_SIZE);
+    }
+
+    BufferedOutputSink(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, MAX_LONG_CHARS + NEWLINE.length)];
+    }
+
+    @Override
+    public void printLong(long value) {
+        if (count + MAX_LONG_CHARS + NEWLINE.length > buffer.length) {
+            writeBuffer();
+        }
+        count = OutputSink.formatLong(buffer, count, value);
+    }
+
+    @Override
+    public void printBig(BigInteger value) {
+        byte[] line = OutputSink.formatBig(value);
+        if (count + line.length > buffer.length) {
+            writeBuffer();
+        }
+        if (line.length > buffer.length) {
+            // bigger than the whole buffer: straight to the stream
+            try {
+                out.write(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        System.arraycopy(line, 0, buffer, count, line.length);
+        count += line.length;
+    }
+
+    @Override
+    public void flush() {
+        writeBuffer();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Hand the buffered bytes to the stream
+    private void writeBuffer() {
+        if (count == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+}
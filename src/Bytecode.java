@@ -0,0 +1,264 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ Bytecode: a compiled program for the VM.
+ It is one flat int[] of instructions: an opcode followed by its operands (if any),
+ plus a few small tables the instructions point into.
+
+ Instructions (operands in brackets):
+   LOAD [slot]       push variable
+   STORE [slot]      pop into variable
+   CONST [value]     push a number (that fits in an int)
+   CONST_BIG [number]
+                     push numbers[number] (any other number)
+   ADD SUB MUL DIV MOD, EQ NE GT GE LT LE
+                     pop b, pop a, push (a op b)
+   JUMP [target]     go to target
+   JUMP_IF_ZERO [target]
+                     pop, go to target if it was 0
+   PRINT             pop and print
+   FAIL [message]    throw the error messages[message]
+   HALT              stop
+
+ Superinstructions (made from the optimizer's fused nodes, 'op' is one of ADD..LE):
+   INC [slot, delta]                  variable += delta            (delta: an int)
+   STORE_VV [op, a, b, slot]          variable = a op b            (a, b: slots)
+   STORE_VC [op, a, value, slot]      variable = a op value        (value: an int)
+   JUMP_UNLESS_VV [op, a, b, target]  go to target if (a op b) is 0
+   JUMP_UNLESS_VC [op, a, value, target]
+                                      go to target if (a op value) is 0
+
+ Closed-form loops:
+   CLOSED_LOOP [loop, target]         run closedLoops[loop]; if it worked go to target
+                                      (after the loop), else go on into the normal loop
+
+ Arrays ('array' is an array slot, see arrayNames; array values never go on the stack):
+   NEW_ARRAY [array]                  pop n, array = n zeros
+   ARRAY_OF [array, count]            pop 'count' values, array = them (first pushed first)
+   SHARE_ARRAY [array, from]          array = the array in slot 'from' (the same one)
+   LOAD_ELEMENT [array]               pop index, push array[index]
+   STORE_ELEMENT [array]              pop index, pop value, array[index] = value
+   LEN SUM MAX [array]                push len/sum/max of array
+   FILL [array]                       pop value, set every element to it
+   ADD_ARRAYS MUL_ARRAYS [array, other]
+                                      array[i] = array[i] +/* other[i] for every i
+
+ Functions (the code of each one comes after the script's HALT, see functions;
+ inside it LOAD, STORE etc. are about the slots of its own frame):
+   CALL [function, count]             pop 'count' arguments, run functions[function] in a new frame
+   TAIL_CALL [function, count]        the same, but in the current frame (for "return f(...)")
+   RETURN                             leave the function, its value stays on the stack
+   POP                                pop and forget (a call on a line of its own)
+
+ Values are longs that can become BigIntegers, see Numbers and VM.
+ */
+final class Bytecode {
+    static final int LOAD = 0;
+    static final int STORE = 1;
+    static final int CONST = 2;
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int DIV = 6;
+    static final int MOD = 7;
+    static final int EQ = 8;
+    static final int NE = 9;
+    static final int GT = 10;
+    static final int GE = 11;
+    static final int LT = 12;
+    static final int LE = 13;
+    static final int JUMP = 14;
+    static final int JUMP_IF_ZERO = 15;
+    static final int PRINT = 16;
+    static final int FAIL = 17;
+    static final int HALT = 18;
+    static final int INC = 19;
+    static final int STORE_VV = 20;
+    static final int STORE_VC = 21;
+    static final int JUMP_UNLESS_VV = 22;
+    static final int JUMP_UNLESS_VC = 23;
+    static final int CLOSED_LOOP = 24;
+    static final int CONST_BIG = 25;
+    static final int NEW_ARRAY = 26;
+    static final int ARRAY_OF = 27;
+    static final int SHARE_ARRAY = 28;
+    static final int LOAD_ELEMENT = 29;
+    static final int STORE_ELEMENT = 30;
+    static final int LEN = 31;
+    static final int SUM = 32;
+    static final int MAX = 33;
+    static final int FILL = 34;
+    static final int ADD_ARRAYS = 35;
+    static final int MUL_ARRAYS = 36;
+    static final int CALL = 37;
+    static final int TAIL_CALL = 38;
+    static final int RETURN = 39;
+    static final int POP = 40;
+
+    // Name of each opcode, by opcode number
+    private static final String[] NAMES = {
+            "LOAD", "STORE", "CONST", "ADD", "SUB", "MUL", "DIV", "MOD",
+            "EQ", "NE", "GT", "GE", "LT", "LE",
+            "JUMP", "JUMP_IF_ZERO", "PRINT", "FAIL", "HALT",
+            "INC", "STORE_VV", "STORE_VC", "JUMP_UNLESS_VV", "JUMP_UNLESS_VC",
+            "CLOSED_LOOP", "CONST_BIG",
+            "NEW_ARRAY", "ARRAY_OF", "SHARE_ARRAY", "LOAD_ELEMENT", "STORE_ELEMENT",
+            "LEN", "SUM", "MAX", "FILL", "ADD_ARRAYS", "MUL_ARRAYS",
+            "CALL", "TAIL_CALL", "RETURN", "POP"
+    };
+
+    /**
+     What the VM needs to know about a function (see Function), by Function.index.
+     */
+    static final class FunctionInfo {
+        final String name;
+        final int entry;          // pc of its first instruction, -1 if it has no def
+        final int paramCount;
+        final String[] slotNames; // its frame's slots, parameters first (empty if no def)
+
+        FunctionInfo(String name, int entry, int paramCount, String[] slotNames) {
+            this.name = name;
+            this.entry = entry;
+            this.paramCount = paramCount;
+            this.slotNames = slotNames;
+        }
+    }
+
+    final int[] code;          // the instructions
+    final String[] messages;   // error messages for FAIL
+    final BigInteger[] numbers; // numbers for CONST_BIG
+    final ClosedFormLoop[] closedLoops; // loops for CLOSED_LOOP
+    final String[] slotNames;  // slot number => var name (debugging only)
+    final String[] arrayNames; // array slot number => array name (also for error messages)
+    final FunctionInfo[] functions; // functions for CALL and TAIL_CALL
+    final int maxStack;        // deepest the operand stack can get (in the script or in one call)
+
+    Bytecode(int[] code, String[] messages, BigInteger[] numbers, ClosedFormLoop[] closedLoops,
+             String[] slotNames, String[] arrayNames, FunctionInfo[] functions, int maxStack) {
+        this.code = code;
+        this.messages = messages;
+        this.numbers = numbers;
+        this.closedLoops = closedLoops;
+        this.slotNames = slotNames;
+        this.arrayNames = arrayNames;
+        this.functions = functions;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     A 64-bit hash of the whole program (instructions, tables and variable names).
+     A Checkpoint remembers it, so it is only ever restored into the same program.
+     */
+    long fingerprint() {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (int word : code) {
+            hash = (hash ^ word) * 0x100000001b3L;
+        }
+        for (BigInteger number : numbers) {
+            hash = (hash ^ number.hashCode()) * 0x100000001b3L;
+        }
+        for (String name : slotNames) {
+            hash = (hash ^ name.hashCode()) * 0x100000001b3L;
+        }
+        for (String name : arrayNames) {
+            hash = (hash ^ name.hashCode()) * 0x100000001b3L;
+        }
+        for (String message : messages) {
+            hash = (hash ^ message.hashCode()) * 0x100000001b3L;
+        }
+        for (FunctionInfo function : functions) {
+            hash = (hash ^ function.name.hashCode()) * 0x100000001b3L;
+            hash = (hash ^ function.entry) * 0x100000001b3L;
+            for (String name : function.slotNames) {
+                hash = (hash ^ name.hashCode()) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    // How many operands follow an opcode
+    static int operandCount(int op) {
+        switch (op) {
+            case LOAD: case STORE: case CONST: case CONST_BIG:
+            case JUMP: case JUMP_IF_ZERO: case FAIL:
+            case NEW_ARRAY: case LOAD_ELEMENT: case STORE_ELEMENT: case LEN: case SUM: case MAX: case FILL:
+                return 1;
+            case INC: case CLOSED_LOOP:
+            case ARRAY_OF: case SHARE_ARRAY: case ADD_ARRAYS: case MUL_ARRAYS:
+            case CALL: case TAIL_CALL:
+                return 2;
+            case STORE_VV: case STORE_VC: case JUMP_UNLESS_VV: case JUMP_UNLESS_VC:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     Human readable listing, one instruction per line, e.g. "12: LOAD 0 (i)".
+     Each function's code starts with a "def name(params):" line.
+     */
+    String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        String[] slotNames = this.slotNames; // the names of the code we're in
+        int pc = 0;
+        while (pc < code.length) {
+            for (FunctionInfo function : functions) {
+                if (function.entry == pc) {
+                    slotNames = function.slotNames;
+                    sb.append("def ").append(function.name).append('(')
+                            .append(String.join(", ", Arrays.asList(slotNames).subList(0, function.paramCount)))
+                            .append("):\n");
+                }
+            }
+            int op = code[pc];
+            sb.append(pc).append(": ").append(NAMES[op]);
+            if (operandCount(op) == 1) {
+                int arg = code[pc + 1];
+                sb.append(' ').append(arg);
+                if (op == LOAD || op == STORE) {
+                    sb.append(" (").append(slotNames[arg]).append(')');
+                } else if (op == FAIL) {
+                    sb.append(" (").append(messages[arg]).append(')');
+                } else if (op == CONST_BIG) {
+                    sb.append(" (").append(numbers[arg]).append(')');
+                } else if (op >= NEW_ARRAY) {
+                    sb.append(" (").append(arrayNames[arg]).append(')');
+                }
+            } else if (op == ARRAY_OF) {
+                sb.append(' ').append(code[pc + 1]).append(' ').append(code[pc + 2])
+                        .append(" (").append(arrayNames[code[pc + 1]]).append(')');
+            } else if (op == SHARE_ARRAY || op == ADD_ARRAYS || op == MUL_ARRAYS) {
+                sb.append(' ').append(code[pc + 1]).append(' ').append(code[pc + 2])
+                        .append(" (").append(arrayNames[code[pc + 1]]).append(", ")
+                        .append(arrayNames[code[pc + 2]]).append(')');
+            } else if (op == CALL || op == TAIL_CALL) {
+                sb.append(' ').append(code[pc + 1]).append(' ').append(code[pc + 2])
+                        .append(" (").append(functions[code[pc + 1]].name).append(')');
+            } else if (op == CLOSED_LOOP) {
+                sb.append(' ').append(code[pc + 1]).append(' ').append(code[pc + 2]);
+            } else if (op == INC) {
+                sb.append(' ').append(code[pc + 1]).append(' ').append(code[pc + 2])
+                        .append(" (").append(slotNames[code[pc + 1]]).append(')');
+            } else if (operandCount(op) == 4) {
+                // op a b/value slot/target
+                sb.append(' ').append(NAMES[code[pc + 1]]);
+                for (int k = 2; k <= 4; k++) {
+                    sb.append(' ').append(code[pc + k]);
+                }
+                sb.append(" (").append(slotNames[code[pc + 2]]);
+                if (op == STORE_VV || op == JUMP_UNLESS_VV) {
+                    sb.append(", ").append(slotNames[code[pc + 3]]);
+                }
+                if (op == STORE_VV || op == STORE_VC) {
+                    sb.append(" -> ").append(slotNames[code[pc + 4]]);
+                }
+                sb.append(')');
+            }
+            sb.append('\n');
+            pc += 1 + operandCount(op);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,319 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ BytecodeCompiler: turns the statement tree from the Parser
+ into flat Bytecode for the VM.
+ The script comes first and ends with HALT; the functions follow it, one after another,
+ each ending with "return 0" for when its body runs off the end.
+ */
+class BytecodeCompiler {
+    private int[] code = new int[64];
+    private int size = 0; // how much of 'code' is used
+
+    private final List<String> messages = new ArrayList<>();
+    private final List<BigInteger> numbers = new ArrayList<>();
+    private final List<ClosedFormLoop> closedLoops = new ArrayList<>();
+
+    // Operand stack depth while compiling, and the deepest we have seen
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    /**
+     Parse, optimize and compile everything the Parser has.
+     */
+    static Bytecode compile(Parser parser, Optimizer optimizer) {
+        Events.Compile event = new Events.Compile();
+        event.begin();
+        Stmt.Block parsed = parser.parseProgram();
+        optimizer.optimizeFunctions(parser.newFunctions());
+        Stmt.Block program = optimizer.optimize(parsed);
+        Bytecode bytecode = compile(program, parser.getSlotNames(), parser.getArrayNames(), parser.getFunctions());
+        if (event.shouldCommit()) {
+            event.engine = "vm";
+            event.variables = bytecode.slotNames.length;
+            event.commit();
+        }
+        return bytecode;
+    }
+
+    /**
+     Compile a whole program. slotNames, arrayNames and functions come from the same Parser.
+     */
+    static Bytecode compile(Stmt.Block program, String[] slotNames, String[] arrayNames, Function[] functions) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        compiler.statement(program);
+        compiler.emit(Bytecode.HALT);
+        Bytecode.FunctionInfo[] infos = new Bytecode.FunctionInfo[functions.length];
+        for (Function function : functions) {
+            if (!function.isDefined()) {
+                infos[function.index] = new Bytecode.FunctionInfo(function.name, -1, 0, new String[0]);
+                continue;
+            }
+            // Every call starts with an empty stack of its own
+            infos[function.index] = new Bytecode.FunctionInfo(function.name, compiler.size, function.paramCount,
+                    function.slotNames);
+            compiler.depth = 0;
+            compiler.statement(function.body);
+            compiler.expression(new Expr.Num(0));
+            compiler.emit(Bytecode.RETURN);
+            compiler.pop(1);
+        }
+        int[] code = Arrays.copyOf(compiler.code, compiler.size);
+        return new Bytecode(code, compiler.messages.toArray(new String[0]), compiler.numbers.toArray(new BigInteger[0]),
+                compiler.closedLoops.toArray(new ClosedFormLoop[0]), slotNames, arrayNames, infos, compiler.maxDepth);
+    }
+
+    private void statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).body) {
+                statement(s);
+            }
+        } else if (stmt instanceof Stmt.Increment && isInt(((Stmt.Increment) stmt).delta)) {
+            Stmt.Increment increment = (Stmt.Increment) stmt;
+            emit(Bytecode.INC, increment.slot, (int) increment.delta);
+        } else if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            if (assign.value instanceof Expr.VarVar) {
+                Expr.VarVar value = (Expr.VarVar) assign.value;
+                emit(Bytecode.STORE_VV, opcodeFor(value.op), value.leftSlot, value.rightSlot, assign.slot);
+            } else if (assign.value instanceof Expr.VarNum && isInt(((Expr.VarNum) assign.value).number)) {
+                Expr.VarNum value = (Expr.VarNum) assign.value;
+                emit(Bytecode.STORE_VC, opcodeFor(value.op), value.leftSlot, (int) value.number, assign.slot);
+            } else {
+                expression(assign.value);
+                emit(Bytecode.STORE, assign.slot);
+                pop(1);
+            }
+        } else if (stmt instanceof Stmt.Print) {
+            expression(((Stmt.Print) stmt).value);
+            emit(Bytecode.PRINT);
+            pop(1);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            int toElse = jumpUnless(ifStmt.condition);
+            statement(ifStmt.then);
+            if (ifStmt.otherwise == null) {
+                patch(toElse);
+            } else {
+                int toEnd = emitJump(Bytecode.JUMP);
+                patch(toElse);
+                statement(ifStmt.otherwise);
+                patch(toEnd);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While whileStmt = (Stmt.While) stmt;
+            int skipLoop = -1;
+            if (stmt instanceof Stmt.CountedWhile) {
+                closedLoops.add(((Stmt.CountedWhile) stmt).closedForm);
+                emit(Bytecode.CLOSED_LOOP, closedLoops.size() - 1, -1);
+                skipLoop = size - 1;
+            }
+            int top = size;
+            int toEnd = jumpUnless(whileStmt.condition);
+            statement(whileStmt.body);
+            emit(Bytecode.JUMP, top);
+            patch(toEnd);
+            if (skipLoop >= 0) {
+                patch(skipLoop);
+            }
+        } else if (stmt instanceof Stmt.NewArray) {
+            expression(((Stmt.NewArray) stmt).size);
+            emit(Bytecode.NEW_ARRAY, ((Stmt.NewArray) stmt).arraySlot);
+            pop(1);
+        } else if (stmt instanceof Stmt.ArrayLiteral) {
+            Stmt.ArrayLiteral literal = (Stmt.ArrayLiteral) stmt;
+            for (Expr element : literal.elements) {
+                expression(element);
+            }
+            emit(Bytecode.ARRAY_OF, literal.arraySlot, literal.elements.length);
+            pop(literal.elements.length);
+        } else if (stmt instanceof Stmt.ShareArray) {
+            emit(Bytecode.SHARE_ARRAY, ((Stmt.ShareArray) stmt).arraySlot, ((Stmt.ShareArray) stmt).fromSlot);
+        } else if (stmt instanceof Stmt.StoreElement) {
+            Stmt.StoreElement store = (Stmt.StoreElement) stmt;
+            expression(store.value);
+            expression(store.index);
+            emit(Bytecode.STORE_ELEMENT, store.arraySlot);
+            pop(2);
+        } else if (stmt instanceof Stmt.Fill) {
+            expression(((Stmt.Fill) stmt).value);
+            emit(Bytecode.FILL, ((Stmt.Fill) stmt).arraySlot);
+            pop(1);
+        } else if (stmt instanceof Stmt.Combine) {
+            Stmt.Combine combine = (Stmt.Combine) stmt;
+            emit(combine.op == TokenType.PLUS ? Bytecode.ADD_ARRAYS : Bytecode.MUL_ARRAYS,
+                    combine.arraySlot, combine.otherSlot);
+        } else if (stmt instanceof Stmt.Call) {
+            expression(((Stmt.Call) stmt).call);
+            emit(Bytecode.POP);
+            pop(1);
+        } else if (stmt instanceof Stmt.Return) {
+            Stmt.Return ret = (Stmt.Return) stmt;
+            if (ret.tailCall != null) {
+                call(Bytecode.TAIL_CALL, ret.tailCall);
+            } else {
+                expression(ret.value);
+                emit(Bytecode.RETURN);
+                pop(1);
+            }
+        } else {
+            throw new IllegalStateException("Unknown statement: " + stmt);
+        }
+    }
+
+    /**
+     Evaluate a condition and jump if it's 0 (target to be patched).
+     Fused "var op var" / "var op number" conditions become one compare-and-branch.
+     Returns where to patch the target.
+     */
+    private int jumpUnless(Expr condition) {
+        if (condition instanceof Expr.VarVar) {
+            Expr.VarVar fused = (Expr.VarVar) condition;
+            emit(Bytecode.JUMP_UNLESS_VV, opcodeFor(fused.op), fused.leftSlot, fused.rightSlot, -1);
+            return size - 1;
+        } else if (condition instanceof Expr.VarNum && isInt(((Expr.VarNum) condition).number)) {
+            Expr.VarNum fused = (Expr.VarNum) condition;
+            emit(Bytecode.JUMP_UNLESS_VC, opcodeFor(fused.op), fused.leftSlot, (int) fused.number, -1);
+            return size - 1;
+        }
+        expression(condition);
+        int operand = emitJump(Bytecode.JUMP_IF_ZERO);
+        pop(1);
+        return operand;
+    }
+
+    private void expression(Expr expr) {
+        if (expr instanceof Expr.Num && isInt(((Expr.Num) expr).value)) {
+            emit(Bytecode.CONST, (int) ((Expr.Num) expr).value);
+            push();
+        } else if (expr instanceof Expr.Num) {
+            numbers.add(BigInteger.valueOf(((Expr.Num) expr).value));
+            emit(Bytecode.CONST_BIG, numbers.size() - 1);
+            push();
+        } else if (expr instanceof Expr.BigNum) {
+            numbers.add(((Expr.BigNum) expr).value);
+            emit(Bytecode.CONST_BIG, numbers.size() - 1);
+            push();
+        } else if (expr instanceof Expr.Var) {
+            emit(Bytecode.LOAD, ((Expr.Var) expr).slot);
+            push();
+        } else if (expr instanceof Expr.Fail) {
+            // never pushes anything, but pretend it does so the stack stays balanced
+            messages.add(((Expr.Fail) expr).message);
+            emit(Bytecode.FAIL, messages.size() - 1);
+            push();
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            expression(binary.left);
+            expression(binary.right);
+            emit(opcodeFor(binary.op));
+            pop(1);
+        } else if (expr instanceof Expr.Element) {
+            expression(((Expr.Element) expr).index);
+            emit(Bytecode.LOAD_ELEMENT, ((Expr.Element) expr).arraySlot);
+        } else if (expr instanceof Expr.ArrayCall) {
+            Expr.ArrayCall call = (Expr.ArrayCall) expr;
+            emit(call.function.equals("len") ? Bytecode.LEN : call.function.equals("sum") ? Bytecode.SUM : Bytecode.MAX,
+                    call.arraySlot);
+            push();
+        } else if (expr instanceof Expr.Call) {
+            call(Bytecode.CALL, (Expr.Call) expr);
+            push(); // the value it returns
+        } else {
+            throw new IllegalStateException("Unknown expression: " + expr);
+        }
+    }
+
+    // Push the arguments, then CALL or TAIL_CALL (which takes them off)
+    private void call(int op, Expr.Call call) {
+        for (Expr argument : call.arguments) {
+            expression(argument);
+        }
+        emit(op, call.function.index, call.arguments.length);
+        pop(call.arguments.length);
+    }
+
+    // Which instruction implements an operator token
+    private int opcodeFor(TokenType op) {
+        switch (op) {
+            case PLUS:  return Bytecode.ADD;
+            case MINUS: return Bytecode.SUB;
+            case STAR:  return Bytecode.MUL;
+            case SLASH: return Bytecode.DIV;
+            case MOD:   return Bytecode.MOD;
+            case EQEQ:  return Bytecode.EQ;
+            case NEQ:   return Bytecode.NE;
+            case GT:    return Bytecode.GT;
+            case GTE:   return Bytecode.GE;
+            case LT:    return Bytecode.LT;
+            case LTE:   return Bytecode.LE;
+            default:
+                throw new IllegalArgumentException("Not an operator: " + op);
+        }
+    }
+
+    // ---------------------------------
+    // Helpers
+    // ---------------------------------
+
+    // Numbers in the code array are ints; bigger ones go through the numbers table
+    private static boolean isInt(long value) {
+        return value == (int) value;
+    }
+
+    private void emit(int op) {
+        ensureRoom(1);
+        code[size++] = op;
+    }
+
+    private void emit(int op, int operand) {
+        ensureRoom(2);
+        code[size++] = op;
+        code[size++] = operand;
+    }
+
+    private void emit(int op, int a, int b) {
+        ensureRoom(3);
+        code[size++] = op;
+        code[size++] = a;
+        code[size++] = b;
+    }
+
+    private void emit(int op, int a, int b, int c, int d) {
+        ensureRoom(5);
+        code[size++] = op;
+        code[size++] = a;
+        code[size++] = b;
+        code[size++] = c;
+        code[size++] = d;
+    }
+
+    // Emit a jump with a target we don't know yet; returns where to patch it
+    private int emitJump(int op) {
+        emit(op, -1);
+        return size - 1;
+    }
+
+    // Point a jump emitted earlier at the current end of the code
+    private void patch(int operandIndex) {
+        code[operandIndex] = size;
+    }
+
+    private void ensureRoom(int n) {
+        if (size + n > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + n));
+        }
+    }
+
+    private void push() {
+        depth++;
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
+    private void pop(int n) {
+        depth -= n;
+    }
+}
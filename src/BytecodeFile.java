@@ -0,0 +1,171 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ BytecodeFile: compiled Bytecode saved to a file, so a script can run
+ without lexing, parsing, optimizing or compiling it again (and without its source).
+
+ The file is binary, big-endian:
+   int  magic "PYBC", int version
+   int  maxStack
+   int  number of code words, then the code words
+   the slot names, the array names, the FAIL messages: int count, then each as int length + UTF-8 bytes
+   the big numbers: int count, then each as int length + two's complement bytes
+   the closed-form loops: int count, then each one (see ClosedFormLoop.write)
+   the functions: int count, then each as its name, int entry, int parameter count
+   and its slot names (like above)
+
+ Loading memory-maps the file and copies the code out in one bulk get,
+ so loading costs about as much as reading the bytes. The code is not checked
+ the way the Parser checks a source, so only run files this compiler wrote.
+ */
+final class BytecodeFile {
+    private static final int MAGIC = 0x50594243; // "PYBC"
+    // Bump this whenever the format or the instruction set changes
+    private static final int VERSION = 3;
+
+    private BytecodeFile() {
+    }
+
+    /**
+     Compile a script file and save its bytecode to 'out'.
+     */
+    static void compile(Path script, Path out) throws IOException {
+        try (TokenStream tokens = TokenStream.mapFile(script)) {
+            write(BytecodeCompiler.compile(new Parser(tokens.lines()), new Optimizer()), out);
+        }
+    }
+
+    /**
+     Save bytecode to a file (written next to it first, then moved into place).
+     */
+    static void write(Bytecode bytecode, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(bytecode.maxStack);
+            data.writeInt(bytecode.code.length);
+            for (int word : bytecode.code) {
+                data.writeInt(word);
+            }
+            writeStrings(data, bytecode.slotNames);
+            writeStrings(data, bytecode.arrayNames);
+            writeStrings(data, bytecode.messages);
+            data.writeInt(bytecode.numbers.length);
+            for (BigInteger number : bytecode.numbers) {
+                byte[] twosComplement = number.toByteArray();
+                data.writeInt(twosComplement.length);
+                data.write(twosComplement);
+            }
+            data.writeInt(bytecode.closedLoops.length);
+            for (ClosedFormLoop loop : bytecode.closedLoops) {
+                loop.write(data);
+            }
+            data.writeInt(bytecode.functions.length);
+            for (Bytecode.FunctionInfo function : bytecode.functions) {
+                writeString(data, function.name);
+                data.writeInt(function.entry);
+                data.writeInt(function.paramCount);
+                writeStrings(data, function.slotNames);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     Load bytecode saved by write().
+     */
+    static Bytecode read(Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.remaining() < 8 || in.getInt() != MAGIC) {
+            throw new IOException("Not a bytecode file: " + file);
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Bytecode file " + file + " has version " + version
+                    + ", this interpreter reads version " + VERSION + " (compile the script again)");
+        }
+        try {
+            int maxStack = in.getInt();
+            int[] code = new int[in.getInt()];
+            in.asIntBuffer().get(code);
+            in.position(in.position() + 4 * code.length);
+            String[] slotNames = readStrings(in);
+            String[] arrayNames = readStrings(in);
+            String[] messages = readStrings(in);
+            BigInteger[] numbers = new BigInteger[in.getInt()];
+            for (int i = 0; i < numbers.length; i++) {
+                byte[] twosComplement = new byte[in.getInt()];
+                in.get(twosComplement);
+                numbers[i] = new BigInteger(twosComplement);
+            }
+            ClosedFormLoop[] closedLoops = new ClosedFormLoop[in.getInt()];
+            for (int i = 0; i < closedLoops.length; i++) {
+                closedLoops[i] = ClosedFormLoop.read(in);
+            }
+            Bytecode.FunctionInfo[] functions = new Bytecode.FunctionInfo[in.getInt()];
+            for (int i = 0; i < functions.length; i++) {
+                functions[i] = new Bytecode.FunctionInfo(readString(in), in.getInt(), in.getInt(), readStrings(in));
+            }
+            return new Bytecode(code, messages, numbers, closedLoops, slotNames, arrayNames, functions, maxStack);
+        } catch (RuntimeException e) {
+            // cut off, or a count/length that makes no sense
+            throw new IOException("Broken bytecode file: " + file, e);
+        }
+    }
+
+    /**
+     True if the file starts like a bytecode file (so Main can run it instead of lexing it).
+     */
+    static boolean isBytecodeFile(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(4);
+            return head.length == 4 && ByteBuffer.wrap(head).getInt() == MAGIC;
+        }
+    }
+
+    // ---------------------------------
+    // Helpers (also used by ClosedFormLoop)
+    // ---------------------------------
+
+    static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream data, String[] strings) throws IOException {
+        data.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(data, s);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        String[] strings = new String[in.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+}
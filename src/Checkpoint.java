@@ -0,0 +1,213 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ Checkpoint: saves a running VM to a file and puts it back later,
+ so a long script can go on after a crash instead of starting over.
+
+ Between two time slices (see VM.runFor) a VM is nothing but its pc, its operand
+ stack, its variables and the calls it's in, and that's all a checkpoint holds;
+ the program itself is compiled again from the source. The file is small and binary:
+
+   int  magic, int version
+   long fingerprint of the program (Bytecode.fingerprint)
+   int  pc, int sp, int number of slots
+   the slots: each a long, and if that's Numbers.BIG the BigInteger after it
+   (int length + its bytes)
+   int  call depth, then per call: int function, int return pc and its frame's slots
+   the sp stack entries (like the slots)
+   the arrays, one per array slot: int -1, int length and the elements, or the number
+   of an earlier array slot holding the same array (so "b = a" stays one array)
+
+ Writing goes to a temporary file that then replaces the old checkpoint in one move,
+ so a crash while saving still leaves the previous checkpoint. Restoring reads the
+ file through a memory mapping.
+
+ Output is flushed before every save, so after a restore nothing printed before
+ the checkpoint is printed again (only what came between the checkpoint and the crash).
+ */
+final class Checkpoint {
+    private static final int MAGIC = 0x50594B50; // "PYKP"
+    private static final int VERSION = 3;
+
+    // Save this often by default
+    static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    // How many steps run() hands the VM between looks at the clock
+    private static final long SLICE_STEPS = 1 << 16;
+
+    private Checkpoint() {
+    }
+
+    /**
+     Run the VM to the end, saving it to 'file' every 'intervalMillis'.
+     When the program finishes the checkpoint file is deleted; if it fails,
+     the last checkpoint stays.
+     */
+    static void run(VM vm, Path file, long intervalMillis) throws IOException {
+        long interval = intervalMillis * 1_000_000L;
+        long next = System.nanoTime() + interval;
+        while (!vm.runFor(SLICE_STEPS)) {
+            if (System.nanoTime() - next >= 0) {
+                save(vm, file);
+                next = System.nanoTime() + interval;
+            }
+        }
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     Write the VM's state to 'file' (replacing what was there).
+     Only call it between slices, never while the VM runs.
+     */
+    static void save(VM vm, Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 8 * (vm.slots.length + vm.sp));
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(vm.bytecode.fingerprint());
+        data.writeInt(vm.pc);
+        data.writeInt(vm.sp);
+        data.writeInt(vm.slots.length);
+        for (int i = 0; i < vm.slots.length; i++) {
+            writeValue(data, vm.slots[i], vm.bigSlots[i]);
+        }
+        data.writeInt(vm.depth);
+        for (int d = 1; d <= vm.depth; d++) {
+            data.writeInt(vm.callees[d]);
+            data.writeInt(vm.returnPcs[d]);
+            for (int i = 0; i < vm.bytecode.functions[vm.callees[d]].slotNames.length; i++) {
+                writeValue(data, vm.frames[d][i], vm.bigFrames[d][i]);
+            }
+        }
+        for (int i = 0; i < vm.sp; i++) {
+            writeValue(data, vm.stack[i], vm.bigStack[i]);
+        }
+        Map<long[], Integer> written = new IdentityHashMap<>();
+        for (int i = 0; i < vm.arrays.length; i++) {
+            Integer same = written.putIfAbsent(vm.arrays[i], i);
+            if (same != null) {
+                data.writeInt(same);
+            } else {
+                data.writeInt(-1);
+                data.writeInt(vm.arrays[i].length);
+                for (long element : vm.arrays[i]) {
+                    data.writeLong(element);
+                }
+            }
+        }
+        data.flush();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false); // on disk before it replaces the old one
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     Put the state saved in 'file' into 'vm', which has to be compiled from the
+     same source. The next runFor()/run() goes on where the saved VM was.
+     */
+    static void restore(VM vm, Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.remaining() < 28 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("Not a checkpoint file: " + file);
+        }
+        if (in.getLong() != vm.bytecode.fingerprint()) {
+            throw new IllegalArgumentException("Checkpoint " + file + " was saved by a different program");
+        }
+        int pc = in.getInt();
+        int sp = in.getInt();
+        int slotCount = in.getInt();
+        if (slotCount != vm.slots.length || sp < 0 || pc < 0 || pc >= vm.bytecode.code.length) {
+            throw new IOException("Broken checkpoint file: " + file);
+        }
+        int depth;
+        try {
+            for (int i = 0; i < slotCount; i++) {
+                vm.slots[i] = readValue(in, vm.bigSlots, i);
+            }
+            depth = Objects.checkIndex(in.getInt(), Function.MAX_DEPTH + 1);
+            for (int d = 1; d <= depth; d++) {
+                int callee = in.getInt();
+                Bytecode.FunctionInfo function = vm.bytecode.functions[callee];
+                int returnPc = Objects.checkIndex(in.getInt(), vm.bytecode.code.length);
+                vm.grow(d, 0);
+                vm.callees[d] = callee;
+                vm.returnPcs[d] = returnPc;
+                long[] frame = vm.frames[d];
+                if (frame == null || frame.length < function.slotNames.length) {
+                    frame = vm.frames[d] = new long[Math.max(function.slotNames.length, 8)];
+                    vm.bigFrames[d] = new BigInteger[frame.length];
+                }
+                for (int i = 0; i < function.slotNames.length; i++) {
+                    frame[i] = readValue(in, vm.bigFrames[d], i);
+                }
+            }
+            // Every call's part of the stack is at most maxStack
+            vm.grow(depth, Objects.checkIndex(sp, (depth + 1) * Math.max(vm.bytecode.maxStack, 1) + 1));
+            for (int i = 0; i < sp; i++) {
+                vm.stack[i] = readValue(in, vm.bigStack, i);
+            }
+            for (int i = 0; i < vm.arrays.length; i++) {
+                int same = in.getInt();
+                if (same >= 0) {
+                    vm.arrays[i] = vm.arrays[Objects.checkIndex(same, i)]; // always an earlier one
+                    continue;
+                }
+                long[] array = new long[in.getInt()];
+                in.asLongBuffer().get(array);
+                in.position(in.position() + 8 * array.length);
+                vm.arrays[i] = array;
+            }
+        } catch (RuntimeException e) {
+            // ran off the end of the file, or a broken number
+            throw new IOException("Broken checkpoint file: " + file, e);
+        }
+        vm.pc = pc;
+        vm.sp = sp;
+        vm.depth = depth;
+        vm.done = false;
+    }
+
+    private static void writeValue(DataOutputStream data, long value, BigInteger big) throws IOException {
+        data.writeLong(value);
+        if (value == Numbers.BIG) {
+            byte[] twosComplement = big.toByteArray();
+            data.writeInt(twosComplement.length);
+            data.write(twosComplement);
+        }
+    }
+
+    // One value; a BigInteger goes into bigs[index] (which is cleared otherwise)
+    private static long readValue(ByteBuffer in, BigInteger[] bigs, int index) {
+        long value = in.getLong();
+        bigs[index] = null;
+        if (value == Numbers.BIG) {
+            byte[] twosComplement = new byte[in.getInt()];
+            in.get(twosComplement);
+            bigs[index] = new BigInteger(twosComplement);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,360 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ ClosedFormLoop: runs a simple counted loop without iterating.
+
+ It handles loops like
+   while i <= N:
+       sum = sum + i
+       i = i + 1
+ where
+ - the condition compares one variable i (the counter) with a number or a variable
+   the loop never assigns,
+ - i changes by the same non-zero number every iteration (i = i + c / i = i - c, once),
+ - every other statement is an assignment, once per variable, of the form
+   x = x + t, x = t + x, x = x - t or x = t, where t is i, a number, or a variable
+   the loop never assigns.
+ Then the number of iterations and every final value follow from a formula.
+ The formula is worked out with BigIntegers, so the results are exact
+ and become big numbers exactly when iterating would have made them big (see Numbers).
+
+ If the counter or the bound is already a big number, or the loop would never end,
+ run() returns false and leaves the variables alone, so the caller runs the loop normally.
+ */
+final class ClosedFormLoop {
+
+    // What the right-hand side term t is
+    private static final int TERM_COUNTER = 0; // i
+    private static final int TERM_NUMBER = 1;  // a number
+    private static final int TERM_VAR = 2;     // a variable the loop doesn't assign
+
+    /**
+     One "x = ..." statement of the loop body.
+     */
+    private static final class Update {
+        int target;
+        boolean accumulate; // x = x +/- t (true) or x = t (false)
+        int sign;           // +1 or -1 for accumulate
+        int termKind;
+        long term;          // the number (TERM_NUMBER) or slot (TERM_VAR)
+        boolean afterStep;  // comes after "i = i + c" in the body, so it sees i + c
+    }
+
+    private final int counter;     // slot of i
+    private final long step;       // c in i = i + c
+    private final TokenType compare; // the condition, as "i compare bound"
+    private final boolean boundIsVar;
+    private final long bound;      // number or slot
+    private final Update[] updates;
+
+    private ClosedFormLoop(int counter, long step, TokenType compare, boolean boundIsVar, long bound, Update[] updates) {
+        this.counter = counter;
+        this.step = step;
+        this.compare = compare;
+        this.boundIsVar = boundIsVar;
+        this.bound = bound;
+        this.updates = updates;
+    }
+
+    // How many variables the loop updates (for Program.estimatedBytes)
+    int updateCount() {
+        return updates.length;
+    }
+
+    // ---------------------------------
+    // Recognizing the loop
+    // ---------------------------------
+
+    /**
+     The closed form of a while-loop, or null if it isn't a loop we can handle.
+     */
+    static ClosedFormLoop analyze(Stmt.While loop) {
+        List<Integer> assigned = new ArrayList<>();
+        Optimizer.assignedSlots(loop.body, assigned);
+
+        // Condition: var op (number | unassigned var), or the other way around
+        if (!(loop.condition instanceof Expr.Binary)) {
+            return null;
+        }
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        TokenType compare = condition.op;
+        Expr counterSide = condition.left;
+        Expr boundSide = condition.right;
+        if (!(counterSide instanceof Expr.Var && assigned.contains(((Expr.Var) counterSide).slot))) {
+            counterSide = condition.right;
+            boundSide = condition.left;
+            compare = flip(compare);
+        }
+        if (compare == null || !(counterSide instanceof Expr.Var)) {
+            return null;
+        }
+        int counter = ((Expr.Var) counterSide).slot;
+        boolean boundIsVar;
+        long bound;
+        if (boundSide instanceof Expr.Num) {
+            boundIsVar = false;
+            bound = ((Expr.Num) boundSide).value;
+        } else if (boundSide instanceof Expr.Var && !assigned.contains(((Expr.Var) boundSide).slot)) {
+            boundIsVar = true;
+            bound = ((Expr.Var) boundSide).slot;
+        } else {
+            return null;
+        }
+
+        // Body: only assignments, each variable once, one of them the counter step
+        Long step = null;
+        List<Update> updates = new ArrayList<>();
+        List<Integer> seen = new ArrayList<>();
+        for (Stmt stmt : loop.body.body) {
+            if (!(stmt instanceof Stmt.Assign)) {
+                return null;
+            }
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            if (seen.contains(assign.slot)) {
+                return null;
+            }
+            seen.add(assign.slot);
+            if (assign.slot == counter) {
+                step = counterStep(assign);
+                if (step == null) {
+                    return null;
+                }
+            } else {
+                Update update = update(assign, counter, assigned);
+                if (update == null) {
+                    return null;
+                }
+                update.afterStep = (step != null);
+                updates.add(update);
+            }
+        }
+        if (step == null) {
+            return null;
+        }
+        return new ClosedFormLoop(counter, step, compare, boundIsVar, bound, updates.toArray(new Update[0]));
+    }
+
+    // c for "i = i + c" / "i = i - c" (c != 0), or null
+    private static Long counterStep(Stmt.Assign assign) {
+        if (!(assign.value instanceof Expr.Binary)) {
+            return null;
+        }
+        Expr.Binary value = (Expr.Binary) assign.value;
+        if (!(value.left instanceof Expr.Var && ((Expr.Var) value.left).slot == assign.slot
+                && value.right instanceof Expr.Num)) {
+            return null;
+        }
+        long c = ((Expr.Num) value.right).value;
+        if (value.op == TokenType.MINUS) {
+            c = -c; // never Long.MIN_VALUE, that's BIG
+        } else if (value.op != TokenType.PLUS) {
+            return null;
+        }
+        return (c == 0) ? null : c;
+    }
+
+    // x = x + t, x = t + x, x = x - t or x = t; null for anything else
+    private static Update update(Stmt.Assign assign, int counter, List<Integer> assigned) {
+        Update update = new Update();
+        update.target = assign.slot;
+        Expr term;
+        if (assign.value instanceof Expr.Binary) {
+            Expr.Binary value = (Expr.Binary) assign.value;
+            boolean leftIsTarget = isVar(value.left, assign.slot);
+            boolean rightIsTarget = isVar(value.right, assign.slot);
+            if (value.op == TokenType.PLUS && leftIsTarget && !rightIsTarget) {
+                term = value.right;
+            } else if (value.op == TokenType.PLUS && rightIsTarget && !leftIsTarget) {
+                term = value.left;
+            } else if (value.op == TokenType.MINUS && leftIsTarget && !rightIsTarget) {
+                term = value.right;
+            } else {
+                return null;
+            }
+            update.accumulate = true;
+            update.sign = (value.op == TokenType.MINUS) ? -1 : 1;
+        } else {
+            term = assign.value;
+            update.accumulate = false;
+        }
+
+        if (term instanceof Expr.Num) {
+            update.termKind = TERM_NUMBER;
+            update.term = ((Expr.Num) term).value;
+        } else if (isVar(term, counter)) {
+            update.termKind = TERM_COUNTER;
+        } else if (term instanceof Expr.Var && !assigned.contains(((Expr.Var) term).slot)) {
+            update.termKind = TERM_VAR;
+            update.term = ((Expr.Var) term).slot;
+        } else {
+            return null;
+        }
+        return update;
+    }
+
+    private static boolean isVar(Expr expr, int slot) {
+        return expr instanceof Expr.Var && ((Expr.Var) expr).slot == slot;
+    }
+
+    // "a op b" is "b flip(op) a"; null for operators that aren't comparisons
+    private static TokenType flip(TokenType op) {
+        switch (op) {
+            case LT:   return TokenType.GT;
+            case LTE:  return TokenType.GTE;
+            case GT:   return TokenType.LT;
+            case GTE:  return TokenType.LTE;
+            case EQEQ: return TokenType.EQEQ;
+            case NEQ:  return TokenType.NEQ;
+            default:   return null;
+        }
+    }
+
+    // ---------------------------------
+    // Running it
+    // ---------------------------------
+
+    /**
+     Do what the loop would do to the variables, in O(1).
+     Returns how many iterations that was (for InterpreterMetrics), or -1 (and changes nothing)
+     if the counter or bound is a big number or the loop would never end;
+     then the loop has to run normally.
+     */
+    long run(long[] slots, BigInteger[] bigSlots) {
+        long start = slots[counter];
+        long limit = boundIsVar ? slots[(int) bound] : bound;
+        if (start == Numbers.BIG || limit == Numbers.BIG) {
+            return -1;
+        }
+        if (!holds(start, limit)) {
+            return 0;
+        }
+        BigInteger trips = trips(BigInteger.valueOf(start), BigInteger.valueOf(limit));
+        if (trips == null) {
+            return -1;
+        }
+
+        BigInteger c = BigInteger.valueOf(step);
+        BigInteger half = trips.multiply(trips.subtract(BigInteger.ONE)).shiftRight(1); // trips*(trips-1)/2
+        for (Update u : updates) {
+            BigInteger first;    // the term's value in the first iteration
+            BigInteger increase; // how much it grows per iteration
+            if (u.termKind == TERM_COUNTER) {
+                first = u.afterStep ? BigInteger.valueOf(start).add(c) : BigInteger.valueOf(start);
+                increase = c;
+            } else {
+                first = (u.termKind == TERM_NUMBER) ? BigInteger.valueOf(u.term) : value(slots, bigSlots, (int) u.term);
+                increase = BigInteger.ZERO;
+            }
+            BigInteger result;
+            if (u.accumulate) {
+                BigInteger total = trips.multiply(first).add(half.multiply(increase));
+                BigInteger old = value(slots, bigSlots, u.target);
+                result = (u.sign < 0) ? old.subtract(total) : old.add(total);
+            } else {
+                result = first.add(trips.subtract(BigInteger.ONE).multiply(increase));
+            }
+            store(slots, bigSlots, u.target, result);
+        }
+        store(slots, bigSlots, counter, BigInteger.valueOf(start).add(trips.multiply(c)));
+        return (trips.bitLength() < 64) ? trips.longValue() : Long.MAX_VALUE; // 2^64 trips at most
+    }
+
+    /**
+     How many times the body runs (the condition holds at the start),
+     or null if the condition never turns false.
+     */
+    private BigInteger trips(BigInteger start, BigInteger limit) {
+        BigInteger c = BigInteger.valueOf(step);
+        switch (compare) {
+            case LT:  // ceil((limit - start) / c)
+                return (step > 0) ? limit.subtract(start).add(c).subtract(BigInteger.ONE).divide(c) : null;
+            case LTE:
+                return (step > 0) ? limit.subtract(start).divide(c).add(BigInteger.ONE) : null;
+            case GT:
+                return (step < 0) ? start.subtract(limit).subtract(c).subtract(BigInteger.ONE).divide(c.negate()) : null;
+            case GTE:
+                return (step < 0) ? start.subtract(limit).divide(c.negate()).add(BigInteger.ONE) : null;
+            case NEQ: {
+                // only ends if the counter hits the bound exactly
+                BigInteger[] qr = limit.subtract(start).divideAndRemainder(c);
+                return (qr[1].signum() == 0 && qr[0].signum() > 0) ? qr[0] : null;
+            }
+            case EQEQ:
+                // one step and it's different (c != 0)
+                return BigInteger.ONE;
+            default:
+                return null;
+        }
+    }
+
+    // The loop condition, on the counter's value
+    private boolean holds(long value, long limit) {
+        switch (compare) {
+            case LT:   return value < limit;
+            case LTE:  return value <= limit;
+            case GT:   return value > limit;
+            case GTE:  return value >= limit;
+            case EQEQ: return value == limit;
+            case NEQ:  return value != limit;
+            default:   return false;
+        }
+    }
+
+    // ---------------------------------
+    // Saving (see BytecodeFile)
+    // ---------------------------------
+
+    void write(DataOutputStream data) throws IOException {
+        data.writeInt(counter);
+        data.writeLong(step);
+        BytecodeFile.writeString(data, compare.name());
+        data.writeBoolean(boundIsVar);
+        data.writeLong(bound);
+        data.writeInt(updates.length);
+        for (Update u : updates) {
+            data.writeInt(u.target);
+            data.writeBoolean(u.accumulate);
+            data.writeInt(u.sign);
+            data.writeInt(u.termKind);
+            data.writeLong(u.term);
+            data.writeBoolean(u.afterStep);
+        }
+    }
+
+    static ClosedFormLoop read(ByteBuffer in) {
+        int counter = in.getInt();
+        long step = in.getLong();
+        TokenType compare = TokenType.valueOf(BytecodeFile.readString(in));
+        boolean boundIsVar = in.get() != 0;
+        long bound = in.getLong();
+        Update[] updates = new Update[in.getInt()];
+        for (int i = 0; i < updates.length; i++) {
+            Update u = new Update();
+            u.target = in.getInt();
+            u.accumulate = in.get() != 0;
+            u.sign = in.getInt();
+            u.termKind = in.getInt();
+            u.term = in.getLong();
+            u.afterStep = in.get() != 0;
+            updates[i] = u;
+        }
+        return new ClosedFormLoop(counter, step, compare, boundIsVar, bound, updates);
+    }
+
+    private static BigInteger value(long[] slots, BigInteger[] bigSlots, int slot) {
+        return Numbers.big(slots[slot], bigSlots[slot]);
+    }
+
+    private static void store(long[] slots, BigInteger[] bigSlots, int slot, BigInteger value) {
+        long fitted = Numbers.fit(value);
+        slots[slot] = fitted;
+        if (fitted == Numbers.BIG) {
+            bigSlots[slot] = value;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ CompiledLoop: a while-loop that LoopJit turned into real JVM code.
+ run() does exactly what Stmt.While.exec() would do, starting at the condition check,
+ and returns true. If a value gets too big for a long it returns false instead,
+ with the variables as they were at the start of that iteration, so the caller
+ can go on interpreting from there.
+ */
+interface CompiledLoop {
+    boolean run(Interpreter in, long[] slots);
+}
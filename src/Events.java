@@ -0,0 +1,95 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ Events: what the interpreter tells Java Flight Recorder, so its phases show up
+ in a recording next to GC, CPU and allocation data.
+
+ All events are in the "Interpreter" category:
+ - Lex:     one Lexer scan (characters, tokens)
+ - Compile: parsing + optimizing a program (for the Interpreter) or compiling it to bytecode (VM)
+ - Run:     one interpret() call, or one VM.runFor() slice
+ - Loop:    one run of a while-loop in the tree interpreter (line, iterations);
+            a loop done by its closed form (see ClosedFormLoop) doesn't run, so it has none
+
+ Every place that fires one does "new event, begin(), ..., if (shouldCommit()) fill in and commit()".
+ When no recording has these events on, JFR makes begin/shouldCommit/commit do nothing
+ and the JIT removes the event object, so the fields are only filled in when recorded.
+ Loop is off by default (it can fire very often); switch on interpreter.Loop
+ in the recording's settings to get it.
+ */
+final class Events {
+
+    private Events() {
+    }
+
+    @Name("interpreter.Lex")
+    @Label("Lex")
+    @Category("Interpreter")
+    @Description("Lexer scan of a whole source")
+    @StackTrace(false)
+    static final class Lex extends Event {
+        @Label("Characters")
+        int characters;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("interpreter.Compile")
+    @Label("Compile")
+    @Category("Interpreter")
+    @Description("Parsing and optimizing a program (tree interpreter), or compiling it to bytecode (VM)")
+    @StackTrace(false)
+    static final class Compile extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Variables")
+        int variables;
+    }
+
+    @Name("interpreter.Run")
+    @Label("Run")
+    @Category("Interpreter")
+    @Description("One Interpreter.interpret() call, or one VM time slice")
+    @StackTrace(false)
+    static final class Run extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Variables")
+        int variables;
+
+        @Label("Finished")
+        @Description("False if a VM stopped at the end of its time slice")
+        boolean finished;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("interpreter.Loop")
+    @Label("Loop")
+    @Category("Interpreter")
+    @Description("One run of a while-loop in the tree interpreter")
+    @StackTrace(false)
+    @Enabled(false)
+    static final class Loop extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Interpreted Iterations")
+        @Description("Iterations run by the interpreter (compiled code doesn't count them)")
+        long iterations;
+
+        @Label("Compiled")
+        @Description("Whether the loop is compiled by LoopJit, so compiled code ran (part of) it")
+        boolean compiled;
+    }
+}
@@ -0,0 +1,347 @@
+import java.math.BigInteger;
+
+/**
+ Expr: a precompiled expression node.
+ The Parser builds these once from the tokens after '=' / 'print' / 'if' / 'while',
+ so evaluating an expression is just walking a few small objects
+ instead of re-reading tokens and calling Integer.parseInt every time.
+
+ Expressions are still evaluated strictly left to right (no precedence),
+ exactly like the old token-based evaluator did: "a + b * c" means "(a + b) * c".
+
+ Values are longs, see Numbers: eval() returns Numbers.BIG when the value is a BigInteger,
+ and then the BigInteger is in in.bigResult.
+ */
+abstract class Expr {
+
+    // Compute the value of this expression using the interpreter's variables
+    abstract long eval(Interpreter in);
+
+    /**
+     A number literal, already parsed to a long (never BIG).
+     */
+    static final class Num extends Expr {
+        final long value;
+
+        Num(long value) {
+            this.value = value;
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            return value;
+        }
+    }
+
+    /**
+     A number literal too big for a long.
+     */
+    static final class BigNum extends Expr {
+        final BigInteger value;
+
+        BigNum(BigInteger value) {
+            this.value = value;
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            in.bigResult = value;
+            return Numbers.BIG;
+        }
+    }
+
+    /**
+     A variable read from its slot. Undefined variables read as 0.
+     */
+    static final class Var extends Expr {
+        final String name; // kept for debugging
+        final int slot;
+
+        Var(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            long value = in.slots[slot];
+            if (value == Numbers.BIG) {
+                in.bigResult = in.bigSlots[slot];
+            }
+            return value;
+        }
+    }
+
+    /**
+     a[index]: one element of an array (see Interpreter.arrays). Elements are never BIG,
+     so this never touches a BigInteger and never creates an object.
+     */
+    static final class Element extends Expr {
+        final String name; // for error messages
+        final int arraySlot;
+        final Expr index;
+
+        Element(String name, int arraySlot, Expr index) {
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.index = index;
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            long i = index.eval(in);
+            long[] array = in.arrays[arraySlot];
+            if (i < 0 || i >= array.length) { // BIG is negative, so a big index lands here too
+                throw ArrayOps.outOfRange(name, (i == Numbers.BIG) ? in.bigResult.toString() : Long.toString(i), array.length);
+            }
+            return array[(int) i];
+        }
+    }
+
+    /**
+     len(a), sum(a) or max(a): a built-in that takes an array and gives a number.
+     Like Binary, each function is its own subclass (see arrayCall()).
+     */
+    abstract static class ArrayCall extends Expr {
+        final String function;
+        final String name;
+        final int arraySlot;
+
+        ArrayCall(String function, String name, int arraySlot) {
+            this.function = function;
+            this.name = name;
+            this.arraySlot = arraySlot;
+        }
+    }
+
+    /**
+     f(a, b): a call of a function (see Function). The arguments are evaluated left to right
+     in the caller's frame, then Interpreter.call() runs the body in a frame of its own.
+     */
+    static final class Call extends Expr {
+        final Function function;
+        final Expr[] arguments;
+
+        Call(Function function, Expr[] arguments) {
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            int base = in.pushArguments(arguments);
+            return in.call(function, base);
+        }
+    }
+
+    /**
+     Something the old evaluator would have rejected (like "x = 1 +").
+     We keep the error here and only throw it when the expression actually runs,
+     so a broken line inside a branch that is never taken still does nothing.
+     */
+    static final class Fail extends Expr {
+        final String message;
+
+        Fail(String message) {
+            this.message = message;
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            throw new RuntimeException(message);
+        }
+    }
+
+    /**
+     "left op right" - each operator is its own subclass so there is no
+     switch on the operator while the program runs.
+     */
+    abstract static class Binary extends Expr {
+        final TokenType op;
+        final Expr left;
+        final Expr right;
+
+        Binary(TokenType op, Expr left, Expr right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        // The actual operator on two longs (never BIG). Returns BIG if the answer doesn't fit in a long.
+        abstract long apply(long a, long b);
+
+        @Override
+        long eval(Interpreter in) {
+            long a = left.eval(in);
+            BigInteger bigA = (a == Numbers.BIG) ? in.bigResult : null; // before 'right' overwrites it
+            long b = right.eval(in);
+            if (a != Numbers.BIG && b != Numbers.BIG) {
+                long result = apply(a, b);
+                if (result != Numbers.BIG) {
+                    return result;
+                }
+            }
+            return in.big(Numbers.apply(op, Numbers.big(a, bigA), Numbers.big(b, in.bigResult)));
+        }
+    }
+
+    /**
+     Superinstruction for "var op var" (like "i <= N" or "a + b"):
+     reads both slots straight away instead of calling eval() on two child nodes.
+     Made by the optimizer's "fuse" pass. It keeps op/left/right of the node it replaces,
+     so to everything else (VM compiler, LoopJit, other passes) it is just that Binary.
+     */
+    static final class VarVar extends Binary {
+        private final Binary generic;
+        final int leftSlot;
+        final int rightSlot;
+
+        VarVar(Binary generic) {
+            super(generic.op, generic.left, generic.right);
+            this.generic = generic;
+            this.leftSlot = ((Var) generic.left).slot;
+            this.rightSlot = ((Var) generic.right).slot;
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return generic.apply(a, b);
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            long a = in.slots[leftSlot];
+            long b = in.slots[rightSlot];
+            if (a != Numbers.BIG && b != Numbers.BIG) {
+                long result = generic.apply(a, b);
+                if (result != Numbers.BIG) {
+                    return result;
+                }
+            }
+            // Big numbers: the plain node knows what to do
+            return generic.eval(in);
+        }
+    }
+
+    /**
+     Superinstruction for "var op number" (like "i < 10" or "n % 10"), see VarVar.
+     */
+    static final class VarNum extends Binary {
+        private final Binary generic;
+        final int leftSlot;
+        final long number;
+
+        VarNum(Binary generic) {
+            super(generic.op, generic.left, generic.right);
+            this.generic = generic;
+            this.leftSlot = ((Var) generic.left).slot;
+            this.number = ((Num) generic.right).value;
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return generic.apply(a, b);
+        }
+
+        @Override
+        long eval(Interpreter in) {
+            long a = in.slots[leftSlot];
+            if (a != Numbers.BIG) {
+                long result = generic.apply(a, number);
+                if (result != Numbers.BIG) {
+                    return result;
+                }
+            }
+            return generic.eval(in);
+        }
+    }
+
+    /**
+     Build the ArrayCall node for a built-in's name ("len", "sum" or "max").
+     */
+    static ArrayCall arrayCall(String function, String name, int arraySlot) {
+        switch (function) {
+            case "len":
+                return new ArrayCall(function, name, arraySlot) {
+                    long eval(Interpreter in) { return in.arrays[arraySlot].length; }
+                };
+            case "sum":
+                return new ArrayCall(function, name, arraySlot) {
+                    long eval(Interpreter in) {
+                        long[] array = in.arrays[arraySlot];
+                        long sum = ArrayOps.sum(array);
+                        if (sum == Numbers.BIG) {
+                            in.bigResult = ArrayOps.bigSum(array);
+                        }
+                        return sum;
+                    }
+                };
+            case "max":
+                return new ArrayCall(function, name, arraySlot) {
+                    long eval(Interpreter in) {
+                        long[] array = in.arrays[arraySlot];
+                        if (array.length == 0) {
+                            throw ArrayOps.empty(function, name);
+                        }
+                        return ArrayOps.max(array);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Not an array function: " + function);
+        }
+    }
+
+    /**
+     Build the right Binary node for an operator token type.
+     */
+    static Binary binary(TokenType op, Expr left, Expr right) {
+        switch (op) {
+            case PLUS:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return Numbers.add(a, b); }
+                };
+            case MINUS:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return Numbers.subtract(a, b); }
+                };
+            case STAR:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return Numbers.multiply(a, b); }
+                };
+            case SLASH:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return Numbers.divide(a, b); }
+                };
+            case MOD:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return Numbers.modulo(a, b); }
+                };
+            case EQEQ:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return (a == b) ? 1 : 0; }
+                };
+            case NEQ:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return (a != b) ? 1 : 0; }
+                };
+            case GT:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return (a > b) ? 1 : 0; }
+                };
+            case GTE:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return (a >= b) ? 1 : 0; }
+                };
+            case LT:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return (a < b) ? 1 : 0; }
+                };
+            case LTE:
+                return new Binary(op, left, right) {
+                    long apply(long a, long b) { return (a <= b) ? 1 : 0; }
+                };
+            default:
+                throw new IllegalArgumentException("Not an operator: " + op);
+        }
+    }
+}
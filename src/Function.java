@@ -0,0 +1,68 @@
+/**
+ Function: a def, compiled by the Parser.
+
+   def gcd(a, b):
+       if b == 0:
+           return a
+       return gcd(b, a % b)
+
+ A function's numbers are its own: its parameters and every other name it uses
+ are slots of its own frame (numbered from 0, parameters first), so a call never
+ touches the caller's variables. Arrays belong to the whole script, so a function
+ can use any array by name. Functions take and return numbers; one that ends
+ without a return gives 0.
+
+ The Parser sees every def before the script runs, so a function can be called above
+ its def, and functions can call each other. Calling a name that has no def anywhere
+ is an error when the call runs. A second def of the same name replaces the first.
+
+ Calls allocate nothing: both engines keep one frame per call depth and reuse it
+ (see Interpreter.call and VM). "return f(...)" is a tail call: the function that returns
+ hands its frame to f, so tail recursion like gcd above runs in constant space,
+ however many times it goes round. Other calls can nest MAX_DEPTH deep (in the
+ Interpreter, as deep as the Java stack allows, if that is less).
+ */
+final class Function {
+    // Calls nested deeper than this are an error (like Python's recursion limit)
+    static final int MAX_DEPTH = 1000;
+
+    final String name;
+    final int index; // functions are numbered in the order the Parser first meets them (the VM's function table)
+
+    // Filled in when the Parser reads the def (a call can come first);
+    // the REPL can fill them in again when an entry redefines the function
+    int paramCount = 0;
+    String[] slotNames = null; // parameters first
+    Stmt.Block body = null;    // null: no def (yet)
+
+    Function(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    boolean isDefined() {
+        return body != null;
+    }
+
+    // ---------------------------------
+    // Errors (the same in both engines)
+    // ---------------------------------
+
+    static RuntimeException notDefined(String name) {
+        return new RuntimeException("Function " + name + " is not defined.");
+    }
+
+    static RuntimeException wrongArguments(String name, int paramCount, int given) {
+        return new RuntimeException(name + "() takes " + paramCount + " argument" + (paramCount == 1 ? "" : "s")
+                + ", not " + given + ".");
+    }
+
+    static RuntimeException tooDeep(String name) {
+        return new RuntimeException("Calls nested more than " + MAX_DEPTH + " deep (calling " + name + "()).");
+    }
+
+    // Only the Interpreter: its calls use the Java stack, which may not have room for MAX_DEPTH
+    static RuntimeException outOfStack(String name) {
+        return new RuntimeException("Calls nested too deep for the Java stack (calling " + name + "()).");
+    }
+}
@@ -1,4 +1,7 @@
-import java.util.HashMap;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -11,440 +14,514 @@ import java.util.Map;
  */
 public class Interpreter {
 
-    // We'll store lines with indentation info in this list
-    private final List<Line> lines;
-    private int currentLine = 0; // which line we're on
-
-    // Our "variables" map: var name => integer value
-    private final Map<String, Integer> variables = new HashMap<>();
+    // The lines compiled once into statement nodes (see Parser), maybe shared with other Interpreters
+    // (in a REPL session, the last entry: see interpret(Program))
+    private Program program;
+
+    // Our variables: every name got a slot number in the Parser,
+    // and the value of slot i lives in slots[i] (0 until assigned).
+    // If slots[i] is Numbers.BIG the value is the BigInteger in bigSlots[i].
+    // (While a function runs, these are its frame instead: see call().)
+    long[] slots;
+    BigInteger[] bigSlots;
+
+    // Arrays have slots of their own (the Parser numbers array names separately).
+    // An array nobody assigned yet is empty, so a slot is never null.
+    long[][] arrays;
+    static final long[] NO_ELEMENTS = new long[0];
+
+    // The BigInteger of the last Expr.eval() that returned Numbers.BIG
+    BigInteger bigResult;
+
+    // Function calls (see Function). While a call runs, slots/bigSlots are its frame:
+    // frames[d] for a call at depth d (0 is the script itself), made the first time
+    // a call gets that deep and reused by every call after that
+    private long[][] frames = new long[8][];
+    private BigInteger[][] bigFrames = new BigInteger[8][];
+    private int depth = 0;
+
+    // Arguments on their way into a call: evaluated in the caller's frame, pushed here,
+    // then copied into the new frame (see pushArguments and call)
+    private long[] arguments = new long[16];
+    private BigInteger[] bigArguments = new BigInteger[16];
+    private int argumentCount = 0;
+
+    // Set by Stmt.Return: the function is returning returnValue, or tail-calling tailCall
+    boolean returning;
+    long returnValue;
+    Function tailCall;
+
+    // Where print statements go (buffered, flushed when the program ends)
+    OutputSink out = new BufferedOutputSink(System.out);
+
+    // After this many iterations a while-loop gets compiled to JVM code (0 = never)
+    static final int DEFAULT_JIT_THRESHOLD = 1000;
+    int jitThreshold = DEFAULT_JIT_THRESHOLD;
+
+    // Counts for InterpreterMetrics not handed over yet. Plain fields: only this thread
+    // touches them, and they go to the shared metrics every InterpreterMetrics.PUBLISH_EVERY
+    // statements or iterations (see countStatements) and at the end of the run
+    long statements;
+    long loopIterations;
+    long printed;
+    private InterpreterMetrics metrics; // null = not counted anywhere
+
+    // Per-line profiling (null = off) and the instrumented copy of the program it runs
+    private Profiler profiler;
+    private Stmt.Block profiledBody;
 
     /**
-     Line class: wraps tokens and their indent level
+     Line class: one row of code = a range of tokens in a TokenBuffer + its indent level
      */
     static class Line {
-        final List<Token> tokens;
+        final TokenBuffer tokens;
+        final int start; // index of the first token in the buffer
+        final int end;   // one past the last token
         final int indent;
 
-        Line(List<Token> tokens, int indent) {
+        Line(TokenBuffer tokens, int start, int end, int indent) {
             this.tokens = tokens;
+            this.start = start;
+            this.end = end;
             this.indent = indent;
         }
+
+        int size() {
+            return end - start;
+        }
+
+        boolean isEmpty() {
+            return start == end;
+        }
+
+        // Type of the k-th token on this line
+        TokenType type(int k) {
+            return tokens.type(start + k);
+        }
     }
 
     /**
      so we Construct an Interpreter with a list of tokens + original source.
      We split tokens into lines by NEWLINE, attach indentation info,
-     then interpret line by line.
+     then compile the lines once into a statement tree and optimize it.
      */
     public Interpreter(List<Token> tokens, String originalSource) {
-        this.lines = splitIntoIndentedLines(tokens, originalSource);
+        this(tokens, originalSource, new Optimizer());
     }
 
     /**
-     this reads lines until done.
+     Same as above, but with our own Optimizer (e.g. with some passes switched off,
+     or Optimizer.none() to run exactly what was parsed).
      */
-    public void interpret() {
-        while (!isAtEnd()) {
-            interpretLine(getLine());
-        }
+    Interpreter(List<Token> tokens, String originalSource, Optimizer optimizer) {
+        this(splitIntoIndentedLines(TokenBuffer.of(tokens), originalSource).iterator(), optimizer);
     }
 
     /**
-     Break tokens into lines, read indentation from the original source lines,
-     and build a "Line" object for each row of code.
+     Construct an Interpreter straight from a TokenBuffer (Lexer.tokenizeToBuffer),
+     without ever making Token objects.
      */
-    private List<Line> splitIntoIndentedLines(List<Token> tokens, String source) {
-        // Split source by actual newlines
-        String[] sourceLines = source.split("\n", -1);
-
-        // Count leading spaces on each line
-        int[] indentLevels = new int[sourceLines.length];
-        for (int i = 0; i < sourceLines.length; i++) {
-            indentLevels[i] = countLeadingSpaces(sourceLines[i]);
-        }
+    Interpreter(TokenBuffer tokens) {
+        this(splitIntoIndentedLines(tokens, tokens.source).iterator(), new Optimizer());
+    }
 
-        List<Line> lineList = new ArrayList<>();
-        int lineIndex = 0;
-        List<Token> currentLineTokens = new ArrayList<>();
+    /**
+     Construct an Interpreter straight from a TokenStream (a Reader or a mapped file).
+     Lines are compiled as they are read, so the source text and the full
+     token list are never in memory.
+     */
+    public Interpreter(TokenStream tokens) {
+        this(tokens.lines(), new Optimizer());
+    }
 
-        // Walk through all tokens, grouping them until we see NEWLINE
-        for (Token tk : tokens) {
-            if (tk.type == TokenType.NEWLINE) {
-                // That ends one physical line
-                lineList.add(new Line(currentLineTokens, indentLevels[lineIndex]));
-                currentLineTokens = new ArrayList<>();
-                lineIndex++;
-            } else if (tk.type == TokenType.EOF) {
-                // End of file: add leftover tokens if any
-                if (!currentLineTokens.isEmpty()) {
-                    lineList.add(new Line(currentLineTokens, indentLevels[lineIndex]));
-                }
-            } else {
-                // Otherwise, keep collecting tokens for this line
-                currentLineTokens.add(tk);
-            }
-        }
+    // Compile lines (in any form) into the program we run
+    private Interpreter(Iterator<Line> lines, Optimizer optimizer) {
+        this(Program.compile(lines, optimizer));
+    }
+
+    /**
+     Run an already compiled Program (e.g. one from a ProgramCache).
+     This Interpreter gets its own variables and output; the Program itself is
+     not changed, so any number of Interpreters can run it at the same time.
+     */
+    public Interpreter(Program program) {
+        this.program = program;
+        this.slots = new long[program.slotNames.length];
+        this.bigSlots = new BigInteger[program.slotNames.length];
+        this.arrays = new long[program.arrayNames.length][];
+        Arrays.fill(arrays, NO_ELEMENTS);
+    }
 
-        // If we ended without a final NEWLINE, add those tokens anyway
-        if (!currentLineTokens.isEmpty()) {
-            if (lineIndex < indentLevels.length) {
-                lineList.add(new Line(currentLineTokens, indentLevels[lineIndex]));
+    /**
+     this runs the compiled program until done.
+     Printed output is flushed at the end, even if the program fails.
+     */
+    public void interpret() {
+        Events.Run event = new Events.Run();
+        event.begin();
+        InterpreterMetrics metrics = this.metrics;
+        long runStart = 0;
+        if (metrics != null) {
+            metrics.runStarted();
+            runStart = System.nanoTime();
+        }
+        String error = null;
+        try {
+            if (profiler == null) {
+                program.body.exec(this);
             } else {
-                // fallback if mismatch
-                lineList.add(new Line(currentLineTokens, 0));
+                long start = System.nanoTime();
+                try {
+                    profiledBody.exec(this);
+                } finally {
+                    profiler.addRunTime(System.nanoTime() - start);
+                }
+            }
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+            throw e;
+        } finally {
+            out.flush();
+            if (event.shouldCommit()) {
+                event.engine = "tree";
+                event.variables = slots.length;
+                event.finished = true;
+                event.error = error;
+                event.commit();
+            }
+            publishCounts();
+            if (metrics != null) {
+                metrics.runEnded(System.nanoTime() - runStart, error != null);
             }
         }
-        return lineList;
     }
 
-    // Count how many spaces at the beginning of a line
-    private int countLeadingSpaces(String line) {
-        int count = 0;
-        for (int i = 0; i < line.length(); i++) {
-            if (line.charAt(i) == ' ') count++;
-            else break;
-        }
-        return count;
+    // True if the runs are counted for InterpreterMetrics (compiled loops only count then)
+    boolean hasMetrics() {
+        return metrics != null;
     }
 
-    /**
-     Reads + interprets a single "Line" (which might be an assignment, if, while, etc.)
-     */
-    private void interpretLine(Line line) {
-        if (line.tokens.isEmpty()) {
-            // Empty line => skip
-            advanceLine();
-            return;
+    // Statements that ran (Stmt.Block, compiled loops)
+    void countStatements(long count) {
+        statements += count;
+        if (statements >= InterpreterMetrics.PUBLISH_EVERY) {
+            publishCounts();
         }
+    }
 
-        Token first = line.tokens.get(0);
-
-        switch (first.type) {
-            case IDENT:
-                parseAssignment(line);
-                break;
-            case PRINT:
-                parsePrint(line);
-                break;
-            case IF:
-                parseIf(line);
-                break;
-            case WHILE:
-                parseWhile(line);
-                break;
-            case ELSE:
-                // If we hit else by itself, skip to avoid double prints
-                parseElse(line);
-                break;
-            default:
-                // Unrecognized line => skip
-                advanceLine();
-                break;
+    // Iterations of a compiled or closed-form loop that just ended
+    void countIterations(long count) {
+        loopIterations += count;
+        if (loopIterations >= InterpreterMetrics.PUBLISH_EVERY) {
+            publishCounts();
         }
     }
 
-    private void parseAssignment(Line line) {
-        if (line.tokens.size() < 3) {
-            advanceLine();
-            return;
+    // Hand what we counted so far to the metrics (if any) and start counting from 0
+    private void publishCounts() {
+        if (metrics != null) {
+            metrics.add(statements, loopIterations, printed);
         }
-        String varName = line.tokens.get(0).text;
-        Token eq = line.tokens.get(1);
-        if (eq.type != TokenType.EQ) {
-            advanceLine();
-            return;
-        }
-
-        // Grab everything after '=' as the expression
-        List<Token> exprTokens = line.tokens.subList(2, line.tokens.size());
-        int value = evaluateExpression(exprTokens);
-        variables.put(varName, value);
-        advanceLine();
+        statements = 0;
+        loopIterations = 0;
+        printed = 0;
     }
 
     /**
-     We skip optional parentheses around the expression if present -> e.g.: print(z) or print z
+     Run one more Program in this Interpreter, keeping all variables: the REPL (see Repl)
+     runs every entry like this. 'more' has to come from the same Parser as the Program
+     we ran before (Program.compileMore), so the old variables keep their slots and
+     new ones come after them.
      */
-    private void parsePrint(Line line) {
-        if (line.tokens.size() < 2) {
-            advanceLine();
-            return;
+    void interpret(Program more) {
+        program = more;
+        int count = more.slotNames.length;
+        if (count > slots.length) {
+            slots = Arrays.copyOf(slots, count);
+            bigSlots = Arrays.copyOf(bigSlots, count);
         }
-
-        // We'll slice off the tokens after 'print'
-        int startIndex = 1;
-        int endIndex = line.tokens.size();
-
-        // If the next token is LPAREN, skip it
-        if (line.tokens.get(startIndex).type == TokenType.LPAREN) {
-            startIndex++;
-        }
-        // If the last token is RPAREN, skip it
-        if (line.tokens.get(endIndex - 1).type == TokenType.RPAREN) {
-            endIndex--;
+        int arrayCount = more.arrayNames.length;
+        if (arrayCount > arrays.length) {
+            int old = arrays.length;
+            arrays = Arrays.copyOf(arrays, arrayCount);
+            Arrays.fill(arrays, old, arrayCount, NO_ELEMENTS);
         }
-
-        // Evaluate whatever remains
-        if (startIndex >= endIndex) {
-            advanceLine();
-            return;
+        if (profiler != null) {
+            profiledBody = profiler.instrument(more.body);
         }
-        List<Token> exprTokens = line.tokens.subList(startIndex, endIndex);
-
-        int value = evaluateExpression(exprTokens);
-        System.out.println(value);
-        advanceLine();
+        interpret();
     }
 
     /**
-     so it does something like this
-     if expr:
-     [block if expr != 0]
-     else:
-     [block if expr == 0]
+     Switch per-line profiling on or off for the next interpret() calls.
+     While it's on, every statement is timed (and loops are not JIT-compiled);
+     see getProfiler() for the results. Switching it on again starts from zero.
      */
-    private void parseIf(Line line) {
-        int colonIndex = findColon(line.tokens);
-        if (colonIndex < 0) {
-            advanceLine();
-            return;
-        }
-
-        // Condition tokens => everything after 'if' up to ':'
-        List<Token> conditionTokens = line.tokens.subList(1, colonIndex);
-        int conditionValue = evaluateExpression(conditionTokens);
-
-        // Indent level of the if line, for block detection
-        int myIndent = line.indent;
-        advanceLine();
-
-        // Decide if we run or skip the block
-        boolean ifExecuted = false;
-        if (conditionValue != 0) {
-            interpretBlock(myIndent);
-            ifExecuted = true;
+    public void setProfiling(boolean on) {
+        if (on) {
+            profiler = new Profiler();
+            profiledBody = profiler.instrument(program.body);
         } else {
-            skipBlock(myIndent);
-        }
-
-        // Then we check if there's an 'else' right after, at the same indent
-        if (!isAtEnd()) {
-            Line nextLine = getLine();
-            if (!nextLine.tokens.isEmpty() &&
-                    nextLine.tokens.get(0).type == TokenType.ELSE &&
-                    nextLine.indent == myIndent)
-            {
-                parseElseInternal(nextLine, ifExecuted);
-            }
+            profiler = null;
+            profiledBody = null;
         }
     }
 
     /**
-     If we encounter 'else' unexpectedly, we skip it
-     because the real logic is handled in parseElseInternal.
+     What profiling measured so far, or null when profiling is off.
      */
-    private void parseElse(Line line) {
-        advanceLine();
-        skipBlock(line.indent);
+    public Profiler getProfiler() {
+        return profiler;
     }
 
     /**
-     Called right after an 'if' to interpret or skip the else block.
+     Count this Interpreter's runs in 'metrics' (null to stop), e.g. one InterpreterMetrics
+     shared by every Interpreter of a pool.
      */
-    private void parseElseInternal(Line line, boolean ifExecuted) {
-        // Consume the 'else' line
-        advanceLine();
-
-        // If the 'if' block already ran, skip else
-        if (ifExecuted) {
-            skipBlock(line.indent);
-        }
-        // Otherwise, run the else block
-        else {
-            interpretBlock(line.indent);
-        }
+    public void setMetrics(InterpreterMetrics metrics) {
+        this.metrics = metrics;
     }
 
     /**
-     while expr:
-     [block repeated if expr != 0]
+     Send print output somewhere else (e.g. a MemoryOutputSink to capture it).
      */
-    private void parseWhile(Line line) {
-        int colonIndex = findColon(line.tokens);
-        if (colonIndex < 0) {
-            advanceLine();
-            return;
-        }
-
-        List<Token> conditionTokens = line.tokens.subList(1, colonIndex);
-        int myIndent = line.indent;
-        int startLine = currentLine;
-
-        // Evaluate once, then interpret block if condition != 0
-        int conditionValue = evaluateExpression(conditionTokens);
-        advanceLine();
-
-        while (conditionValue != 0) {
-            interpretBlock(myIndent);
-
-            // Jump back to recheck
-            resetTo(startLine);
-            Line whileLine = getLine();
-            conditionTokens = whileLine.tokens.subList(1, findColon(whileLine.tokens));
-            conditionValue = evaluateExpression(conditionTokens);
-            advanceLine();
-        }
+    void setOutput(OutputSink out) {
+        this.out = out;
+    }
 
-        // If false, skip block once
-        skipBlock(myIndent);
+    /**
+     How many iterations a while-loop runs in the interpreter before
+     LoopJit compiles it. 0 turns the JIT off.
+     */
+    public void setJitThreshold(int threshold) {
+        this.jitThreshold = Math.max(threshold, 0);
     }
 
     /**
-     Finds the position of the first ':' in a list of tokens.
-     Returns -1 if not found.
+     Give a variable its starting value before interpret() (variables start at 0 otherwise).
+     Names the program never uses are ignored, since no statement could read them.
      */
-    private int findColon(List<Token> tokens) {
-        for (int i = 0; i < tokens.size(); i++) {
-            if (tokens.get(i).type == TokenType.COLON) {
-                return i;
+    public void setVariable(String name, long value) {
+        setVariable(name, BigInteger.valueOf(value));
+    }
+
+    // Same, for numbers of any size
+    public void setVariable(String name, BigInteger value) {
+        String[] slotNames = program.slotNames;
+        for (int i = 0; i < slotNames.length; i++) {
+            if (slotNames[i].equals(name)) {
+                bigResult = value;
+                store(i, Numbers.fit(value));
+                return;
             }
         }
-        return -1;
     }
 
     /**
-     * Interpret lines with indentation strictly greater than 'baseIndent'
-     * (meaning they belong to the current block).
+     A copy of all variables as "name => value", in the order they first appear.
+     Values are Longs, or BigIntegers for the ones that don't fit in a long.
+     Handy for debugging; the interpreter itself never uses names while running.
      */
-    private void interpretBlock(int baseIndent) {
-        while (!isAtEnd()) {
-            Line ln = getLine();
-            if (ln.indent <= baseIndent) {
-                // The block ends
-                return;
-            }
-            interpretLine(ln);
+    public Map<String, Number> getVariables() {
+        String[] slotNames = program.slotNames;
+        Map<String, Number> dump = new LinkedHashMap<>();
+        for (int i = 0; i < slotNames.length; i++) {
+            dump.put(slotNames[i], slots[i] == Numbers.BIG ? bigSlots[i] : (Number) slots[i]);
         }
+        return dump;
+    }
+
+    // Name of an array slot, for error messages
+    String arrayName(int arraySlot) {
+        return program.arrayNames[arraySlot];
     }
 
     /**
-     * Skip lines (like a block) until we find a line with indent <= baseIndent.
+     A copy of an array variable's elements, or null if the program has no array of that name.
      */
-    private void skipBlock(int baseIndent) {
-        while (!isAtEnd()) {
-            Line ln = getLine();
-            if (ln.indent <= baseIndent) {
-                return;
+    public long[] getArray(String name) {
+        String[] arrayNames = program.arrayNames;
+        for (int i = 0; i < arrayNames.length; i++) {
+            if (arrayNames[i].equals(name)) {
+                return arrays[i].clone();
             }
-            advanceLine();
         }
+        return null;
     }
 
     // ---------------------------------
-    // Expression Evaluator
+    // Function calls
     // ---------------------------------
 
-    /**
-     Evaluate a simple left-to-right expression with
-     +, -, *, /, %, and comparisons (==, !=, <, etc.).
-     */
-    private int evaluateExpression(List<Token> exprTokens) {
-        if (exprTokens.isEmpty()) return 0;
-
-        // Start with the first value
-        int value = getSingleValue(exprTokens.get(0));
-        int i = 1;
-
-        // Then fold in the rest as "value op nextValue"
-        while (i < exprTokens.size()) {
-            Token op = exprTokens.get(i);
-            if (isOperator(op.type)) {
-                if (i + 1 >= exprTokens.size()) {
-                    throw new RuntimeException("Operator at end with no operand.");
-                }
-                int rightVal = getSingleValue(exprTokens.get(i + 1));
-                switch (op.type) {
-                    case PLUS:  value += rightVal; break;
-                    case MINUS: value -= rightVal; break;
-                    case STAR:  value *= rightVal; break;
-                    case SLASH:
-                        if (rightVal == 0) {
-                            throw new RuntimeException("Division by zero.");
-                        }
-                        value /= rightVal;
-                        break;
-                    case MOD:
-                        if (rightVal == 0) {
-                            throw new RuntimeException("Modulo by zero.");
-                        }
-                        value %= rightVal;
-                        break;
-                    case EQEQ:  value = (value == rightVal) ? 1 : 0; break;
-                    case NEQ:   value = (value != rightVal) ? 1 : 0; break;
-                    case GT:    value = (value >  rightVal) ? 1 : 0; break;
-                    case GTE:   value = (value >= rightVal) ? 1 : 0; break;
-                    case LT:    value = (value <  rightVal) ? 1 : 0; break;
-                    case LTE:   value = (value <= rightVal) ? 1 : 0; break;
-                    default:
-                        break;
-                }
-                i += 2;
-            } else {
-                // If it's not an operator, just move on
-                i++;
+    // Evaluate the arguments of a call (in the current frame) onto the argument stack.
+    // Returns where they start
+    int pushArguments(Expr[] values) {
+        int base = argumentCount;
+        for (Expr value : values) {
+            long v = value.eval(this); // may make calls of its own, which leave argumentCount as it was
+            if (argumentCount == arguments.length) {
+                arguments = Arrays.copyOf(arguments, argumentCount * 2);
+                bigArguments = Arrays.copyOf(bigArguments, argumentCount * 2);
+            }
+            arguments[argumentCount] = v;
+            if (v == Numbers.BIG) {
+                bigArguments[argumentCount] = bigResult;
             }
+            argumentCount++;
         }
-        return value;
+        return base;
     }
 
     /**
-     Convert a token to an integer value:
-     - NUMBER => parseInt
-     - IDENT => fetch from variables map or 0 if undefined
+     Run 'function' with the arguments pushed from 'base' on, and return its value
+     (if that's BIG, the BigInteger is in bigResult). A tail call in the body
+     (see Stmt.Return) doesn't come back here through Java: we run the next function
+     right here, in the same frame, so tail recursion never gets any deeper.
      */
-    private int getSingleValue(Token token) {
-        switch (token.type) {
-            case NUMBER:
-                return Integer.parseInt(token.text);
-            case IDENT:
-                return variables.getOrDefault(token.text, 0);
-            default:
-                throw new RuntimeException("Unexpected token in expression: " + token);
+    long call(Function function, int base) {
+        long[] callerSlots = slots;
+        BigInteger[] callerBigSlots = bigSlots;
+        int callerDepth = depth;
+        try {
+            check(function, base);
+            if (depth == Function.MAX_DEPTH) {
+                throw Function.tooDeep(function.name);
+            }
+            depth++;
+            while (true) {
+                enter(function, base);
+                returnValue = 0; // if the body ends without a return
+                function.body.exec(this);
+                returning = false;
+                if (tailCall == null) {
+                    return returnValue;
+                }
+                function = tailCall; // its arguments are at 'base' again
+                tailCall = null;
+                check(function, base);
+            }
+        } catch (StackOverflowError e) {
+            // Every call here is a few Java calls deep, so a small thread stack can run out
+            // before MAX_DEPTH (if making the error overflows too, the caller's catch tries again)
+            throw Function.outOfStack(function.name);
+        } finally {
+            slots = callerSlots;
+            bigSlots = callerBigSlots;
+            depth = callerDepth;
+            argumentCount = base;
+            returning = false; // (both only still set if an error got in between)
+            tailCall = null;
         }
     }
 
-    // Check if token type is an operator or comparison
-    private boolean isOperator(TokenType t) {
-        switch (t) {
-            case PLUS: case MINUS: case STAR: case SLASH: case MOD:
-            case EQEQ: case NEQ: case GT: case GTE: case LT: case LTE:
-                return true;
-            default:
-                return false;
+    private void check(Function function, int base) {
+        if (!function.isDefined()) {
+            throw Function.notDefined(function.name);
+        }
+        if (argumentCount - base != function.paramCount) {
+            throw Function.wrongArguments(function.name, function.paramCount, argumentCount - base);
         }
     }
 
-    // ---------------------------------
-    // Helpers for line-based parsing
-    // ---------------------------------
+    // Make the frame for 'depth' the current slots: the arguments first, the other variables 0
+    private void enter(Function function, int base) {
+        int size = function.slotNames.length;
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            bigFrames = Arrays.copyOf(bigFrames, depth * 2);
+        }
+        long[] frame = frames[depth];
+        if (frame == null || frame.length < size) {
+            frame = frames[depth] = new long[Math.max(size, 8)];
+            bigFrames[depth] = new BigInteger[frame.length];
+        }
+        int count = function.paramCount;
+        System.arraycopy(arguments, base, frame, 0, count);
+        System.arraycopy(bigArguments, base, bigFrames[depth], 0, count);
+        Arrays.fill(frame, count, size, 0);
+        Arrays.fill(bigFrames[depth], count, size, null); // don't keep an earlier call's big numbers alive
+        argumentCount = base;
+        slots = frame;
+        bigSlots = bigFrames[depth];
+    }
 
-    // True if we've consumed all lines
-    private boolean isAtEnd() {
-        return currentLine >= lines.size();
+    // Put a value just computed by Expr.eval() into a variable (BIG takes bigResult along)
+    void store(int slot, long value) {
+        slots[slot] = value;
+        if (value == Numbers.BIG) {
+            bigSlots[slot] = bigResult;
+        }
     }
 
-    // Get the current line object
-    private Line getLine() {
-        return lines.get(currentLine);
+    // Turn a BigInteger result into a value: the long if it fits, else BIG with bigResult set
+    long big(BigInteger value) {
+        long result = Numbers.fit(value);
+        if (result == Numbers.BIG) {
+            bigResult = value;
+        }
+        return result;
     }
 
-    // Move to the next line
-    private void advanceLine() {
-        currentLine++;
+    /**
+     Break tokens into lines, read indentation from the original source lines,
+     and build a "Line" object for each row of code.
+     */
+    static List<Line> splitIntoIndentedLines(TokenBuffer tokens, String source) {
+        int[] indentLevels = (tokens.lineIndents != null && source == tokens.source)
+                ? tokens.lineIndents // ParallelLexer counted them already
+                : countIndents(source, 0, source.length());
+
+        List<Line> lineList = new ArrayList<>();
+        int lineIndex = 0;
+        int lineStart = 0; // first token of the line we're collecting
+
+        // Walk through all tokens, grouping them until we see NEWLINE
+        for (int i = 0; i < tokens.size(); i++) {
+            TokenType type = tokens.type(i);
+            if (type == TokenType.NEWLINE) {
+                // That ends one physical line
+                lineList.add(new Line(tokens, lineStart, i, indentLevels[lineIndex]));
+                lineStart = i + 1;
+                lineIndex++;
+            } else if (type == TokenType.EOF) {
+                // End of file: add leftover tokens if any, and stop
+                if (i > lineStart) {
+                    lineList.add(new Line(tokens, lineStart, i, indentLevels[lineIndex]));
+                }
+                return lineList;
+            }
+        }
+
+        // If there was no EOF token, add the leftover tokens anyway
+        if (tokens.size() > lineStart) {
+            int indent = (lineIndex < indentLevels.length) ? indentLevels[lineIndex] : 0; // fallback if mismatch
+            lineList.add(new Line(tokens, lineStart, tokens.size(), indent));
+        }
+        return lineList;
     }
 
-    // Reset the line pointer (used in while loops to re-check conditions)
-    private void resetTo(int lineIndex) {
-        currentLine = lineIndex;
+    // Count how many spaces are at the beginning of every source line (split by '\n')
+    // of source[from, to); 'from' has to be where a line starts. One more entry than there are '\n's
+    static int[] countIndents(String source, int from, int to) {
+        int lineCount = 1;
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') lineCount++;
+        }
+
+        int[] indentLevels = new int[lineCount];
+        int line = 0;
+        boolean atLineStart = true;
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+                atLineStart = true;
+            } else if (atLineStart && c == ' ') {
+                indentLevels[line]++;
+            } else {
+                atLineStart = false;
+            }
+        }
+        return indentLevels;
     }
 }
@@ -0,0 +1,205 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ InterpreterMetrics: live counters for a group of Interpreters and VMs
+ (a service's pool, a BatchRunner, ...), shown over JMX.
+
+ Give it to every Interpreter/VM of the group with setMetrics(). While a program runs
+ it counts in plain fields of its own Interpreter/VM, which only its thread touches;
+ they are added to the shared LongAdders every PUBLISH_EVERY statements or loop iterations
+ (jumps for a VM), when a loop ends, and at the end of the run. So the statements themselves
+ never touch anything shared, runs on many threads don't wait for each other here,
+ and a long run still shows up while it runs.
+
+ Run durations go into a small log-scale histogram (8 buckets per power of two),
+ which gives p50/p99 to about 12%.
+ */
+public final class InterpreterMetrics implements InterpreterMetricsMBean, AutoCloseable {
+    // How much an Interpreter/VM counts before it hands its counts over
+    static final long PUBLISH_EVERY = 1 << 16;
+
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder loopIterations = new LongAdder();
+    private final LongAdder printed = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Histogram durations = new Histogram();
+
+    // For getStatementsPerSecond(): statements and time at the previous read
+    private long lastStatements = 0;
+    private long lastRead = System.nanoTime();
+
+    private ObjectName registeredAs; // null if not registered
+
+    /**
+     Metrics that aren't registered with JMX (read them with the getters).
+     */
+    public InterpreterMetrics() {
+    }
+
+    /**
+     New metrics, registered with the platform MBeanServer
+     as "interpreter:type=Metrics,name=<name>". close() unregisters them.
+     */
+    public static InterpreterMetrics register(String name) {
+        InterpreterMetrics metrics = new InterpreterMetrics();
+        try {
+            ObjectName objectName = ObjectName.getInstance("interpreter:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            metrics.registeredAs = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Can't register metrics '" + name + "'", e);
+        }
+        return metrics;
+    }
+
+    /**
+     Unregister from JMX (if registered). The counters stay readable.
+     */
+    @Override
+    public void close() {
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException e) {
+                // already gone
+            }
+            registeredAs = null;
+        }
+    }
+
+    // ---------------------------------
+    // Recording (Interpreter and VM call these)
+    // ---------------------------------
+
+    void runStarted() {
+        active.increment();
+    }
+
+    // What a run counted since it last called this
+    void add(long statementCount, long iterationCount, long printCount) {
+        statements.add(statementCount);
+        loopIterations.add(iterationCount);
+        printed.add(printCount);
+    }
+
+    void runEnded(long nanos, boolean failedRun) {
+        active.decrement();
+        completed.increment();
+        if (failedRun) {
+            failed.increment();
+        }
+        durations.record(nanos);
+    }
+
+    // ---------------------------------
+    // Reading
+    // ---------------------------------
+
+    @Override
+    public long getStatementsExecuted() {
+        return statements.sum();
+    }
+
+    @Override
+    public synchronized double getStatementsPerSecond() {
+        long now = System.nanoTime();
+        long total = statements.sum();
+        double rate = (total - lastStatements) * 1e9 / Math.max(now - lastRead, 1);
+        lastStatements = total;
+        lastRead = now;
+        return rate;
+    }
+
+    @Override
+    public long getLoopIterations() {
+        return loopIterations.sum();
+    }
+
+    @Override
+    public long getLinesPrinted() {
+        return printed.sum();
+    }
+
+    @Override
+    public long getActiveRuns() {
+        return active.sum();
+    }
+
+    @Override
+    public long getCompletedRuns() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getFailedRuns() {
+        return failed.sum();
+    }
+
+    @Override
+    public double getRunDurationP50Millis() {
+        return durations.percentile(0.50) / 1e6;
+    }
+
+    @Override
+    public double getRunDurationP99Millis() {
+        return durations.percentile(0.99) / 1e6;
+    }
+
+    /**
+     Counts of durations in nanoseconds. Values below 8 get a bucket each; above that,
+     every range 2^k..2^(k+1) is cut into 8 equal buckets.
+     */
+    private static final class Histogram {
+        private static final int SUB_BUCKETS = 8; // per power of two
+        private final AtomicLongArray counts = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+        }
+
+        // The value below which a fraction p of the recorded values are (middle of its bucket), 0 if empty
+        double percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return (lowerBound(i) + lowerBound(i + 1)) / 2.0;
+                }
+            }
+            return lowerBound(counts.length() - 1);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int k = 63 - Long.numberOfLeadingZeros(value); // 2^k <= value, k >= 3
+            int sub = (int) (value >>> (k - 3)) & (SUB_BUCKETS - 1);
+            return (k - 2) * SUB_BUCKETS + sub;
+        }
+
+        // Smallest value in bucket i (as a double: the last bucket goes past Long.MAX_VALUE)
+        private static double lowerBound(int i) {
+            if (i < SUB_BUCKETS) {
+                return i;
+            }
+            int k = i / SUB_BUCKETS + 2;
+            int sub = i % SUB_BUCKETS;
+            return (double) (SUB_BUCKETS + sub) * Math.pow(2, k - 3);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ InterpreterMetricsMBean: what InterpreterMetrics shows over JMX
+ (e.g. in JConsole, under "interpreter").
+ */
+public interface InterpreterMetricsMBean {
+
+    // Statements the tree interpreter ran itself (not counted inside JIT-compiled loops)
+    long getStatementsExecuted();
+
+    // Statements per second since the previous read of this attribute
+    double getStatementsPerSecond();
+
+    // Loop iterations: interpreted while-iterations (tree), jumps (VM)
+    long getLoopIterations();
+
+    // Values printed
+    long getLinesPrinted();
+
+    // Runs going on right now
+    long getActiveRuns();
+
+    // Runs that ended, and how many of those ended with an error
+    long getCompletedRuns();
+
+    long getFailedRuns();
+
+    // Run durations over all completed runs (about 12% precision)
+    double getRunDurationP50Millis();
+
+    double getRunDurationP99Millis();
+}
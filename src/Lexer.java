@@ -1,18 +1,110 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  what does lexer class do?
  Lexer: Converts raw source string into a stream of tokens.
 
- It recognizes keywords (if, else, while, print), operators (+, -, *, etc.),
- identifiers, numbers, colons, and so forth.
+ It recognizes keywords (if, else, while, print, def, return), operators (+, -, *, etc.),
+ identifiers, numbers, colons, brackets, and so forth.
+
+ The scan is table driven: every ASCII char has a class (CLASSES), and the class picks
+ what to do, so there's one small switch per token instead of a chain of char compares.
+ Names and numbers are read by tight loops that hash (or decode) as they go, and keywords
+ are found by a perfect hash over the raw chars, so a keyword never touches the name table.
  */
 class Lexer {
+
+    // ---------------------------------
+    // Character classes (chars from 128 up are all OTHER)
+    // ---------------------------------
+
+    private static final byte OTHER = 0;   // not allowed (outside comments)
+    private static final byte SPACE = 1;   // ' ', '\t', '\r': skipped
+    private static final byte NEWLINE = 2;
+    private static final byte COMMENT = 3; // '#': skip to the end of the line
+    private static final byte SINGLE = 4;  // always a one-char token (ONE_CHAR)
+    private static final byte PAIR = 5;    // '=', '!', '<', '>': one char, or two with a '=' after (WITH_EQ)
+    private static final byte DIGIT = 6;
+    private static final byte LETTER = 7;  // a-z, A-Z, '_' (a name goes on while the class is >= DIGIT)
+
+    private static final byte[] CLASSES = new byte[128];
+    private static final TokenType[] ONE_CHAR = new TokenType[128]; // '!' alone is null: we ignore it for now
+    private static final TokenType[] WITH_EQ = new TokenType[128];
+
+    static {
+        CLASSES[' '] = SPACE;
+        CLASSES['\t'] = SPACE;
+        CLASSES['\r'] = SPACE;
+        CLASSES['\n'] = NEWLINE;
+        CLASSES['#'] = COMMENT;
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = DIGIT;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = LETTER;
+            CLASSES[Character.toUpperCase(c)] = LETTER;
+        }
+        CLASSES['_'] = LETTER;
+
+        single('+', TokenType.PLUS);
+        single('-', TokenType.MINUS);
+        single('*', TokenType.STAR);
+        single('/', TokenType.SLASH);
+        single('%', TokenType.MOD);
+        single('(', TokenType.LPAREN);   // parentheses for expressions/print calls
+        single(')', TokenType.RPAREN);
+        single('[', TokenType.LBRACKET); // brackets and commas for arrays: a[i], [1, 2, 3], add(a, b)
+        single(']', TokenType.RBRACKET);
+        single(',', TokenType.COMMA);
+        single(':', TokenType.COLON);
+
+        pair('=', TokenType.EQ, TokenType.EQEQ);
+        pair('!', null, TokenType.NEQ);
+        pair('>', TokenType.GT, TokenType.GTE);
+        pair('<', TokenType.LT, TokenType.LTE);
+    }
+
+    private static void single(char c, TokenType type) {
+        CLASSES[c] = SINGLE;
+        ONE_CHAR[c] = type;
+    }
+
+    private static void pair(char c, TokenType alone, TokenType withEq) {
+        CLASSES[c] = PAIR;
+        ONE_CHAR[c] = alone;
+        WITH_EQ[c] = withEq;
+    }
+
+    // ---------------------------------
+    // Keywords: (length + first char) & 7 is different for each one,
+    // so a name can only be the keyword in its slot
+    // ---------------------------------
+
+    private static final int[] KEYWORD_AT = new int[8]; // slot => keyword id (see TokenBuffer.KEYWORDS), -1 = none
+
+    static {
+        Arrays.fill(KEYWORD_AT, -1);
+        for (int k = 0; k < TokenBuffer.KEYWORDS.length; k++) {
+            String word = TokenBuffer.KEYWORDS[k];
+            int slot = keywordSlot(word.length(), word.charAt(0));
+            if (KEYWORD_AT[slot] >= 0) {
+                throw new IllegalStateException("Keywords " + word + " and "
+                        + TokenBuffer.KEYWORDS[KEYWORD_AT[slot]] + " share a slot, change keywordSlot()");
+            }
+            KEYWORD_AT[slot] = k;
+        }
+    }
+
+    private static int keywordSlot(int length, char first) {
+        return (length + first) & 7;
+    }
+
     private final String source;  // This takes entire code as a single string
     private final int length;     // The total size of our input
-    private int current = 0;      // Index tracking our position in source
-    private List<Token> tokens = new ArrayList<>(); // Accumulates identified tokens
+    private int limit;            // Where the part we're scanning ends (length, unless ParallelLexer gave us a chunk)
+    private TokenBuffer tokens;   // Accumulates identified tokens (see TokenBuffer)
 
     /**
      Construct a Lexer for the given source code.
@@ -26,182 +118,161 @@ class Lexer {
      Main method to scan through the source and build a list of tokens.
      */
     public List<Token> tokenize() {
-        // We read character by character until end
-        while (!isAtEnd()) {
-            char c = advance();
-            switch (c) {
-                case '+': addToken(TokenType.PLUS, "+"); break;
-                case '-': addToken(TokenType.MINUS, "-"); break;
-                case '*': addToken(TokenType.STAR, "*"); break;
-                case '/': addToken(TokenType.SLASH, "/"); break;
-                case '%': addToken(TokenType.MOD, "%"); break;
-
-                // Parentheses for expressions/print calls
-                case '(':
-                    addToken(TokenType.LPAREN, "(");
-                    break;
-                case ')':
-                    addToken(TokenType.RPAREN, ")");
-                    break;
+        return tokenizeToBuffer().toTokens();
+    }
 
-                // '=' can be assignment or '==' compare
-                case '=':
-                    if (match('=')) {
-                        addToken(TokenType.EQEQ, "==");
-                    } else {
-                        addToken(TokenType.EQ, "=");
-                    }
-                    break;
+    /**
+     Same scan, but the tokens stay in a compact TokenBuffer
+     (a few arrays) instead of one Token object per lexeme.
+     */
+    TokenBuffer tokenizeToBuffer() {
+        Events.Lex event = new Events.Lex();
+        event.begin();
+        return committed(event, scan());
+    }
 
-                // '!' might be !=
-                case '!':
-                    if (match('=')) {
-                        addToken(TokenType.NEQ, "!=");
-                    }
-                    // If it's just '!', ignoring for now
-                    break;
+    /**
+     Same tokens as tokenizeToBuffer(), but a big source is cut into chunks at line ends
+     and the chunks are lexed on the common ForkJoinPool (see ParallelLexer).
+     */
+    TokenBuffer tokenizeParallel() {
+        Events.Lex event = new Events.Lex();
+        event.begin();
+        return committed(event, ParallelLexer.tokenize(source, ForkJoinPool.commonPool(), ParallelLexer.CHUNK_CHARS));
+    }
 
-                // '>' can be > or >=
-                case '>':
-                    if (match('=')) {
-                        addToken(TokenType.GTE, ">=");
-                    } else {
-                        addToken(TokenType.GT, ">");
-                    }
+    // Finish the JFR event of a lex (see Events)
+    private TokenBuffer committed(Events.Lex event, TokenBuffer result) {
+        if (event.shouldCommit()) {
+            event.characters = length;
+            event.tokens = result.size();
+            event.commit();
+        }
+        return result;
+    }
+
+    // The scan itself, without the JFR event. TokenStream lexes a file one chunk of lines at a time
+    // through this, so a streamed file gives no Lex events (its Compile event covers it).
+    TokenBuffer scan() {
+        scan(0, length);
+
+        // Add an end-of-file token so the interpreter knows we're done
+        tokens.add(TokenType.EOF, length, 0, 0);
+        return tokens;
+    }
+
+    // The tokens of source[from, to), without an EOF (ParallelLexer lexes a chunk like this).
+    // 'from' has to be where a line starts and 'to' right after a '\n' (or the end),
+    // so no token is cut in two. Positions in the buffer are still positions in the whole source
+    TokenBuffer scan(int from, int to) {
+        tokens = new TokenBuffer(source);
+        limit = to;
+        int i = from;
+
+        while (i < limit) {
+            char c = source.charAt(i);
+            switch ((c < 128) ? CLASSES[c] : OTHER) {
+                case SPACE:
+                    i++;
                     break;
 
-                // '<' can be < or <=
-                case '<':
-                    if (match('=')) {
-                        addToken(TokenType.LTE, "<=");
-                    } else {
-                        addToken(TokenType.LT, "<");
-                    }
+                // End of line => NEWLINE token
+                case NEWLINE:
+                    tokens.add(TokenType.NEWLINE, i, 1, 0);
+                    i++;
                     break;
 
-                case ':':
-                    addToken(TokenType.COLON, ":");
+                case SINGLE:
+                    tokens.add(ONE_CHAR[c], i, 1, 0);
+                    i++;
                     break;
 
-                // # => comment, skip until newline
-                case '#':
-                    while (!isAtEnd() && peek() != '\n') {
-                        advance();
+                // '==', '!=', '>=', '<=' or the char alone
+                case PAIR:
+                    if (i + 1 < limit && source.charAt(i + 1) == '=') {
+                        tokens.add(WITH_EQ[c], i, 2, 0);
+                        i += 2;
+                    } else {
+                        if (ONE_CHAR[c] != null) {
+                            tokens.add(ONE_CHAR[c], i, 1, 0);
+                        }
+                        i++;
                     }
                     break;
 
-                // End of line => NEWLINE token
-                case '\n':
-                    addToken(TokenType.NEWLINE, "\\n");
+                case DIGIT:
+                    i = number(i);
                     break;
 
-                // Whitespace we just skip (except newline)
-                case ' ':
-                case '\r':
-                case '\t':
+                case LETTER:
+                    i = identifier(i);
                     break;
 
-                // If it's a digit, parse a multi-digit number
-                default:
-                    if (isDigit(c)) {
-                        number(c);
-                    }
-                    // If it's an alpha char, parse an identifier
-                    else if (isAlpha(c)) {
-                        identifier(c);
-                    } else {
-                        // If it's something unrecognized throws an exception
-                        throw new RuntimeException("Unexpected character: " + c);
+                // # => comment, skip until newline (indexOf is a JVM intrinsic that looks at many chars at once)
+                case COMMENT:
+                    i = source.indexOf('\n', i);
+                    if (i < 0 || i > limit) {
+                        i = limit;
                     }
                     break;
+
+                // If it's something unrecognized throws an exception
+                default:
+                    throw new RuntimeException("Unexpected character: " + c);
             }
         }
-
-        // Add an end-of-file token so the interpreter knows we're done
-        addToken(TokenType.EOF, "");
         return tokens;
     }
 
-    // Check if we've reached the end of the source
-    private boolean isAtEnd() {
-        return current >= length;
-    }
-
-    // Reads the current character then advances the index
-    private char advance() {
-        return source.charAt(current++);
-    }
-
-    // If the next character matches expected, consume it + return true
-    private boolean match(char expected) {
-        if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
-        current++;
-        return true;
-    }
-
-    // Add a Token of a given type and text to our list
-    private void addToken(TokenType type, String text) {
-        tokens.add(new Token(type, text));
-    }
-
-    // Look at the next character but don't consume it
-    private char peek() {
-        if (isAtEnd()) return '\0';
-        return source.charAt(current);
-    }
-
-    // True if the character is between '0' and '9'
-    private boolean isDigit(char c) {
-        return (c >= '0' && c <= '9');
-    }
-
-    // Keep reading digits for multi-digit numbers
-    private void number(char firstChar) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(firstChar);
-
-        while (!isAtEnd() && isDigit(peek())) {
-            sb.append(advance());
+    // Read the digits from start, decoding them on the way; returns where the number ends
+    private int number(int start) {
+        long value = 0;
+        int end = start;
+        while (end < limit) {
+            int digit = source.charAt(end) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (value <= Integer.MAX_VALUE) { // past that it's a big number anyway, stop before the long overflows
+                value = value * 10 + digit;
+            }
+            end++;
         }
-        addToken(TokenType.NUMBER, sb.toString());
-    }
-
-    // Check if character is a letter or underscore
-    private boolean isAlpha(char c) {
-        return (c >= 'a' && c <= 'z') ||
-                (c >= 'A' && c <= 'Z') ||
-                (c == '_');
+        tokens.addNumber(start, end - start, value);
+        return end;
     }
 
-    // Check if character is alpha or digit
-    private boolean isAlphaNumeric(char c) {
-        return isAlpha(c) || isDigit(c);
-    }
-
-    // Parse an identifier (or keyword) from the source
-    private void identifier(char firstChar) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(firstChar);
-
-        while (!isAtEnd() && isAlphaNumeric(peek())) {
-            sb.append(advance());
+    // Read an identifier (or keyword) from start; returns where it ends.
+    // The hash is the one String.hashCode() would give, worked out while we read the chars
+    private int identifier(int start) {
+        int hash = source.charAt(start);
+        int end = start + 1;
+        while (end < limit) {
+            char c = source.charAt(end);
+            if (c >= 128 || CLASSES[c] < DIGIT) {
+                break;
+            }
+            hash = 31 * hash + c;
+            end++;
         }
-        String text = sb.toString();
 
-        // If it matches a known keyword, update token type
-        TokenType type = checkKeyword(text);
-        addToken(type, text);
+        int keyword = keyword(start, end);
+        if (keyword >= 0) {
+            tokens.add(TokenBuffer.KEYWORD_TYPES[keyword], start, end - start, keyword);
+        } else {
+            tokens.add(TokenType.IDENT, start, end - start, tokens.intern(start, end, hash));
+        }
+        return end;
     }
 
-    // Check for 'if', 'else', 'while', 'print' or default to IDENT
-    private TokenType checkKeyword(String text) {
-        switch (text) {
-            case "if":    return TokenType.IF;
-            case "else":  return TokenType.ELSE;
-            case "while": return TokenType.WHILE;
-            case "print": return TokenType.PRINT;
-            default:      return TokenType.IDENT;
+    // The keyword id of source[start, end), or -1 if it's just a name
+    private int keyword(int start, int end) {
+        int n = end - start;
+        int k = KEYWORD_AT[keywordSlot(n, source.charAt(start))];
+        if (k < 0) {
+            return -1;
         }
+        String word = TokenBuffer.KEYWORDS[k];
+        return (word.length() == n && source.regionMatches(start, word, 0, n)) ? k : -1;
     }
 }
@@ -0,0 +1,824 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ LoopJit: the second tier for hot while-loops.
+ When a Stmt.While has run enough iterations, we write a tiny JVM class for it by hand
+ (a class file in a byte[]) and load it with MethodHandles.Lookup.defineHiddenClass.
+ Every script variable the loop touches becomes a plain Java long local:
+ they are read from the slots at the start and written back when the loop ends
+ (or throws), so HotSpot can optimize the loop like normal Java code.
+
+ Compiled code only does longs. Every iteration ends by copying the variables the loop assigns
+ into a second set of locals (register moves, no heap stores), so when a result doesn't fit
+ (see Numbers) we write those copies back and return false: the slots then hold the variables
+ as they were at the start of that iteration, and the interpreter runs the loop on from there
+ with big numbers. That's also why loops that print are never compiled:
+ the iteration could print twice. Loops that change arrays aren't compiled for the same
+ reason; reading elements (a[i], len, sum, max) is fine and goes through the helpers below.
+
+ For an Interpreter with InterpreterMetrics we build a second class that also counts in locals
+ and hands the counts to the Interpreter whenever it returns or throws (see count()).
+ A block an error stops halfway isn't counted. Counting slows a loop with ifs down a lot,
+ so an Interpreter without metrics gets the class that doesn't count.
+
+ The generated class looks roughly like:
+   final class LoopJit$Loop implements CompiledLoop {
+       public boolean run(Interpreter in, long[] slots) {
+           long i = slots[0], sum = slots[1], ...;
+           long i0 = i, sum0 = sum, ...;    // only the variables the loop assigns
+           long iterations = 0, innerIterations = 0, statements = 0; // counting only (N = statements in the body)
+           if (i == BIG || sum == BIG ...) return false;
+           try {
+               while (...) { ...; iterations++; i0 = i; sum0 = sum; ... }
+           } catch (TooBig e) {
+               slots[0] = i0; slots[1] = sum0; ...
+               count(in, iterations, innerIterations, statements, N);
+               return false;
+           } catch (Throwable e) {
+               slots[0] = i; slots[1] = sum; ...
+               count(in, iterations, innerIterations, statements, N);
+               throw e;
+           }
+           slots[0] = i; slots[1] = sum; ...
+           count(in, iterations, innerIterations, statements, N);
+           return true;
+       }
+   }
+ */
+final class LoopJit {
+    private static final String CLASS_NAME = "LoopJit$Loop";
+
+    // Class file limits we don't bother to work around; such loops just stay interpreted
+    private static final int MAX_LOCALS = 250;
+    private static final int MAX_CODE = 32000;
+
+    private LoopJit() {
+    }
+
+    /**
+     Compile a while-loop into a CompiledLoop; 'counting' adds the counts for InterpreterMetrics.
+     Returns null if the loop uses something we can't compile.
+     */
+    static CompiledLoop compile(Stmt.While loop, boolean counting) {
+        try {
+            byte[] classBytes = new ClassBuilder(loop, counting).build();
+            if (classBytes == null) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            return (CompiledLoop) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            // A bug in the generated code must never break the program: keep interpreting
+            return null;
+        }
+    }
+
+    // ---------------------------------
+    // Runtime helpers called from generated code
+    // (HotSpot inlines these, so they cost nothing)
+    // ---------------------------------
+
+    /**
+     Thrown by the helpers when a result doesn't fit in a long.
+     One shared instance without a stack trace, it never leaves the compiled loop.
+     */
+    static final class TooBig extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooBig() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final TooBig TOO_BIG = new TooBig();
+
+    private static long fits(long value) {
+        if (value == Numbers.BIG) {
+            throw TOO_BIG;
+        }
+        return value;
+    }
+
+    static long add(long a, long b) { return fits(Numbers.add(a, b)); }
+    static long sub(long a, long b) { return fits(Numbers.subtract(a, b)); }
+    static long mul(long a, long b) { return fits(Numbers.multiply(a, b)); }
+    static long div(long a, long b) { return Numbers.divide(a, b); }
+    static long mod(long a, long b) { return Numbers.modulo(a, b); }
+
+    static long eq(long a, long b) { return (a == b) ? 1 : 0; }
+    static long ne(long a, long b) { return (a != b) ? 1 : 0; }
+    static long gt(long a, long b) { return (a > b) ? 1 : 0; }
+    static long ge(long a, long b) { return (a >= b) ? 1 : 0; }
+    static long lt(long a, long b) { return (a < b) ? 1 : 0; }
+    static long le(long a, long b) { return (a <= b) ? 1 : 0; }
+
+    static long fail(String message) {
+        throw new RuntimeException(message);
+    }
+
+    // What the loop did, for InterpreterMetrics. The N statements of the loop body are counted
+    // from the iterations (a second counter in the loop slows it down a lot), the statements
+    // of if branches and inner loops by adding up whole blocks as they end
+    static void count(Interpreter in, long iterations, long innerIterations, long statements, int bodyLength) {
+        in.countIterations(iterations + innerIterations);
+        in.countStatements(statements + iterations * bodyLength);
+    }
+
+    // Arrays, by array slot (see Interpreter.arrays)
+    static long element(Interpreter in, int array, long index) {
+        long[] elements = in.arrays[array];
+        if (index < 0 || index >= elements.length) {
+            throw ArrayOps.outOfRange(in.arrayName(array), Long.toString(index), elements.length);
+        }
+        return elements[(int) index];
+    }
+
+    static long len(Interpreter in, int array) {
+        return in.arrays[array].length;
+    }
+
+    static long sum(Interpreter in, int array) {
+        return fits(ArrayOps.sum(in.arrays[array]));
+    }
+
+    static long max(Interpreter in, int array) {
+        long[] elements = in.arrays[array];
+        if (elements.length == 0) {
+            throw ArrayOps.empty("max", in.arrayName(array));
+        }
+        return ArrayOps.max(elements);
+    }
+
+    // ---------------------------------
+    // Class file writer
+    // ---------------------------------
+
+    // JVM opcodes we use
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int LCONST_0 = 0x09;
+    private static final int LCONST_1 = 0x0a;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int LLOAD = 0x16;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int LALOAD = 0x2f;
+    private static final int LSTORE = 0x37;
+    private static final int LASTORE = 0x50;
+    private static final int POP = 0x57;
+    private static final int LADD = 0x61;
+    private static final int I2L = 0x85;
+    private static final int LCMP = 0x94;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int ATHROW = 0xbf;
+
+    // The fixed locals of run(): this, in, slots. Script variables start after them,
+    // two JVM locals per long.
+    private static final int FIRST_VAR_LOCAL = 3;
+
+    /**
+     Writes the class file for one loop.
+     */
+    private static final class ClassBuilder {
+        private final Stmt.While loop;
+
+        // Constant pool, built as we go
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+
+        // Bytecode of run()
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        // slot number => JVM local index
+        private final Map<Integer, Integer> localOf = new HashMap<>();
+        private final List<Integer> usedSlots = new ArrayList<>();
+
+        // slot the loop assigns => the JVM local with its value at the start of the iteration
+        private final Map<Integer, Integer> savedOf = new TreeMap<>();
+
+        // JVM locals counting for InterpreterMetrics (see count()), if we count
+        private final boolean counting;
+        private int iterationsLocal;
+        private int innerIterationsLocal;
+        private int statementsLocal;
+
+        // Every code offset that is a branch target or handler (needs a stack map frame)
+        // => the class on the stack there (0 = empty stack)
+        private final TreeMap<Integer, Integer> frames = new TreeMap<>();
+        private int tooBigHandler = -1;
+        private int anyHandler = -1;
+
+        // Places where a jump offset still has to be filled in: position => label
+        private final List<int[]> fixups = new ArrayList<>();
+        private final List<Integer> labels = new ArrayList<>();
+
+        private int maxStack = 4; // loading and writing back a variable needs 4
+
+        ClassBuilder(Stmt.While loop, boolean counting) {
+            this.loop = loop;
+            this.counting = counting;
+        }
+
+        /**
+         Returns the class file, or null if the loop can't be compiled.
+         */
+        byte[] build() throws IOException {
+            if (!collectSlots(loop)) {
+                return null;
+            }
+            int saved = FIRST_VAR_LOCAL + 2 * usedSlots.size();
+            for (Map.Entry<Integer, Integer> entry : savedOf.entrySet()) {
+                entry.setValue(saved);
+                saved += 2;
+            }
+            iterationsLocal = saved;
+            innerIterationsLocal = saved + 2;
+            statementsLocal = saved + 4;
+            if (FIRST_VAR_LOCAL + 2 * longLocals() > MAX_LOCALS) {
+                return null;
+            }
+
+            // Load all variables into locals (and the start-of-iteration copies), counters at 0
+            if (counting) {
+                for (int counter : new int[]{iterationsLocal, innerIterationsLocal, statementsLocal}) {
+                    code.write(LCONST_0);
+                    code.write(LSTORE);
+                    code.write(counter);
+                }
+            }
+            for (int slot : usedSlots) {
+                code.write(ALOAD_2);
+                pushInt(slot);
+                code.write(LALOAD);
+                code.write(LSTORE);
+                code.write(localOf.get(slot));
+            }
+            saveIteration();
+
+            // Any big number: leave it all to the interpreter
+            int giveUpLabel = newLabel();
+            for (int slot : usedSlots) {
+                code.write(LLOAD);
+                code.write(localOf.get(slot));
+                code.write(LDC2_W);
+                writeShort(code, longConstant(Numbers.BIG));
+                code.write(LCMP);
+                jump(IFEQ, giveUpLabel);
+            }
+
+            // The loop, keeping copies of the variables at the end of every iteration
+            int tryStart = code.size();
+            int topLabel = newLabel();
+            int exitLabel = newLabel();
+            placeLabel(topLabel);
+            jumpIfFalse(loop.condition, exitLabel);
+            statement(loop.body);
+            addTo(iterationsLocal, 1);
+            saveIteration();
+            jump(GOTO, topLabel);
+            placeLabel(exitLabel);
+            int tryEnd = code.size();
+            writeBack();
+            count();
+            code.write(ICONST_1);
+            code.write(IRETURN);
+
+            // Too big: put back the variables as they were at the start of this iteration, return false
+            tooBigHandler = code.size();
+            frames.put(tooBigHandler, classConstant("LoopJit$TooBig"));
+            code.write(POP);
+            for (Map.Entry<Integer, Integer> entry : savedOf.entrySet()) {
+                code.write(ALOAD_2);
+                pushInt(entry.getKey());
+                code.write(LLOAD);
+                code.write(entry.getValue());
+                code.write(LASTORE);
+            }
+            count();
+            placeLabel(giveUpLabel);
+            code.write(ICONST_0);
+            code.write(IRETURN);
+
+            // If anything else throws: still write the variables back, then rethrow
+            anyHandler = code.size();
+            frames.put(anyHandler, classConstant("java/lang/Throwable"));
+            writeBack();
+            count();
+            code.write(ATHROW);
+
+            if (code.size() > MAX_CODE) {
+                return null;
+            }
+            byte[] body = code.toByteArray();
+            for (int[] fixup : fixups) {
+                // jump offsets are relative to the jump instruction itself
+                int offset = labels.get(fixup[1]) - fixup[0];
+                body[fixup[0] + 1] = (byte) (offset >> 8);
+                body[fixup[0] + 2] = (byte) offset;
+            }
+            return writeClass(body, tryStart, tryEnd);
+        }
+
+        // Give every slot the loop reads or writes a JVM local. False if we meet an unknown node.
+        private boolean collectSlots(Stmt stmt) {
+            if (stmt instanceof Stmt.Block) {
+                for (Stmt s : ((Stmt.Block) stmt).body) {
+                    if (!collectSlots(s)) return false;
+                }
+                return true;
+            } else if (stmt instanceof Stmt.Assign) {
+                useSlot(((Stmt.Assign) stmt).slot);
+                savedOf.put(((Stmt.Assign) stmt).slot, 0); // its local is picked in build()
+                return collectSlots(((Stmt.Assign) stmt).value);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                return collectSlots(ifStmt.condition) && collectSlots(ifStmt.then)
+                        && (ifStmt.otherwise == null || collectSlots(ifStmt.otherwise));
+            } else if (stmt instanceof Stmt.While) {
+                if (stmt instanceof Stmt.CountedWhile && stmt != loop) {
+                    // The interpreter does this inner loop in O(1); compiled, it would iterate
+                    return false;
+                }
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                return collectSlots(whileStmt.condition) && collectSlots(whileStmt.body);
+            }
+            // Print too: we might have to redo an iteration, and can't take back what it printed
+            return false;
+        }
+
+        private boolean collectSlots(Expr expr) {
+            if (expr instanceof Expr.Num || expr instanceof Expr.Fail) {
+                return true;
+            } else if (expr instanceof Expr.Var) {
+                useSlot(((Expr.Var) expr).slot);
+                return true;
+            } else if (expr instanceof Expr.Binary) {
+                return collectSlots(((Expr.Binary) expr).left) && collectSlots(((Expr.Binary) expr).right);
+            } else if (expr instanceof Expr.Element) {
+                return collectSlots(((Expr.Element) expr).index);
+            }
+            return expr instanceof Expr.ArrayCall;
+        }
+
+        private void useSlot(int slot) {
+            if (!localOf.containsKey(slot)) {
+                localOf.put(slot, FIRST_VAR_LOCAL + 2 * usedSlots.size());
+                usedSlots.add(slot);
+            }
+        }
+
+        // Store the variables the loop assigns into slots (the others never change)
+        private void writeBack() throws IOException {
+            for (int slot : savedOf.keySet()) {
+                code.write(ALOAD_2);
+                pushInt(slot);
+                code.write(LLOAD);
+                code.write(localOf.get(slot));
+                code.write(LASTORE);
+            }
+        }
+
+        // Copy the variables the loop assigns to their start-of-iteration locals
+        private void saveIteration() throws IOException {
+            for (Map.Entry<Integer, Integer> entry : savedOf.entrySet()) {
+                code.write(LLOAD);
+                code.write(localOf.get(entry.getKey()));
+                code.write(LSTORE);
+                code.write(entry.getValue());
+            }
+        }
+
+        // Add to a counter local (if we count)
+        private void addTo(int local, int amount) throws IOException {
+            if (counting) {
+                code.write(LLOAD);
+                code.write(local);
+                pushLong(amount);
+                code.write(LADD);
+                code.write(LSTORE);
+                code.write(local);
+            }
+        }
+
+        // count(in, iterations, innerIterations, statements, body length), if we count;
+        // on top of whatever one word is on the stack
+        private void count() throws IOException {
+            if (!counting) {
+                return;
+            }
+            maxStack = Math.max(maxStack, 1 + 1 + 2 + 2 + 2 + 1);
+            code.write(ALOAD_1);
+            code.write(LLOAD);
+            code.write(iterationsLocal);
+            code.write(LLOAD);
+            code.write(innerIterationsLocal);
+            code.write(LLOAD);
+            code.write(statementsLocal);
+            pushInt(loop.body.body.length);
+            invokeStatic("count", "(LInterpreter;JJJI)V");
+        }
+
+        // ---- statements ----
+
+        private void statement(Stmt stmt) throws IOException {
+            if (stmt instanceof Stmt.Block) {
+                Stmt[] body = ((Stmt.Block) stmt).body;
+                for (Stmt s : body) {
+                    statement(s);
+                }
+                if (stmt != loop.body) { // (that one is counted from the iterations)
+                    addTo(statementsLocal, body.length); // once the whole block ran, not per statement
+                }
+            } else if (stmt instanceof Stmt.Assign) {
+                Stmt.Assign assign = (Stmt.Assign) stmt;
+                expression(assign.value, 0);
+                code.write(LSTORE);
+                code.write(localOf.get(assign.slot));
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                int elseLabel = newLabel();
+                jumpIfFalse(ifStmt.condition, elseLabel);
+                statement(ifStmt.then);
+                if (ifStmt.otherwise == null) {
+                    placeLabel(elseLabel);
+                } else {
+                    int endLabel = newLabel();
+                    jump(GOTO, endLabel);
+                    placeLabel(elseLabel);
+                    statement(ifStmt.otherwise);
+                    placeLabel(endLabel);
+                }
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                int topLabel = newLabel();
+                int exitLabel = newLabel();
+                placeLabel(topLabel);
+                jumpIfFalse(whileStmt.condition, exitLabel);
+                statement(whileStmt.body);
+                addTo(innerIterationsLocal, 1);
+                jump(GOTO, topLabel);
+                placeLabel(exitLabel);
+            }
+        }
+
+        // Branch to label when the condition is 0; comparisons branch directly
+        private void jumpIfFalse(Expr condition, int label) throws IOException {
+            if (condition instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) condition;
+                int inverted = invertedCompare(binary.op);
+                if (inverted >= 0) {
+                    expression(binary.left, 0);
+                    expression(binary.right, 2);
+                    code.write(LCMP);
+                    jump(inverted, label);
+                    return;
+                }
+            }
+            expression(condition, 0);
+            code.write(LCONST_0);
+            code.write(LCMP);
+            jump(IFEQ, label);
+        }
+
+        // The branch on LCMP's result that jumps when the comparison is false
+        private int invertedCompare(TokenType op) {
+            switch (op) {
+                case EQEQ: return IFNE;
+                case NEQ:  return IFEQ;
+                case GT:   return IFLE;
+                case GTE:  return IFLT;
+                case LT:   return IFGE;
+                case LTE:  return IFGT;
+                default:   return -1;
+            }
+        }
+
+        // ---- expressions ----
+
+        // Push the value of expr; 'below' is how many stack words are already used (a long is 2)
+        private void expression(Expr expr, int below) throws IOException {
+            maxStack = Math.max(maxStack, below + 4);
+            if (expr instanceof Expr.Num) {
+                pushLong(((Expr.Num) expr).value);
+            } else if (expr instanceof Expr.Var) {
+                code.write(LLOAD);
+                code.write(localOf.get(((Expr.Var) expr).slot));
+            } else if (expr instanceof Expr.Fail) {
+                code.write(LDC_W);
+                writeShort(code, stringConstant(((Expr.Fail) expr).message));
+                invokeStatic("fail", "(Ljava/lang/String;)J");
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                expression(binary.left, below);
+                expression(binary.right, below + 2);
+                invokeStatic(helperFor(binary.op), "(JJ)J");
+            } else if (expr instanceof Expr.Element) {
+                // element(in, array, index): 'in' and the int take two words under the index
+                code.write(ALOAD_1);
+                pushInt(((Expr.Element) expr).arraySlot);
+                expression(((Expr.Element) expr).index, below + 2);
+                invokeStatic("element", "(LInterpreter;IJ)J");
+            } else if (expr instanceof Expr.ArrayCall) {
+                code.write(ALOAD_1);
+                pushInt(((Expr.ArrayCall) expr).arraySlot);
+                invokeStatic(((Expr.ArrayCall) expr).function, "(LInterpreter;I)J");
+            }
+        }
+
+        private String helperFor(TokenType op) {
+            switch (op) {
+                case PLUS:  return "add";
+                case MINUS: return "sub";
+                case STAR:  return "mul";
+                case SLASH: return "div";
+                case MOD:   return "mod";
+                case EQEQ:  return "eq";
+                case NEQ:   return "ne";
+                case GT:    return "gt";
+                case GTE:   return "ge";
+                case LT:    return "lt";
+                case LTE:   return "le";
+                default:
+                    throw new IllegalStateException("Not an operator: " + op);
+            }
+        }
+
+        private void pushLong(long value) throws IOException {
+            if (value == 0 || value == 1) {
+                code.write(value == 0 ? LCONST_0 : LCONST_1);
+            } else if (value == (int) value) {
+                pushInt((int) value);
+                code.write(I2L);
+            } else {
+                code.write(LDC2_W);
+                writeShort(code, longConstant(value));
+            }
+        }
+
+        private void pushInt(int value) throws IOException {
+            if (value >= -1 && value <= 5) {
+                code.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                writeShort(code, value);
+            } else {
+                code.write(LDC_W);
+                writeShort(code, intConstant(value));
+            }
+        }
+
+        private void invokeStatic(String name, String descriptor) throws IOException {
+            code.write(INVOKESTATIC);
+            writeShort(code, methodRef("LoopJit", name, descriptor));
+        }
+
+        // ---- labels and jumps ----
+
+        private int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        private void placeLabel(int label) {
+            labels.set(label, code.size());
+            frames.put(code.size(), 0);
+        }
+
+        private void jump(int opcode, int label) {
+            fixups.add(new int[]{code.size(), label});
+            code.write(opcode);
+            writeShort(code, 0);
+        }
+
+        // ---- class file ----
+
+        private byte[] writeClass(byte[] body, int tryStart, int tryEnd) throws IOException {
+            int thisClass = classConstant(CLASS_NAME);
+            int superClass = classConstant("java/lang/Object");
+            int loopInterface = classConstant("CompiledLoop");
+            int interpreterClass = classConstant("Interpreter");
+            int longArrayClass = classConstant("[J");
+            int tooBigClass = classConstant("LoopJit$TooBig");
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int initName = utf8("<init>");
+            int initDescriptor = utf8("()V");
+            int runName = utf8("run");
+            int runDescriptor = utf8("(LInterpreter;[J)Z");
+            int codeName = utf8("Code");
+            int stackMapName = utf8("StackMapTable");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(0xCAFEBABE);
+            data.writeShort(0);
+            data.writeShort(52); // Java 8 class file format
+            data.writeShort(poolCount);
+            data.write(pool.toByteArray());
+            data.writeShort(0x0010 | 0x0020); // final, super
+            data.writeShort(thisClass);
+            data.writeShort(superClass);
+            data.writeShort(1);
+            data.writeShort(loopInterface);
+            data.writeShort(0); // no fields
+            data.writeShort(2); // <init> and run
+
+            // <init>: just call Object's constructor
+            data.writeShort(0x0001);
+            data.writeShort(initName);
+            data.writeShort(initDescriptor);
+            data.writeShort(1);
+            data.writeShort(codeName);
+            data.writeInt(12 + 5);
+            data.writeShort(1);
+            data.writeShort(1);
+            data.writeInt(5);
+            data.writeByte(ALOAD_0);
+            data.writeByte(INVOKESPECIAL);
+            data.writeShort(objectInit);
+            data.writeByte(RETURN);
+            data.writeShort(0);
+            data.writeShort(0);
+
+            // run(Interpreter, long[])
+            byte[] stackMap = stackMapTable(thisClass, interpreterClass, longArrayClass);
+            data.writeShort(0x0001);
+            data.writeShort(runName);
+            data.writeShort(runDescriptor);
+            data.writeShort(1);
+            data.writeShort(codeName);
+            data.writeInt(2 + 2 + 4 + body.length + 2 + 8 * 2 + 2 + 6 + stackMap.length);
+            data.writeShort(maxStack);
+            data.writeShort(FIRST_VAR_LOCAL + 2 * longLocals());
+            data.writeInt(body.length);
+            data.write(body);
+            data.writeShort(2); // exception handlers: TooBig first, then anything else
+            data.writeShort(tryStart);
+            data.writeShort(tryEnd);
+            data.writeShort(tooBigHandler);
+            data.writeShort(tooBigClass);
+            data.writeShort(tryStart);
+            data.writeShort(tryEnd);
+            data.writeShort(anyHandler);
+            data.writeShort(0);
+            data.writeShort(1); // attributes of Code: the stack map
+            data.writeShort(stackMapName);
+            data.writeInt(stackMap.length);
+            data.write(stackMap);
+
+            data.writeShort(0); // no class attributes
+            data.flush();
+            return out.toByteArray();
+        }
+
+        // How many long locals run() has: variables, start-of-iteration copies and the counters
+        private int longLocals() {
+            return usedSlots.size() + savedOf.size() + (counting ? 3 : 0);
+        }
+
+        // One full frame per branch target (and handler): same locals everywhere, all longs
+        private byte[] stackMapTable(int thisClass, int interpreterClass, int longArrayClass) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeShort(frames.size());
+            int previous = -1;
+            for (Map.Entry<Integer, Integer> frame : frames.entrySet()) {
+                int offset = frame.getKey();
+                data.writeByte(255); // full_frame
+                data.writeShort(previous < 0 ? offset : offset - previous - 1);
+                data.writeShort(FIRST_VAR_LOCAL + longLocals()); // a long counts once here
+                data.writeByte(7);
+                data.writeShort(thisClass);
+                data.writeByte(7);
+                data.writeShort(interpreterClass);
+                data.writeByte(7);
+                data.writeShort(longArrayClass);
+                for (int i = 0; i < longLocals(); i++) {
+                    data.writeByte(4); // long
+                }
+                if (frame.getValue() != 0) {
+                    data.writeShort(1);
+                    data.writeByte(7);
+                    data.writeShort(frame.getValue());
+                } else {
+                    data.writeShort(0);
+                }
+                previous = offset;
+            }
+            data.flush();
+            return out.toByteArray();
+        }
+
+        // ---- constant pool ----
+
+        private int utf8(String text) throws IOException {
+            Integer index = poolIndex.get("U" + text);
+            if (index == null) {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(text);
+                index = poolCount++;
+                poolIndex.put("U" + text, index);
+            }
+            return index;
+        }
+
+        private int classConstant(String name) throws IOException {
+            Integer index = poolIndex.get("C" + name);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                poolOut.writeByte(7);
+                poolOut.writeShort(nameIndex);
+                index = poolCount++;
+                poolIndex.put("C" + name, index);
+            }
+            return index;
+        }
+
+        private int stringConstant(String text) throws IOException {
+            Integer index = poolIndex.get("S" + text);
+            if (index == null) {
+                int textIndex = utf8(text);
+                poolOut.writeByte(8);
+                poolOut.writeShort(textIndex);
+                index = poolCount++;
+                poolIndex.put("S" + text, index);
+            }
+            return index;
+        }
+
+        private int intConstant(int value) throws IOException {
+            Integer index = poolIndex.get("I" + value);
+            if (index == null) {
+                poolOut.writeByte(3);
+                poolOut.writeInt(value);
+                index = poolCount++;
+                poolIndex.put("I" + value, index);
+            }
+            return index;
+        }
+
+        private int longConstant(long value) throws IOException {
+            Integer index = poolIndex.get("J" + value);
+            if (index == null) {
+                poolOut.writeByte(5);
+                poolOut.writeLong(value);
+                index = poolCount;
+                poolCount += 2; // longs take two constant pool entries
+                poolIndex.put("J" + value, index);
+            }
+            return index;
+        }
+
+        private int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = poolIndex.get(key);
+            if (index == null) {
+                int ownerIndex = classConstant(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                poolOut.writeByte(12); // NameAndType
+                poolOut.writeShort(nameIndex);
+                poolOut.writeShort(descriptorIndex);
+                int nameAndType = poolCount++;
+                poolOut.writeByte(10); // Methodref
+                poolOut.writeShort(ownerIndex);
+                poolOut.writeShort(nameAndType);
+                index = poolCount++;
+                poolIndex.put(key, index);
+            }
+            return index;
+        }
+
+        private static void writeShort(ByteArrayOutputStream out, int value) {
+            out.write(value >> 8);
+            out.write(value);
+        }
+    }
+}
@@ -1,13 +1,138 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Main {
+    // Run the snippets on the bytecode VM instead of the tree interpreter ("--vm")
+    private static boolean useVm = false;
+
+    // Print a per-line profile after each program ("--profile", tree interpreter only)
+    private static boolean profile = false;
+
+    // Read a script file whole and lex it on all cores ("--parallel-lex", see ParallelLexer)
+    private static boolean parallelLex = false;
+
+    // Save a script file's progress here and go on from it after a crash ("--checkpoint FILE", VM only)
+    private static Path checkpoint = null;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java Main [--vm | --profile]                  run the built-in snippets",
+            "       java Main [--vm | --profile] [--parallel-lex] [--checkpoint FILE] script.py",
+            "       java Main script.pyb                          run a compiled script (on the VM)",
+            "       java Main --compile script.py script.pyb",
+            "       java Main --repl",
+            "       java Main --batch [--vm] [--threads N] [--slice STEPS [--max-steps N]] dir-or-script...",
+            "--profile is for the tree interpreter, so it doesn't go with --vm, --checkpoint or a .pyb file.");
+
     /**
      * Main class: Entry point for testing our Python-like interpreter.
      *
      * We feed various code snippets to our lexer + interpreter and
      * observe the results in the console.
+     * Pass "--vm" to run the same snippets on the bytecode VM.
+     *
+     * To run a script file instead: java Main [--vm | --profile] [--parallel-lex] script.py
+     * The file is memory-mapped and lexed as it is read (see TokenStream).
+     * With --parallel-lex it's read whole and lexed in chunks on all cores first (see ParallelLexer),
+     * which starts huge scripts faster.
+     * With --checkpoint FILE it runs on the VM and saves its state to FILE every few seconds;
+     * run the same command again after a crash to go on from there (see Checkpoint).
+     *
+     * To run many scripts at once: java Main --batch [--vm] [--threads N] [--slice STEPS [--max-steps N]] dir-or-script...
+     * (see BatchRunner; without --threads every script gets a virtual thread,
+     * with --slice they take turns on the VM on a few threads, see Scheduler;
+     * --max-steps stops scripts that run longer than that)
+     *
+     * For an interactive session: java Main --repl (see Repl)
+     *
+     * To compile a script once: java Main --compile script.py script.pyb (see BytecodeFile);
+     * running script.pyb like a script then skips lexing and parsing and runs it on the VM.
+     *
+     * An unknown option or a missing argument prints the usage and exits with 2;
+     * a script that fails (or a file we can't read) prints "Error: ..." and exits with 1.
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        try {
+            run(args);
+        } catch (NoSuchFileException e) {
+            fail("No such file " + e.getMessage());
+        } catch (RuntimeException | IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.flush(); // the program's output so far comes first
+        System.err.println("Error: " + message);
+        System.exit(1);
+    }
+
+    private static void run(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h"))) {
+            System.out.println(USAGE);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--compile")) {
+            if (args.length != 3) {
+                usage("--compile takes a script and the file to write");
+            }
+            BytecodeFile.compile(Path.of(args[1]), Path.of(args[2]));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--repl")) {
+            if (args.length != 1) {
+                usage("--repl takes no arguments");
+            }
+            new Repl().run(new BufferedReader(new InputStreamReader(System.in)), System.out, System.err);
+            return;
+        }
+        int fileArg = 0;
+        while (fileArg < args.length && args[fileArg].startsWith("-")) {
+            switch (args[fileArg]) {
+                case "--vm":
+                    useVm = true;
+                    break;
+                case "--profile":
+                    profile = true;
+                    break;
+                case "--parallel-lex":
+                    parallelLex = true;
+                    break;
+                case "--checkpoint":
+                    if (fileArg + 1 >= args.length) {
+                        usage("--checkpoint needs a file");
+                    }
+                    checkpoint = Path.of(args[++fileArg]);
+                    break;
+                default:
+                    usage("Unknown option " + args[fileArg]);
+            }
+            fileArg++;
+        }
+        if (args.length > fileArg + 1) {
+            usage("One script at a time (options go before it)");
+        }
+        if (profile && (useVm || checkpoint != null)) {
+            usage("--profile only works on the tree interpreter, not with --vm or --checkpoint");
+        }
+        if (args.length > fileArg) {
+            runFile(Path.of(args[fileArg]));
+            return;
+        }
+        if (parallelLex || checkpoint != null) {
+            usage("--parallel-lex and --checkpoint need a script");
+        }
+
         // 1) Basic arithmetic snippet
         String snippet1 = ""
                 + "x = 5\n"
@@ -128,7 +253,7 @@ public class Main {
         runSnippet("Multiplication table of 5", multiplicationTable);
 
         // 10. Nth Fibonacci Number (N=10 => 34)
-        // We'll do an iterative approach because recursive is not implemented in interpreter and is not in our task
+        // Iterative; the recursive way is in 11 below (with a tail call, so it doesn't nest)
         String nthFibonacci = ""
                 + "N = 10\n"
                 + "if N == 0:\n"
@@ -144,6 +269,127 @@ public class Main {
                 + "        i = i + 1\n"
                 + "    print(b)\n";
         runSnippet("10th Fibonacci number", nthFibonacci);
+
+        // 11. Functions: GCD by recursion, and Fibonacci with an accumulator (tail calls)
+        String functions = ""
+                + "def gcd(a, b):\n"
+                + "    if b == 0:\n"
+                + "        return a\n"
+                + "    return gcd(b, a % b)\n"
+                + "def fib(n, a, b):\n"
+                + "    if n == 0:\n"
+                + "        return a\n"
+                + "    return fib(n - 1, b, a + b)\n"
+                + "print(gcd(48, 18))\n"
+                + "print(fib(10, 0, 1))\n"
+                + "print(fib(100, 0, 1))\n";
+        runSnippet("Functions: gcd(48,18), fib(10), fib(100)", functions);
+    }
+
+    // Run one script file: source streamed through a TokenStream (or lexed whole with --parallel-lex),
+    // or a compiled BytecodeFile
+    private static void runFile(Path file) throws IOException {
+        if (BytecodeFile.isBytecodeFile(file)) {
+            if (profile) {
+                usage("--profile only works on the tree interpreter, and " + file + " is compiled for the VM");
+            }
+            runVm(new VM(BytecodeFile.read(file)));
+            return;
+        }
+        if (parallelLex) {
+            // One char per byte, like TokenStream.mapFile
+            TokenBuffer tokens = new Lexer(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1)).tokenizeParallel();
+            if (useVm || checkpoint != null) {
+                runVm(new VM(tokens));
+            } else {
+                runProfiled(new Interpreter(tokens));
+            }
+            return;
+        }
+        try (TokenStream tokens = TokenStream.mapFile(file)) {
+            if (useVm || checkpoint != null) {
+                runVm(new VM(tokens));
+            } else {
+                runProfiled(new Interpreter(tokens));
+            }
+        }
+    }
+
+    // Run on the VM, saving checkpoints if asked for
+    private static void runVm(VM vm) throws IOException {
+        if (checkpoint == null) {
+            vm.run();
+            return;
+        }
+        if (Files.exists(checkpoint)) {
+            Checkpoint.restore(vm, checkpoint);
+        }
+        Checkpoint.run(vm, checkpoint, Checkpoint.DEFAULT_INTERVAL_MILLIS);
+    }
+
+    // Interpret, and print the profile (to stderr, away from the program's output) if asked for
+    private static void runProfiled(Interpreter interpreter) {
+        interpreter.setProfiling(profile);
+        try {
+            interpreter.interpret();
+        } finally {
+            if (profile) {
+                interpreter.getProfiler().printReport(System.err);
+            }
+        }
+    }
+
+    // --batch [--vm] [--threads N] [--slice STEPS [--max-steps N]] paths...
+    private static void runBatch(String[] args) throws IOException, InterruptedException {
+        boolean vm = false;
+        int threads = 0;
+        long slice = 0;
+        long maxSteps = 0;
+        List<Path> paths = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--vm")) {
+                vm = true;
+            } else if (args[i].equals("--threads")) {
+                threads = (int) number(args, ++i);
+            } else if (args[i].equals("--slice")) {
+                slice = number(args, ++i);
+            } else if (args[i].equals("--max-steps")) {
+                maxSteps = number(args, ++i);
+            } else if (args[i].startsWith("-")) {
+                usage("Unknown option " + args[i]);
+            } else {
+                paths.add(Path.of(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            usage("--batch needs scripts or directories to run");
+        }
+        BatchRunner runner = new BatchRunner(threads, vm);
+        runner.setTimeSlice(slice, maxSteps);
+        List<Path> scripts = BatchRunner.collectScripts(paths);
+        long start = System.nanoTime();
+        List<BatchRunner.Result> results = runner.run(scripts);
+        runner.printReport(results, System.nanoTime() - start, System.out);
+    }
+
+    // The number after an option (args[i]), which has to be there
+    private static long number(String[] args, int i) {
+        if (i >= args.length) {
+            usage(args[i - 1] + " needs a number");
+        }
+        try {
+            return Long.parseLong(args[i]);
+        } catch (NumberFormatException e) {
+            usage(args[i - 1] + " needs a number, not " + args[i]);
+            return 0; // (not reached)
+        }
+    }
+
+    // Wrong command line: say what's wrong, show how it's used, and exit with 2
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
     }
 
     private static void runSnippet(String title, String sourceCode) {
@@ -158,8 +404,12 @@ public class Main {
         //    System.out.println(t);
         // }
 
-        Interpreter interpreter = new Interpreter(tokens, sourceCode);
-        interpreter.interpret();
+        if (useVm) {
+            VM vm = new VM(tokens, sourceCode);
+            vm.run();
+        } else {
+            runProfiled(new Interpreter(tokens, sourceCode));
+        }
         System.out.println();
     }
 }
@@ -0,0 +1,50 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ MemoryOutputSink: keeps everything a program prints in memory.
+ Useful in tests ("did it print 55?") or when the interpreter runs inside
+ another program that wants the output as text.
+ */
+final class MemoryOutputSink implements OutputSink {
+    private byte[] buffer = new byte[256];
+    private int count = 0;
+
+    @Override
+    public void printLong(long value) {
+        ensureRoom(MAX_LONG_CHARS + NEWLINE.length);
+        count = OutputSink.formatLong(buffer, count, value);
+    }
+
+    @Override
+    public void printBig(BigInteger value) {
+        byte[] line = OutputSink.formatBig(value);
+        ensureRoom(line.length);
+        System.arraycopy(line, 0, buffer, count, line.length);
+        count += line.length;
+    }
+
+    private void ensureRoom(int n) {
+        int needed = count + n;
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, needed));
+        }
+    }
+
+    @Override
+    public void flush() {
+        // nothing to do, it's all in memory already
+    }
+
+    // Forget everything printed so far
+    void clear() {
+        count = 0;
+    }
+
+    // Everything printed so far, as text
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.US_ASCII);
+    }
+}
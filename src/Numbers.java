@@ -0,0 +1,126 @@
+import java.math.BigInteger;
+
+/**
+ Numbers: how values work, shared by the Interpreter, the VM, ClosedFormLoop and LoopJit.
+
+ A value is a plain Java long. Only when a result doesn't fit in a long does it become
+ a BigInteger: then the long says BIG and the BigInteger sits next to it
+ (Interpreter.bigSlots and bigResult, the VM's big stack). So the long is the only thing
+ ever passed around, and small numbers never create an object.
+
+ BIG is Long.MIN_VALUE, so a value that really is Long.MIN_VALUE is kept as a BigInteger too.
+ That way every long that isn't BIG is just the number itself, and one compare tells them apart.
+
+ add/subtract/multiply are the fast path: they return BIG when the exact answer is not
+ a long (overflow), and the caller redoes the operation on BigIntegers with apply().
+ */
+final class Numbers {
+    // "The value is a BigInteger, look next to it"
+    static final long BIG = Long.MIN_VALUE;
+
+    private static final BigInteger ONE = BigInteger.ONE;
+    private static final BigInteger ZERO = BigInteger.ZERO;
+
+    private Numbers() {
+    }
+
+    // ---------------------------------
+    // Fast path: longs (never BIG) in, long or BIG out
+    // ---------------------------------
+
+    static long add(long a, long b) {
+        try {
+            return Math.addExact(a, b);
+        } catch (ArithmeticException e) {
+            return BIG;
+        }
+    }
+
+    static long subtract(long a, long b) {
+        try {
+            return Math.subtractExact(a, b);
+        } catch (ArithmeticException e) {
+            return BIG;
+        }
+    }
+
+    static long multiply(long a, long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (ArithmeticException e) {
+            return BIG;
+        }
+    }
+
+    // Can't overflow: the only long / long that does is MIN_VALUE / -1, and MIN_VALUE is BIG.
+    // Small numbers take the int instruction, which is a lot quicker than the long one.
+    static long divide(long a, long b) {
+        if (b == 0) {
+            throw new RuntimeException("Division by zero.");
+        }
+        if (a == (int) a && b == (int) b && a != Integer.MIN_VALUE) {
+            return (int) a / (int) b;
+        }
+        return a / b;
+    }
+
+    static long modulo(long a, long b) {
+        if (b == 0) {
+            throw new RuntimeException("Modulo by zero.");
+        }
+        if (a == (int) a && b == (int) b) {
+            return (int) a % (int) b;
+        }
+        return a % b;
+    }
+
+    // ---------------------------------
+    // Slow path: BigIntegers
+    // ---------------------------------
+
+    /**
+     The value as a BigInteger: 'big' if value is BIG, else the long itself.
+     */
+    static BigInteger big(long value, BigInteger big) {
+        return (value == BIG) ? big : BigInteger.valueOf(value);
+    }
+
+    /**
+     A BigInteger back as a value: the long if it fits, else BIG
+     (and then the caller keeps the BigInteger).
+     */
+    static long fit(BigInteger value) {
+        // bitLength() < 64 also lets MIN_VALUE through, but its longValue() is BIG anyway
+        return (value.bitLength() < 64) ? value.longValue() : BIG;
+    }
+
+    /**
+     "a op b" on BigIntegers, with the same rules (and errors) as on longs:
+     division truncates towards zero, % takes the sign of a, comparisons give 1 or 0.
+     */
+    static BigInteger apply(TokenType op, BigInteger a, BigInteger b) {
+        switch (op) {
+            case PLUS:  return a.add(b);
+            case MINUS: return a.subtract(b);
+            case STAR:  return a.multiply(b);
+            case SLASH:
+                if (b.signum() == 0) {
+                    throw new RuntimeException("Division by zero.");
+                }
+                return a.divide(b);
+            case MOD:
+                if (b.signum() == 0) {
+                    throw new RuntimeException("Modulo by zero.");
+                }
+                return a.remainder(b);
+            case EQEQ: return a.equals(b) ? ONE : ZERO;
+            case NEQ:  return a.equals(b) ? ZERO : ONE;
+            case GT:   return (a.compareTo(b) > 0) ? ONE : ZERO;
+            case GTE:  return (a.compareTo(b) >= 0) ? ONE : ZERO;
+            case LT:   return (a.compareTo(b) < 0) ? ONE : ZERO;
+            case LTE:  return (a.compareTo(b) <= 0) ? ONE : ZERO;
+            default:
+                throw new IllegalArgumentException("Not an operator: " + op);
+        }
+    }
+}
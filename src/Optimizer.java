@@ -0,0 +1,540 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Optimizer: a pipeline of passes that rewrite the compiled statement tree
+ after the Parser and before anything runs (both the Interpreter and the VM use it).
+
+ Passes, in the order they run:
+ - "propagate": straight-line constant propagation (x = 10 ... if x == 0 => if 10 == 0)
+ - "fold":      constant folding (2 * 3 + 1 => 7)
+ - "dead":      dead branch elimination (if 0: ... / while 0: ... disappear)
+ - "fuse":      superinstructions for the usual loop idioms (i = i + 1, sum = sum + i, i <= N)
+ - "closed":    simple counted loops are computed with a formula instead of iterating
+
+ Function bodies (see Function) go through the same passes, each on its own.
+ Number literals are already parsed to longs once by the Parser, so no pass is needed for that.
+ Every pass can be switched off by name, to measure what each one is worth.
+ Passes never change what a program prints or which error it throws.
+ */
+class Optimizer {
+
+    /**
+     One optimization pass: takes the program tree and returns a (maybe) new one.
+     */
+    interface Pass {
+        String name();
+
+        Stmt.Block apply(Stmt.Block program);
+
+        // How many things the last apply() changed (for measuring)
+        int changes();
+    }
+
+    private final List<Pass> passes = new ArrayList<>();
+    private final Map<String, Boolean> enabled = new HashMap<>();
+
+    /**
+     All passes, all switched on.
+     */
+    Optimizer() {
+        add(new ConstantPropagation());
+        add(new ConstantFolding());
+        add(new DeadBranchElimination());
+        add(new Superinstructions());
+        add(new ClosedFormLoops());
+    }
+
+    /**
+     An optimizer with every pass switched off (runs the program as parsed).
+     */
+    static Optimizer none() {
+        Optimizer optimizer = new Optimizer();
+        for (Pass pass : optimizer.passes) {
+            optimizer.setEnabled(pass.name(), false);
+        }
+        return optimizer;
+    }
+
+    private void add(Pass pass) {
+        passes.add(pass);
+        enabled.put(pass.name(), true);
+    }
+
+    /**
+     Switch a pass on or off by name ("propagate", "fold", "dead", "fuse", "closed").
+     */
+    void setEnabled(String passName, boolean on) {
+        if (!enabled.containsKey(passName)) {
+            throw new IllegalArgumentException("Unknown optimizer pass: " + passName
+                    + " (known: " + enabled.keySet() + ")");
+        }
+        enabled.put(passName, on);
+    }
+
+    /**
+     Run all enabled passes over the program, in order.
+     */
+    Stmt.Block optimize(Stmt.Block program) {
+        for (Pass pass : passes) {
+            if (enabled.get(pass.name())) {
+                program = pass.apply(program);
+            }
+        }
+        return program;
+    }
+
+    /**
+     Optimize the bodies of these functions (the ones the Parser just read, see
+     Parser.newFunctions()). Do it before optimize(program), so report() is about the program.
+     */
+    void optimizeFunctions(List<Function> functions) {
+        for (Function function : functions) {
+            function.body = optimize(function.body);
+        }
+    }
+
+    /**
+     "pass name => changes made" for the last optimize() call (0 for passes that are off).
+     */
+    Map<String, Integer> report() {
+        Map<String, Integer> report = new LinkedHashMap<>();
+        for (Pass pass : passes) {
+            report.put(pass.name(), enabled.get(pass.name()) ? pass.changes() : 0);
+        }
+        return report;
+    }
+
+    // ---------------------------------
+    // Helpers shared by the passes
+    // ---------------------------------
+
+    /**
+     The value of a constant expression, or null if it isn't constant
+     (reads a variable we don't know, or would throw an error when run).
+     Big numbers (see Numbers) count as not constant: they stay as they are.
+     */
+    static Long constantValue(Expr expr, Map<Integer, Long> known) {
+        if (expr instanceof Expr.Num) {
+            return ((Expr.Num) expr).value;
+        } else if (expr instanceof Expr.Var) {
+            return known.get(((Expr.Var) expr).slot);
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            Long a = constantValue(binary.left, known);
+            Long b = (a == null) ? null : constantValue(binary.right, known);
+            if (b == null) {
+                return null;
+            }
+            try {
+                long value = binary.apply(a, b);
+                return (value == Numbers.BIG) ? null : value;
+            } catch (RuntimeException e) {
+                // division by zero etc: leave it for runtime so the error still happens there
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // Collect every slot assigned anywhere inside a statement
+    static void assignedSlots(Stmt stmt, List<Integer> out) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).body) {
+                assignedSlots(s, out);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            out.add(((Stmt.Assign) stmt).slot);
+        } else if (stmt instanceof Stmt.If) {
+            assignedSlots(((Stmt.If) stmt).then, out);
+            if (((Stmt.If) stmt).otherwise != null) {
+                assignedSlots(((Stmt.If) stmt).otherwise, out);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            assignedSlots(((Stmt.While) stmt).body, out);
+        }
+    }
+
+    /**
+     Base for passes that rewrite the tree bottom-up, node by node.
+     Subclasses override rewrite(Expr) and/or rewrite(Stmt, out).
+     */
+    abstract static class Rewriter implements Pass {
+        int changes = 0;
+
+        @Override
+        public Stmt.Block apply(Stmt.Block program) {
+            changes = 0;
+            return block(program);
+        }
+
+        @Override
+        public int changes() {
+            return changes;
+        }
+
+        Stmt.Block block(Stmt.Block block) {
+            List<Stmt> out = new ArrayList<>();
+            for (Stmt s : block.body) {
+                rewrite(s, out);
+            }
+            return new Stmt.Block(out.toArray(new Stmt[0]));
+        }
+
+        // Rewrite one statement, adding the result (zero, one or more statements) to out
+        void rewrite(Stmt stmt, List<Stmt> out) {
+            out.add(rebuild(stmt));
+        }
+
+        // Copy of a statement with its expressions and blocks rewritten
+        Stmt rebuild(Stmt stmt) {
+            if (stmt instanceof Stmt.Assign) {
+                Stmt.Assign assign = (Stmt.Assign) stmt;
+                return new Stmt.Assign(assign.name, assign.slot, expression(assign.value)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Print) {
+                return new Stmt.Print(expression(((Stmt.Print) stmt).value)).at(stmt.line);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                return new Stmt.If(expression(ifStmt.condition), block(ifStmt.then),
+                        ifStmt.otherwise == null ? null : block(ifStmt.otherwise)).at(stmt.line);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                return new Stmt.While(expression(whileStmt.condition), block(whileStmt.body)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Block) {
+                return block((Stmt.Block) stmt);
+            } else if (stmt instanceof Stmt.NewArray) {
+                Stmt.NewArray newArray = (Stmt.NewArray) stmt;
+                return new Stmt.NewArray(newArray.name, newArray.arraySlot, expression(newArray.size)).at(stmt.line);
+            } else if (stmt instanceof Stmt.ArrayLiteral) {
+                Stmt.ArrayLiteral literal = (Stmt.ArrayLiteral) stmt;
+                Expr[] elements = new Expr[literal.elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = expression(literal.elements[i]);
+                }
+                return new Stmt.ArrayLiteral(literal.name, literal.arraySlot, elements).at(stmt.line);
+            } else if (stmt instanceof Stmt.StoreElement) {
+                Stmt.StoreElement store = (Stmt.StoreElement) stmt;
+                return new Stmt.StoreElement(store.name, store.arraySlot, expression(store.index),
+                        expression(store.value)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Fill) {
+                Stmt.Fill fill = (Stmt.Fill) stmt;
+                return new Stmt.Fill(fill.name, fill.arraySlot, expression(fill.value)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Call) {
+                return new Stmt.Call((Expr.Call) expression(((Stmt.Call) stmt).call)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Return) {
+                return new Stmt.Return(expression(((Stmt.Return) stmt).value)).at(stmt.line);
+            }
+            // ShareArray and Combine have no expressions
+            return stmt;
+        }
+
+        Expr expression(Expr expr) {
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                Expr left = expression(binary.left);
+                Expr right = expression(binary.right);
+                if (left != binary.left || right != binary.right) {
+                    expr = Expr.binary(binary.op, left, right);
+                }
+            } else if (expr instanceof Expr.Element) {
+                Expr.Element element = (Expr.Element) expr;
+                Expr index = expression(element.index);
+                if (index != element.index) {
+                    expr = new Expr.Element(element.name, element.arraySlot, index);
+                }
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                Expr[] arguments = new Expr[call.arguments.length];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = expression(call.arguments[i]);
+                }
+                expr = new Expr.Call(call.function, arguments);
+            }
+            return rewrite(expr);
+        }
+
+        // Rewrite a single expression node whose children are already rewritten
+        Expr rewrite(Expr expr) {
+            return expr;
+        }
+    }
+
+    // ---------------------------------
+    // The passes
+    // ---------------------------------
+
+    /**
+     "fold": replace operators on two constants with the result.
+     Operations that would throw (like 5 / 0) are left alone.
+     */
+    static final class ConstantFolding extends Rewriter {
+        private static final Map<Integer, Long> NOTHING_KNOWN = new HashMap<>();
+
+        @Override
+        public String name() {
+            return "fold";
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr instanceof Expr.Binary) {
+                Long value = constantValue(expr, NOTHING_KNOWN);
+                if (value != null) {
+                    changes++;
+                    return new Expr.Num(value);
+                }
+            }
+            return expr;
+        }
+    }
+
+    /**
+     "dead": if/else with a constant condition keeps only the branch that runs,
+     and "while 0:" loops are dropped.
+     */
+    static final class DeadBranchElimination extends Rewriter {
+        @Override
+        public String name() {
+            return "dead";
+        }
+
+        @Override
+        void rewrite(Stmt stmt, List<Stmt> out) {
+            if (stmt instanceof Stmt.If && ((Stmt.If) stmt).condition instanceof Expr.Num) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                changes++;
+                Stmt.Block taken = ((Expr.Num) ifStmt.condition).value != 0 ? ifStmt.then : ifStmt.otherwise;
+                if (taken != null) {
+                    out.addAll(Arrays.asList(block(taken).body));
+                }
+            } else if (stmt instanceof Stmt.While
+                    && ((Stmt.While) stmt).condition instanceof Expr.Num
+                    && ((Expr.Num) ((Stmt.While) stmt).condition).value == 0) {
+                changes++;
+            } else {
+                out.add(rebuild(stmt));
+            }
+        }
+    }
+
+    /**
+     "propagate": walk the program in order remembering variables that hold a known
+     constant, and replace reads of them with the number.
+     Loops forget every variable assigned anywhere in their body;
+     after an if/else we only keep what both paths agree on.
+     */
+    static final class ConstantPropagation implements Pass {
+        private int changes = 0;
+
+        @Override
+        public String name() {
+            return "propagate";
+        }
+
+        @Override
+        public int changes() {
+            return changes;
+        }
+
+        @Override
+        public Stmt.Block apply(Stmt.Block program) {
+            changes = 0;
+            return block(program, new HashMap<>());
+        }
+
+        // 'known' is slot => value and is updated as we go through the block
+        private Stmt.Block block(Stmt.Block block, Map<Integer, Long> known) {
+            List<Stmt> out = new ArrayList<>();
+            for (Stmt s : block.body) {
+                out.add(statement(s, known));
+            }
+            return new Stmt.Block(out.toArray(new Stmt[0]));
+        }
+
+        private Stmt statement(Stmt stmt, Map<Integer, Long> known) {
+            if (stmt instanceof Stmt.Assign) {
+                Stmt.Assign assign = (Stmt.Assign) stmt;
+                Expr value = substitute(assign.value, known);
+                Long constant = constantValue(value, known);
+                if (constant != null) {
+                    known.put(assign.slot, constant);
+                } else {
+                    known.remove(assign.slot);
+                }
+                return new Stmt.Assign(assign.name, assign.slot, value).at(stmt.line);
+            } else if (stmt instanceof Stmt.Print) {
+                return new Stmt.Print(substitute(((Stmt.Print) stmt).value, known)).at(stmt.line);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                Expr condition = substitute(ifStmt.condition, known);
+                Map<Integer, Long> thenKnown = new HashMap<>(known);
+                Map<Integer, Long> elseKnown = new HashMap<>(known);
+                Stmt.Block then = block(ifStmt.then, thenKnown);
+                Stmt.Block otherwise = ifStmt.otherwise == null ? null : block(ifStmt.otherwise, elseKnown);
+                known.clear();
+                for (Map.Entry<Integer, Long> e : thenKnown.entrySet()) {
+                    if (e.getValue().equals(elseKnown.get(e.getKey()))) {
+                        known.put(e.getKey(), e.getValue());
+                    }
+                }
+                return new Stmt.If(condition, then, otherwise).at(stmt.line);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                forgetAssigned(whileStmt, known);
+                Expr condition = substitute(whileStmt.condition, known);
+                Stmt.Block body = block(whileStmt.body, new HashMap<>(known));
+                return new Stmt.While(condition, body).at(stmt.line);
+            } else if (stmt instanceof Stmt.Block) {
+                return block((Stmt.Block) stmt, known);
+            } else if (stmt instanceof Stmt.NewArray) {
+                Stmt.NewArray newArray = (Stmt.NewArray) stmt;
+                return new Stmt.NewArray(newArray.name, newArray.arraySlot, substitute(newArray.size, known)).at(stmt.line);
+            } else if (stmt instanceof Stmt.ArrayLiteral) {
+                Stmt.ArrayLiteral literal = (Stmt.ArrayLiteral) stmt;
+                Expr[] elements = new Expr[literal.elements.length];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = substitute(literal.elements[i], known);
+                }
+                return new Stmt.ArrayLiteral(literal.name, literal.arraySlot, elements).at(stmt.line);
+            } else if (stmt instanceof Stmt.StoreElement) {
+                Stmt.StoreElement store = (Stmt.StoreElement) stmt;
+                return new Stmt.StoreElement(store.name, store.arraySlot, substitute(store.index, known),
+                        substitute(store.value, known)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Fill) {
+                Stmt.Fill fill = (Stmt.Fill) stmt;
+                return new Stmt.Fill(fill.name, fill.arraySlot, substitute(fill.value, known)).at(stmt.line);
+            } else if (stmt instanceof Stmt.ShareArray || stmt instanceof Stmt.Combine) {
+                // arrays only: the numbers we know stay the same
+                return stmt;
+            } else if (stmt instanceof Stmt.Call) {
+                // a call can't change our numbers (a function only has its own)
+                return new Stmt.Call((Expr.Call) substitute(((Stmt.Call) stmt).call, known)).at(stmt.line);
+            } else if (stmt instanceof Stmt.Return) {
+                return new Stmt.Return(substitute(((Stmt.Return) stmt).value, known)).at(stmt.line);
+            }
+            // Something we don't understand: forget everything to be safe
+            known.clear();
+            return stmt;
+        }
+
+        private void forgetAssigned(Stmt stmt, Map<Integer, Long> known) {
+            List<Integer> assigned = new ArrayList<>();
+            assignedSlots(stmt, assigned);
+            for (int slot : assigned) {
+                known.remove(slot);
+            }
+        }
+
+        // Replace reads of known variables with their value
+        private Expr substitute(Expr expr, Map<Integer, Long> known) {
+            if (expr instanceof Expr.Var) {
+                Long value = known.get(((Expr.Var) expr).slot);
+                if (value != null) {
+                    changes++;
+                    return new Expr.Num(value);
+                }
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                Expr left = substitute(binary.left, known);
+                Expr right = substitute(binary.right, known);
+                if (left != binary.left || right != binary.right) {
+                    return Expr.binary(binary.op, left, right);
+                }
+            } else if (expr instanceof Expr.Element) {
+                Expr.Element element = (Expr.Element) expr;
+                Expr index = substitute(element.index, known);
+                if (index != element.index) {
+                    return new Expr.Element(element.name, element.arraySlot, index);
+                }
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                Expr[] arguments = new Expr[call.arguments.length];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = substitute(call.arguments[i], known);
+                }
+                return new Expr.Call(call.function, arguments);
+            }
+            return expr;
+        }
+    }
+
+    /**
+     "fuse": replace the idioms nearly every loop is made of with fused nodes
+     that do the whole thing in one step:
+     - x = x + 5 / x = x - 5  => Stmt.Increment (var += const)
+     - a op b                 => Expr.VarVar    (var op var, e.g. sum + i, i <= N)
+     - a op 5                 => Expr.VarNum    (var op const, e.g. n % 10, i < 10)
+     The VM compiler turns the same nodes into its superinstructions.
+     Runs last, so the other passes only ever see plain nodes.
+     */
+    static final class Superinstructions extends Rewriter {
+        @Override
+        public String name() {
+            return "fuse";
+        }
+
+        @Override
+        void rewrite(Stmt stmt, List<Stmt> out) {
+            Stmt rebuilt = rebuild(stmt);
+            if (rebuilt instanceof Stmt.Assign && ((Stmt.Assign) rebuilt).value instanceof Expr.VarNum) {
+                Stmt.Assign assign = (Stmt.Assign) rebuilt;
+                Expr.VarNum value = (Expr.VarNum) assign.value;
+                if (value.leftSlot == assign.slot && (value.op == TokenType.PLUS || value.op == TokenType.MINUS)) {
+                    changes++;
+                    // x - n is x + (-n); a number is never Long.MIN_VALUE (that's BIG), so -n is fine
+                    long delta = (value.op == TokenType.PLUS) ? value.number : -value.number;
+                    out.add(new Stmt.Increment(assign.name, assign.slot, value, delta).at(stmt.line));
+                    return;
+                }
+            }
+            out.add(rebuilt);
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            if (expr instanceof Expr.VarVar || expr instanceof Expr.VarNum || !(expr instanceof Expr.Binary)) {
+                return expr;
+            }
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.left instanceof Expr.Var && binary.right instanceof Expr.Var) {
+                changes++;
+                return new Expr.VarVar(binary);
+            } else if (binary.left instanceof Expr.Var && binary.right instanceof Expr.Num) {
+                changes++;
+                return new Expr.VarNum(binary);
+            }
+            return expr;
+        }
+    }
+
+    /**
+     "closed": counted loops like "while i <= N: sum = sum + i; i = i + 1"
+     become Stmt.CountedWhile, which computes the result at once when the loop runs
+     (see ClosedFormLoop for exactly which loops qualify).
+     Runs last, since other passes rebuild loops as plain Stmt.While.
+     */
+    static final class ClosedFormLoops extends Rewriter {
+        @Override
+        public String name() {
+            return "closed";
+        }
+
+        @Override
+        void rewrite(Stmt stmt, List<Stmt> out) {
+            Stmt rebuilt = rebuild(stmt);
+            if (rebuilt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) rebuilt;
+                ClosedFormLoop closedForm = ClosedFormLoop.analyze(loop);
+                if (closedForm != null) {
+                    changes++;
+                    rebuilt = new Stmt.CountedWhile(loop.condition, loop.body, closedForm).at(stmt.line);
+                }
+            }
+            out.add(rebuilt);
+        }
+    }
+}
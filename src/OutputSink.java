@@ -0,0 +1,72 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ OutputSink: where print statements write their values.
+ The Interpreter and the VM call printLong() for every print (printBig() for
+ numbers too big for a long) and flush() when the program ends (also when it ends with an error).
+
+ Two sinks come with the project:
+ - BufferedOutputSink: formats straight into a byte buffer and writes it out in big chunks
+ - MemoryOutputSink: keeps everything in memory, handy for tests or embedding
+ */
+interface OutputSink {
+
+    // Print one value followed by a line separator (like System.out.println(long))
+    void printLong(long value);
+
+    // Same for a number too big for a long (rare, so this one may create objects)
+    void printBig(BigInteger value);
+
+    // Push out anything still buffered
+    void flush();
+
+    // Line separator bytes, the same one println uses
+    byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    // Longest long in decimal: "-9223372036854775808"
+    int MAX_LONG_CHARS = 20;
+
+    /**
+     Write the decimal digits of value into buffer at position, followed by NEWLINE.
+     Returns the position after it. The caller makes sure there is room
+     (MAX_LONG_CHARS + NEWLINE.length bytes). No Strings are created.
+     */
+    static int formatLong(byte[] buffer, int position, long value) {
+        if (value == Long.MIN_VALUE) {
+            for (int i = 0; i < MAX_LONG_CHARS; i++) {
+                buffer[position++] = (byte) "-9223372036854775808".charAt(i);
+            }
+        } else {
+            if (value < 0) {
+                buffer[position++] = '-';
+                value = -value;
+            }
+            // Count digits, then fill them in from the right
+            int digits = 1;
+            for (long rest = value / 10; rest != 0; rest /= 10) {
+                digits++;
+            }
+            int end = position + digits;
+            int i = end;
+            do {
+                buffer[--i] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            position = end;
+        }
+        for (byte b : NEWLINE) {
+            buffer[position++] = b;
+        }
+        return position;
+    }
+
+    // The decimal digits of a big number followed by NEWLINE, as bytes
+    static byte[] formatBig(BigInteger value) {
+        byte[] digits = value.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] line = new byte[digits.length + NEWLINE.length];
+        System.arraycopy(digits, 0, line, 0, digits.length);
+        System.arraycopy(NEWLINE, 0, line, digits.length, NEWLINE.length);
+        return line;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ ParallelLexer: lexes a big source on several threads (Lexer.tokenizeParallel).
+
+ No token crosses a line (a comment ends at the '\n' too), so we cut the source
+ right after a '\n' about every CHUNK_CHARS chars and lex the chunks on a ForkJoinPool,
+ counting the indents of their lines on the way. Then the chunks are put back together
+ in order (TokenBuffer.append / fill): the result is exactly what one Lexer over the
+ whole source gives, the same identifier ids included, plus the line indents already
+ counted (TokenBuffer.lineIndents), so splitIntoIndentedLines doesn't read the source again.
+
+ A source of one chunk or less (or a pool of one thread, like the common pool on
+ a single core) is just lexed by a Lexer. If some chunks have a bad char,
+ we throw the error of the first one, which is the error the Lexer would throw.
+ While merging, the chunks' tokens and the merged ones are in memory at the same time.
+ */
+final class ParallelLexer {
+    // About how many chars each chunk gets (it goes on to the end of the line)
+    static final int CHUNK_CHARS = 1 << 20;
+
+    private ParallelLexer() {
+    }
+
+    /**
+     The tokens of 'source', lexed in chunks of about chunkChars on 'pool'.
+     */
+    static TokenBuffer tokenize(String source, ForkJoinPool pool, int chunkChars) {
+        if (source.length() <= chunkChars || pool.getParallelism() <= 1) {
+            return new Lexer(source).scan(); // one chunk, or one thread: merging would only cost time
+        }
+        Chunk[] chunks = split(source, chunkChars);
+        forEach(pool, chunks, chunk -> {
+            try {
+                chunk.tokens = new Lexer(source).scan(chunk.from, chunk.to);
+                chunk.indents = Interpreter.countIndents(source, chunk.from, chunk.to);
+            } catch (RuntimeException e) {
+                chunk.error = e;
+            }
+        });
+        // The first chunk's error, not the first one to happen (and thrown here, not from the pool,
+        // which would wrap it)
+        for (Chunk chunk : chunks) {
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+        }
+
+        // Sequential, but small: room for every chunk, names and big numbers
+        int total = 1; // the EOF
+        for (Chunk chunk : chunks) {
+            total += chunk.tokens.size();
+        }
+        TokenBuffer result = new TokenBuffer(source, total);
+        for (Chunk chunk : chunks) {
+            chunk.at = result.size();
+            chunk.ids = result.append(chunk.tokens);
+        }
+
+        forEach(pool, chunks, chunk -> result.fill(chunk.tokens, chunk.at, chunk.ids));
+        result.add(TokenType.EOF, source.length(), 0, 0);
+        result.lineIndents = joinIndents(chunks);
+        return result;
+    }
+
+    // Cut the source right after a '\n' every chunkChars or so
+    private static Chunk[] split(String source, int chunkChars) {
+        int length = source.length();
+        int count = 0;
+        Chunk[] chunks = new Chunk[Math.max(1, length / chunkChars + 1)];
+        int start = 0;
+        while (start < length) {
+            int end = length;
+            if (length - start > chunkChars) {
+                int newline = source.indexOf('\n', start + chunkChars);
+                end = (newline < 0) ? length : newline + 1;
+            }
+            chunks[count++] = new Chunk(start, end);
+            start = end;
+        }
+        return Arrays.copyOf(chunks, count);
+    }
+
+    // Every chunk but the last ends with '\n', so its last indent is the next chunk's first line: skip it
+    private static int[] joinIndents(Chunk[] chunks) {
+        int lines = 1;
+        for (Chunk chunk : chunks) {
+            lines += chunk.indents.length - 1;
+        }
+        int[] indents = new int[lines];
+        int at = 0;
+        for (Chunk chunk : chunks) {
+            System.arraycopy(chunk.indents, 0, indents, at, chunk.indents.length);
+            at += chunk.indents.length - 1; // the next chunk writes over that last entry
+        }
+        return indents;
+    }
+
+    /**
+     source[from, to) and what we got from it.
+     */
+    private static final class Chunk {
+        final int from;
+        final int to;
+        TokenBuffer tokens;
+        int[] indents;
+        RuntimeException error;
+
+        int at;    // where its tokens go in the result
+        int[] ids; // its identifier ids => the result's
+
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // Run 'work' on every chunk on 'pool', one task per chunk, and wait for all of them
+    private static void forEach(ForkJoinPool pool, Chunk[] chunks, Consumer<Chunk> work) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks.length);
+        for (Chunk chunk : chunks) {
+            tasks.add(ForkJoinTask.adapt(() -> work.accept(chunk)));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            ForkJoinTask.invokeAll(tasks);
+        }));
+    }
+}
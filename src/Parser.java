@@ -0,0 +1,741 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Parser: the one-time compile step of the Interpreter.
+ After the tokens are split into indented lines, the Parser turns every Line
+ into a typed statement node (Stmt) with precompiled expressions (Expr),
+ so loops can run without looking at a single token again.
+
+ The block rules are the same ones the line-by-line interpreter always used:
+ a block is every following line whose indent is bigger than the header line.
+
+ Arrays: a = [1, 2, 3], a = array(n) (n zeros), a[i], a[i] = x, b = a (the same array),
+ len(a), sum(a), max(a), and the statements fill(a, x), add(a, b), mul(a, b).
+ The built-in names are only special right before a '(', so they still work as variables.
+
+ Functions: "def f(a, b):" + a block, "return expr", and calls f(x, y) in expressions or
+ on a line of their own (see Function). While we parse a def, names get slots of the
+ function's own (the 'slotOf' of the script is put aside until the def ends).
+ */
+class Parser {
+    // Lines are pulled one at a time, so they can come straight from a TokenStream
+    private Iterator<Interpreter.Line> lines;
+    private Interpreter.Line current; // the line we're on (null at the end)
+    private int lineNumber = 0;       // source line number of 'current' (1 = first line)
+
+    // Every distinct variable name gets a slot number the first time we see it
+    // (in the def we're in, if any)
+    private Map<String, Integer> slotOf = new HashMap<>();
+    private List<String> slotNames = new ArrayList<>();
+    private boolean inFunction = false;
+
+    // Functions by name, from the first def or call of the name; and the ones
+    // whose def we read since the last newFunctions() (they still need optimizing)
+    private final Map<String, Function> functions = new HashMap<>();
+    private final List<Function> functionList = new ArrayList<>();
+    private final List<Function> newFunctions = new ArrayList<>();
+
+    // Array names are numbered separately: a name is an array from the first line that
+    // assigns an array to it or indexes it, and after that it can't be used as a number
+    // (nor can a number name be used as an array)
+    private final Map<String, Integer> arraySlotOf = new HashMap<>();
+    private final List<String> arrayNames = new ArrayList<>();
+
+    Parser(List<Interpreter.Line> lines) {
+        this(lines.iterator());
+    }
+
+    Parser(Iterator<Interpreter.Line> lines) {
+        this.lines = lines;
+        advanceLine();
+    }
+
+    /**
+     Compile all lines into one top-level block.
+     Top-level lines run no matter how they are indented.
+     */
+    Stmt.Block parseProgram() {
+        List<Stmt> statements = new ArrayList<>();
+        while (!isAtEnd()) {
+            addStatement(statements, parseLine());
+        }
+        return toBlock(statements);
+    }
+
+    /**
+     Compile more lines as the next part of the same program (the REPL does this for
+     every entry): variables keep the slots they already have and line numbers go on
+     from where the last lines stopped.
+     */
+    Stmt.Block parseMore(Iterator<Interpreter.Line> more) {
+        lines = more;
+        current = more.hasNext() ? more.next() : null; // lineNumber already points past the last line
+        return parseProgram();
+    }
+
+    /**
+     Compile the lines with indentation strictly greater than 'baseIndent'
+     (meaning they belong to the current block).
+     */
+    private Stmt.Block parseBlock(int baseIndent) {
+        List<Stmt> statements = new ArrayList<>();
+        while (!isAtEnd() && getLine().indent > baseIndent) {
+            addStatement(statements, parseLine());
+        }
+        return toBlock(statements);
+    }
+
+    /**
+     Compiles a single "Line" (which might be an assignment, if, while, etc.)
+     and remembers which source line it came from.
+     Returns null for lines that do nothing (empty, unrecognized, broken).
+     */
+    private Stmt parseLine() {
+        int number = lineNumber;
+        Stmt stmt = parseStatement();
+        return (stmt == null) ? null : stmt.at(number);
+    }
+
+    private Stmt parseStatement() {
+        Interpreter.Line line = getLine();
+        if (line.isEmpty()) {
+            // Empty line => skip
+            advanceLine();
+            return null;
+        }
+
+        switch (line.type(0)) {
+            case IDENT:
+                if (line.size() > 1 && line.type(1) == TokenType.LBRACKET) {
+                    return parseElementStore(line);
+                }
+                if (line.size() > 1 && line.type(1) == TokenType.LPAREN && isArrayStatement(name(line, 0))) {
+                    return parseArrayStatement(line);
+                }
+                if (line.size() > 1 && line.type(1) == TokenType.LPAREN) {
+                    return parseCallStatement(line);
+                }
+                return parseAssignment(line);
+            case PRINT:
+                return parsePrint(line);
+            case DEF:
+                return parseDef(line);
+            case RETURN:
+                return parseReturn(line);
+            case IF:
+                return parseIf(line);
+            case WHILE:
+                return parseWhile(line);
+            case ELSE:
+                // An 'else' that doesn't follow an 'if' never runs its block
+                advanceLine();
+                skipBlock(line.indent);
+                return null;
+            default:
+                // Unrecognized line => skip
+                advanceLine();
+                return null;
+        }
+    }
+
+    private Stmt parseAssignment(Interpreter.Line line) {
+        advanceLine();
+        if (line.size() < 3 || line.type(1) != TokenType.EQ) {
+            return null;
+        }
+
+        String varName = name(line, 0);
+        int size = line.size();
+        if (line.type(2) == TokenType.LBRACKET) {
+            return parseArrayLiteral(line, varName);
+        }
+        if (size > 3 && line.type(2) == TokenType.IDENT && name(line, 2).equals("array")
+                && line.type(3) == TokenType.LPAREN && closing(line, 3, size) == size - 1) {
+            List<int[]> arguments = arguments(line, 4, size - 1);
+            Expr length = (arguments.size() == 1)
+                    ? parseExpression(line, arguments.get(0)[0], arguments.get(0)[1])
+                    : new Expr.Fail("array() takes one number.");
+            int arraySlot = arraySlot(varName);
+            return (arraySlot < 0) ? failing(varName, notAnArray(varName)) : new Stmt.NewArray(varName, arraySlot, length);
+        }
+        if (size == 3 && line.type(2) == TokenType.IDENT && arraySlotOf.containsKey(name(line, 2))) {
+            String fromName = name(line, 2);
+            int arraySlot = arraySlot(varName);
+            return (arraySlot < 0) ? failing(varName, notAnArray(varName))
+                    : new Stmt.ShareArray(varName, arraySlot, arraySlotOf.get(fromName));
+        }
+
+        // Everything after '=' is the expression
+        if (arraySlotOf.containsKey(varName)) {
+            return failing(varName, notANumber(varName));
+        }
+        Expr value = parseExpression(line, 2, size);
+        return new Stmt.Assign(varName, slot(varName), value);
+    }
+
+    /**
+     a = [e1, e2, ...] (a trailing comma is fine, [] is empty)
+     */
+    private Stmt parseArrayLiteral(Interpreter.Line line, String varName) {
+        int close = closing(line, 2, line.size());
+        if (close != line.size() - 1) {
+            return failing(varName, "Expected an array like [1, 2, 3].");
+        }
+        List<int[]> arguments = arguments(line, 3, close);
+        if (!arguments.isEmpty() && arguments.get(arguments.size() - 1)[0] == close) {
+            arguments.remove(arguments.size() - 1); // "[1, 2, ]"
+        }
+        Expr[] elements = new Expr[arguments.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = parseExpression(line, arguments.get(i)[0], arguments.get(i)[1]);
+        }
+        int arraySlot = arraySlot(varName);
+        return (arraySlot < 0) ? failing(varName, notAnArray(varName)) : new Stmt.ArrayLiteral(varName, arraySlot, elements);
+    }
+
+    /**
+     a[index] = expr
+     */
+    private Stmt parseElementStore(Interpreter.Line line) {
+        advanceLine();
+        int close = closing(line, 1, line.size());
+        if (close < 0 || close + 1 >= line.size() || line.type(close + 1) != TokenType.EQ) {
+            return null;
+        }
+        String arrayName = name(line, 0);
+        int arraySlot = arraySlot(arrayName);
+        if (arraySlot < 0) {
+            return failing(arrayName, notAnArray(arrayName));
+        }
+        Expr index = parseExpression(line, 2, close);
+        Expr value = parseExpression(line, close + 2, line.size());
+        return new Stmt.StoreElement(arrayName, arraySlot, index, value);
+    }
+
+    // The built-ins that are statements of their own
+    private static boolean isArrayStatement(String name) {
+        return name.equals("fill") || name.equals("add") || name.equals("mul");
+    }
+
+    /**
+     fill(a, expr), add(a, b), mul(a, b). Anything else that looks like them
+     is skipped, like other lines we don't understand.
+     */
+    private Stmt parseArrayStatement(Interpreter.Line line) {
+        advanceLine();
+        int close = closing(line, 1, line.size());
+        if (close != line.size() - 1) {
+            return null;
+        }
+        List<int[]> arguments = arguments(line, 2, close);
+        if (arguments.size() != 2 || !isName(line, arguments.get(0))) {
+            return null;
+        }
+        String function = name(line, 0);
+        String arrayName = name(line, arguments.get(0)[0]);
+        int arraySlot = arraySlot(arrayName);
+        if (arraySlot < 0) {
+            return failing(arrayName, notAnArray(arrayName));
+        }
+        int[] second = arguments.get(1);
+        if (function.equals("fill")) {
+            return new Stmt.Fill(arrayName, arraySlot, parseExpression(line, second[0], second[1]));
+        }
+        if (!isName(line, second)) {
+            return null;
+        }
+        String otherName = name(line, second[0]);
+        int otherSlot = arraySlot(otherName);
+        if (otherSlot < 0) {
+            return failing(otherName, notAnArray(otherName));
+        }
+        TokenType op = function.equals("add") ? TokenType.PLUS : TokenType.STAR;
+        return new Stmt.Combine(op, arrayName, arraySlot, otherName, otherSlot);
+    }
+
+    /**
+     def name(a, b):
+     [block]
+     The def itself is no statement: the function is there for the whole script.
+     A def we can't read is skipped with its block, so calls of it fail as not defined.
+     */
+    private Stmt parseDef(Interpreter.Line line) {
+        advanceLine();
+        int size = line.size();
+        int close = (size > 2 && line.type(2) == TokenType.LPAREN) ? closing(line, 2, size) : -1;
+        if (line.type(1) != TokenType.IDENT || close != size - 2 || line.type(size - 1) != TokenType.COLON
+                || isBuiltIn(name(line, 1))) {
+            skipBlock(line.indent);
+            return null;
+        }
+        List<String> params = new ArrayList<>();
+        for (int[] param : arguments(line, 3, close)) {
+            if (!isName(line, param) || params.contains(name(line, param[0]))) {
+                skipBlock(line.indent);
+                return null;
+            }
+            params.add(name(line, param[0]));
+        }
+
+        // The body gets slots of its own, the parameters first
+        Map<String, Integer> outerSlotOf = slotOf;
+        List<String> outerSlotNames = slotNames;
+        boolean outerInFunction = inFunction;
+        slotOf = new HashMap<>();
+        slotNames = new ArrayList<>();
+        inFunction = true;
+        Function function = function(name(line, 1));
+        try {
+            for (String param : params) {
+                slot(param);
+            }
+            function.body = parseBlock(line.indent);
+            function.paramCount = params.size();
+            function.slotNames = slotNames.toArray(new String[0]);
+        } finally {
+            slotOf = outerSlotOf;
+            slotNames = outerSlotNames;
+            inFunction = outerInFunction;
+        }
+        if (!newFunctions.contains(function)) {
+            newFunctions.add(function);
+        }
+        return null;
+    }
+
+    /**
+     return expr, or just return (gives 0)
+     */
+    private Stmt parseReturn(Interpreter.Line line) {
+        advanceLine();
+        Expr value = (line.size() > 1) ? parseExpression(line, 1, line.size()) : new Expr.Num(0);
+        return new Stmt.Return(inFunction ? value : new Expr.Fail("return outside a function."));
+    }
+
+    /**
+     f(a, b) on its own line. Anything more after the ')' => skip the line.
+     */
+    private Stmt parseCallStatement(Interpreter.Line line) {
+        advanceLine();
+        if (closing(line, 1, line.size()) != line.size() - 1 || isBuiltIn(name(line, 0))) {
+            return null;
+        }
+        Expr call = parseOperand(line, 0, line.size());
+        return (call instanceof Expr.Call) ? new Stmt.Call((Expr.Call) call) : null;
+    }
+
+    /**
+     We skip optional parentheses around the expression if present -> e.g.: print(z) or print z
+     */
+    private Stmt parsePrint(Interpreter.Line line) {
+        advanceLine();
+        if (line.size() < 2) {
+            return null;
+        }
+
+        int startIndex = 1;
+        int endIndex = line.size();
+        if (line.type(startIndex) == TokenType.LPAREN) {
+            startIndex++;
+        }
+        // (but in "print len(a)" the ')' belongs to len)
+        if (line.type(endIndex - 1) == TokenType.RPAREN && (startIndex == 2 || unclosed(line, 1, endIndex) < 0)) {
+            endIndex--;
+        }
+        if (startIndex >= endIndex) {
+            return null;
+        }
+        return new Stmt.Print(parseExpression(line, startIndex, endIndex));
+    }
+
+    /**
+     if expr:
+     [block]
+     else:
+     [block]
+     */
+    private Stmt parseIf(Interpreter.Line line) {
+        advanceLine();
+        int colonIndex = findColon(line);
+        if (colonIndex < 0) {
+            return null;
+        }
+
+        Expr condition = parseExpression(line, 1, colonIndex);
+        Stmt.Block then = parseBlock(line.indent);
+
+        // An 'else' right after the block, at the same indent, belongs to us
+        Stmt.Block otherwise = null;
+        if (!isAtEnd()) {
+            Interpreter.Line next = getLine();
+            if (!next.isEmpty() &&
+                    next.type(0) == TokenType.ELSE &&
+                    next.indent == line.indent)
+            {
+                advanceLine();
+                otherwise = parseBlock(next.indent);
+            }
+        }
+        return new Stmt.If(condition, then, otherwise);
+    }
+
+    /**
+     while expr:
+     [block]
+     */
+    private Stmt parseWhile(Interpreter.Line line) {
+        advanceLine();
+        int colonIndex = findColon(line);
+        if (colonIndex < 0) {
+            return null;
+        }
+
+        Expr condition = parseExpression(line, 1, colonIndex);
+        Stmt.Block body = parseBlock(line.indent);
+        return new Stmt.While(condition, body);
+    }
+
+    /**
+     Finds the position of the first ':' in a list of tokens.
+     Returns -1 if not found.
+     */
+    private int findColon(Interpreter.Line line) {
+        for (int i = 0; i < line.size(); i++) {
+            if (line.type(i) == TokenType.COLON) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skip lines (like a block) until we find a line with indent <= baseIndent.
+     */
+    private void skipBlock(int baseIndent) {
+        while (!isAtEnd() && getLine().indent > baseIndent) {
+            advanceLine();
+        }
+    }
+
+    // ---------------------------------
+    // Expressions
+    // ---------------------------------
+
+    /**
+     Build a left-to-right expression tree from tokens [from, to) of a line, with
+     +, -, *, /, %, and comparisons (==, !=, <, etc.).
+     Tokens that are not operators between values are ignored, like before.
+     */
+    Expr parseExpression(Interpreter.Line line, int from, int to) {
+        if (from >= to) return new Expr.Num(0);
+
+        int end = operandEnd(line, from, to);
+        Expr value = parseOperand(line, from, end);
+        int i = end;
+        while (i < to) {
+            TokenType op = line.type(i);
+            if (isOperator(op)) {
+                if (i + 1 >= to) {
+                    // the left side still runs first, then we complain
+                    return Expr.binary(op, value, new Expr.Fail("Operator at end with no operand."));
+                }
+                end = operandEnd(line, i + 1, to);
+                value = Expr.binary(op, value, parseOperand(line, i + 1, end));
+                i = end;
+            } else {
+                // If it's not an operator, just move on
+                i++;
+            }
+        }
+        return value;
+    }
+
+    // Where the operand starting at token k ends: after its ']' or ')' for a[i], len(a) and f(x),
+    // else right after the one token
+    private int operandEnd(Interpreter.Line line, int k, int to) {
+        if (k + 1 < to && line.type(k) == TokenType.IDENT) {
+            TokenType next = line.type(k + 1);
+            if (next == TokenType.LBRACKET || next == TokenType.LPAREN) {
+                int close = closing(line, k + 1, to);
+                return (close < 0) ? to : close + 1;
+            }
+        }
+        return k + 1;
+    }
+
+    // The built-ins that take an array and give a number
+    private static boolean isArrayFunction(String name) {
+        return name.equals("len") || name.equals("sum") || name.equals("max");
+    }
+
+    // Names a def can't have
+    private static boolean isBuiltIn(String name) {
+        return isArrayFunction(name) || isArrayStatement(name) || name.equals("array");
+    }
+
+    /**
+     Convert the operand in tokens [k, end) of a line to a value node:
+     - NUMBER => already decoded by the Lexer (bigger ones we decode here, any size)
+     - IDENT => variable read
+     - IDENT [ expr ] => array element
+     - len(a), sum(a), max(a) => ArrayCall
+     - f(e1, e2, ...) => Call
+     */
+    private Expr parseOperand(Interpreter.Line line, int k, int end) {
+        TokenBuffer tokens = line.tokens;
+        int i = line.start + k;
+        if (end > k + 1) {
+            String name = name(line, k);
+            int close = end - 1;
+            if (line.type(close) != ((line.type(k + 1) == TokenType.LBRACKET) ? TokenType.RBRACKET : TokenType.RPAREN)) {
+                return new Expr.Fail("Missing closing bracket after " + name + ".");
+            }
+            if (line.type(k + 1) == TokenType.LBRACKET) {
+                int arraySlot = arraySlot(name);
+                return (arraySlot < 0) ? new Expr.Fail(notAnArray(name))
+                        : new Expr.Element(name, arraySlot, parseExpression(line, k + 2, close));
+            }
+            List<int[]> arguments = arguments(line, k + 2, close);
+            if (!isArrayFunction(name)) {
+                return parseCall(line, name, arguments, close);
+            }
+            if (arguments.size() != 1 || !isName(line, arguments.get(0))) {
+                return new Expr.Fail(name + "() takes an array name.");
+            }
+            String arrayName = name(line, arguments.get(0)[0]);
+            int arraySlot = arraySlot(arrayName);
+            return (arraySlot < 0) ? new Expr.Fail(notAnArray(arrayName)) : Expr.arrayCall(name, arrayName, arraySlot);
+        }
+        switch (tokens.type(i)) {
+            case NUMBER:
+                if (tokens.isBigNumber(i)) {
+                    BigInteger value = new BigInteger(tokens.text(i));
+                    long fitted = Numbers.fit(value);
+                    return (fitted == Numbers.BIG) ? new Expr.BigNum(value) : new Expr.Num(fitted);
+                }
+                return new Expr.Num(tokens.value(i));
+            case IDENT:
+                String name = tokens.identifier(tokens.value(i));
+                if (arraySlotOf.containsKey(name)) {
+                    return new Expr.Fail(notANumber(name));
+                }
+                return new Expr.Var(name, slot(name));
+            default:
+                return new Expr.Fail("Unexpected token in expression: " + tokens.token(i));
+        }
+    }
+
+    // name(arguments...), the arguments as split by arguments() (a trailing comma is fine)
+    private Expr parseCall(Interpreter.Line line, String name, List<int[]> arguments, int close) {
+        if (!arguments.isEmpty() && arguments.get(arguments.size() - 1)[0] == close) {
+            arguments.remove(arguments.size() - 1);
+        }
+        Expr[] values = new Expr[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parseExpression(line, arguments.get(i)[0], arguments.get(i)[1]);
+        }
+        return new Expr.Call(function(name), values);
+    }
+
+    // Check if token type is an operator or comparison
+    private boolean isOperator(TokenType t) {
+        switch (t) {
+            case PLUS: case MINUS: case STAR: case SLASH: case MOD:
+            case EQEQ: case NEQ: case GT: case GTE: case LT: case LTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // ---------------------------------
+    // Variable slots
+    // ---------------------------------
+
+    // Slot number for a variable name, handing out a new one if needed
+    private int slot(String name) {
+        Integer slot = slotOf.get(name);
+        if (slot == null) {
+            slot = slotNames.size();
+            slotOf.put(name, slot);
+            slotNames.add(name);
+        }
+        return slot;
+    }
+
+    /**
+     Names of all slots, by slot number (only for debugging and dumps).
+     Call after parseProgram() or parseMore().
+     */
+    String[] getSlotNames() {
+        return slotNames.toArray(new String[0]);
+    }
+
+    // Array slot for a name, handing out a new one if needed; -1 if the name is already a number
+    private int arraySlot(String name) {
+        Integer slot = arraySlotOf.get(name);
+        if (slot == null) {
+            if (slotOf.containsKey(name)) {
+                return -1;
+            }
+            slot = arrayNames.size();
+            arraySlotOf.put(name, slot);
+            arrayNames.add(name);
+        }
+        return slot;
+    }
+
+    /**
+     Names of all array slots, by array slot number (see getSlotNames()).
+     */
+    String[] getArrayNames() {
+        return arrayNames.toArray(new String[0]);
+    }
+
+    // ---------------------------------
+    // Functions
+    // ---------------------------------
+
+    // The Function of a name, made (not defined yet) the first time we meet the name
+    private Function function(String name) {
+        Function function = functions.get(name);
+        if (function == null) {
+            function = new Function(name, functionList.size());
+            functions.put(name, function);
+            functionList.add(function);
+        }
+        return function;
+    }
+
+    /**
+     Every function met so far (defined or only called), by Function.index.
+     */
+    Function[] getFunctions() {
+        return functionList.toArray(new Function[0]);
+    }
+
+    /**
+     The functions whose def was read since the last call (their bodies are new and
+     not optimized yet). A REPL entry that redefines a function has it here again.
+     */
+    List<Function> newFunctions() {
+        List<Function> parsed = new ArrayList<>(newFunctions);
+        newFunctions.clear();
+        return parsed;
+    }
+
+    private static String notAnArray(String name) {
+        return name + " is a number, not an array.";
+    }
+
+    private static String notANumber(String name) {
+        return name + " is an array, not a number.";
+    }
+
+    // A statement that fails with 'message' when it runs (for using a name as the wrong kind).
+    // The name is a number here, or it's an array that also gets a number slot nobody reads.
+    private Stmt failing(String name, String message) {
+        return new Stmt.Assign(name, slot(name), new Expr.Fail(message));
+    }
+
+    // ---------------------------------
+    // Helpers
+    // ---------------------------------
+
+    // The name of the identifier at token k of a line
+    private static String name(Interpreter.Line line, int k) {
+        return line.tokens.identifier(line.tokens.value(line.start + k));
+    }
+
+    // True if tokens [range[0], range[1]) are just one name
+    private static boolean isName(Interpreter.Line line, int[] range) {
+        return range[1] == range[0] + 1 && line.type(range[0]) == TokenType.IDENT;
+    }
+
+    /**
+     The token that closes the '[' or '(' at token 'open' (looking no further than 'to'),
+     or -1 if it isn't closed.
+     */
+    private static int closing(Interpreter.Line line, int open, int to) {
+        int depth = 0;
+        for (int k = open; k < to; k++) {
+            TokenType type = line.type(k);
+            if (type == TokenType.LBRACKET || type == TokenType.LPAREN) {
+                depth++;
+            } else if (type == TokenType.RBRACKET || type == TokenType.RPAREN) {
+                if (--depth == 0) {
+                    return k;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Brackets opened minus brackets closed in tokens [from, to)
+    private static int unclosed(Interpreter.Line line, int from, int to) {
+        int depth = 0;
+        for (int k = from; k < to; k++) {
+            TokenType type = line.type(k);
+            if (type == TokenType.LBRACKET || type == TokenType.LPAREN) {
+                depth++;
+            } else if (type == TokenType.RBRACKET || type == TokenType.RPAREN) {
+                depth--;
+            }
+        }
+        return depth;
+    }
+
+    // Split tokens [from, to) at the commas that aren't inside brackets: one {start, end} per argument
+    private static List<int[]> arguments(Interpreter.Line line, int from, int to) {
+        List<int[]> arguments = new ArrayList<>();
+        if (from >= to) {
+            return arguments;
+        }
+        int depth = 0;
+        int start = from;
+        for (int k = from; k < to; k++) {
+            TokenType type = line.type(k);
+            if (type == TokenType.LBRACKET || type == TokenType.LPAREN) {
+                depth++;
+            } else if (type == TokenType.RBRACKET || type == TokenType.RPAREN) {
+                depth--;
+            } else if (type == TokenType.COMMA && depth == 0) {
+                arguments.add(new int[]{start, k});
+                start = k + 1;
+            }
+        }
+        arguments.add(new int[]{start, to});
+        return arguments;
+    }
+
+    private void addStatement(List<Stmt> statements, Stmt stmt) {
+        if (stmt != null) {
+            statements.add(stmt);
+        }
+    }
+
+    private Stmt.Block toBlock(List<Stmt> statements) {
+        return new Stmt.Block(statements.toArray(new Stmt[0]));
+    }
+
+    // True if we've consumed all lines
+    private boolean isAtEnd() {
+        return current == null;
+    }
+
+    // Get the current line object
+    private Interpreter.Line getLine() {
+        return current;
+    }
+
+    // Move to the next line
+    private void advanceLine() {
+        current = lines.hasNext() ? lines.next() : null;
+        lineNumber++;
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ Profiler: which source lines a program spends its time on.
+ Switched on with Interpreter.setProfiling(true). For every line we record:
+ - how many times its statement ran
+ - the time spent in it, including everything it ran (a while line includes its whole loop)
+ - for while lines, how many iterations the loop made
+
+ It works on a copy of the program tree with timing nodes around every statement,
+ so the normal tree has no profiling checks in it at all: when profiling is off,
+ nothing changes. Profiled loops are never JIT-compiled (LoopJit doesn't know
+ the timing nodes), so every iteration is really measured.
+ Function bodies are not copied: a call's time counts for the line that makes the call.
+ */
+public final class Profiler {
+
+    /**
+     What we measured for one source line.
+     */
+    public static final class LineStats {
+        private final int line;
+        private final boolean loop;
+        long count = 0;
+        long nanos = 0;
+        long iterations = 0;
+
+        LineStats(int line, boolean loop) {
+            this.line = line;
+            this.loop = loop;
+        }
+
+        public int line() {
+            return line;
+        }
+
+        public boolean isLoop() {
+            return loop;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        // Only counted for while lines
+        public long iterations() {
+            return iterations;
+        }
+    }
+
+    private final Map<Integer, LineStats> lines = new TreeMap<>();
+    private long totalNanos = 0;
+
+    /**
+     A copy of the program with every statement wrapped in a timing node.
+     */
+    Stmt.Block instrument(Stmt.Block program) {
+        return block(program);
+    }
+
+    // Time of a whole run, to compute percentages
+    void addRunTime(long nanos) {
+        totalNanos += nanos;
+    }
+
+    private Stmt.Block block(Stmt.Block block) {
+        Stmt[] body = new Stmt[block.body.length];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = statement(block.body[i]);
+        }
+        return new Stmt.Block(body);
+    }
+
+    private Stmt statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            return block((Stmt.Block) stmt);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            Stmt copy = new Stmt.If(ifStmt.condition, block(ifStmt.then),
+                    ifStmt.otherwise == null ? null : block(ifStmt.otherwise)).at(stmt.line);
+            return new Timed(copy, stats(stmt.line, false));
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While whileStmt = (Stmt.While) stmt;
+            LineStats stats = stats(stmt.line, true);
+            Stmt.Block body = block(whileStmt.body);
+            Stmt[] counted = new Stmt[body.body.length + 1];
+            counted[0] = new Iteration(stats);
+            System.arraycopy(body.body, 0, counted, 1, body.body.length);
+            Stmt copy = new Stmt.While(whileStmt.condition, new Stmt.Block(counted)).at(stmt.line);
+            return new Timed(copy, stats);
+        }
+        return new Timed(stmt, stats(stmt.line, false));
+    }
+
+    private LineStats stats(int line, boolean loop) {
+        return lines.computeIfAbsent(line, l -> new LineStats(l, loop));
+    }
+
+    // ---------------------------------
+    // Results
+    // ---------------------------------
+
+    /**
+     Stats of every line that has a statement, hottest (most time) first.
+     */
+    public List<LineStats> hotSpots() {
+        List<LineStats> sorted = new ArrayList<>(lines.values());
+        sorted.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        return sorted;
+    }
+
+    /**
+     The hot-spot report as a table, hottest line first.
+     */
+    public void printReport(PrintStream ps) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%6s %12s %12s %12s %10s %7s%n",
+                "line", "count", "iterations", "total ms", "avg us", "%"));
+        for (LineStats s : hotSpots()) {
+            sb.append(String.format("%6d %12d %12s %12.3f %10.3f %6.1f%%%n",
+                    s.line, s.count, s.loop ? String.valueOf(s.iterations) : "-",
+                    s.nanos / 1_000_000.0,
+                    s.count == 0 ? 0.0 : s.nanos / 1000.0 / s.count,
+                    totalNanos == 0 ? 0.0 : 100.0 * s.nanos / totalNanos));
+        }
+        sb.append(String.format("total %.3f ms%n", totalNanos / 1_000_000.0));
+        ps.print(sb);
+        ps.flush();
+    }
+
+    /**
+     The same numbers as CSV (line,count,iterations,nanos), in line order, for other tools.
+     */
+    public String toCsv() {
+        StringBuilder sb = new StringBuilder("line,count,iterations,nanos\n");
+        for (LineStats s : lines.values()) {
+            sb.append(s.line).append(',').append(s.count).append(',')
+                    .append(s.loop ? s.iterations : 0).append(',').append(s.nanos).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // ---------------------------------
+    // Timing nodes
+    // ---------------------------------
+
+    /**
+     Runs a statement and adds one execution and its time to the line's stats.
+     Errors still count (that's often the interesting line).
+     */
+    private static final class Timed extends Stmt {
+        private final Stmt inner;
+        private final LineStats stats;
+
+        Timed(Stmt inner, LineStats stats) {
+            this.inner = inner;
+            this.stats = stats;
+            this.line = inner.line;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long start = System.nanoTime();
+            try {
+                inner.exec(in);
+            } finally {
+                stats.nanos += System.nanoTime() - start;
+                stats.count++;
+            }
+        }
+
+        @Override
+        boolean canReturn() {
+            return inner.canReturn();
+        }
+    }
+
+    /**
+     First statement of a profiled loop body: counts one iteration.
+     */
+    private static final class Iteration extends Stmt {
+        private final LineStats stats;
+
+        Iteration(LineStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            stats.iterations++;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.Iterator;
+
+/**
+ Program: a script compiled once (split into lines, parsed, optimized) and ready to run.
+ It keeps no run state: variables and output live in the Interpreter running it,
+ so one Program can be run by many Interpreters, on many threads at the same time.
+ (The only thing a run changes is the JIT bookkeeping inside Stmt.While,
+ and that is safe to share: a loop gets compiled once, for everybody.)
+ */
+public final class Program {
+
+    // Rough sizes in bytes of what we hold, for ProgramCache's memory cap
+    private static final int NODE_BYTES = 32;
+    private static final int NAME_BYTES = 48;
+    private static final int REF_BYTES = 8; // one entry of an array of nodes
+
+    final Stmt.Block body;
+    final String[] slotNames;
+    final String[] arrayNames;
+    final Function[] functions; // by Function.index (calls in the tree point at them directly)
+    private final long estimatedBytes;
+
+    private Program(Stmt.Block body, String[] slotNames, String[] arrayNames, Function[] functions) {
+        this.body = body;
+        this.slotNames = slotNames;
+        this.arrayNames = arrayNames;
+        this.functions = functions;
+        long bytes = estimate(body);
+        for (Function function : functions) {
+            bytes += NODE_BYTES + NAME_BYTES + 2L * function.name.length();
+            if (function.isDefined()) {
+                bytes += estimate(function.body);
+                for (String name : function.slotNames) {
+                    bytes += NAME_BYTES + 2L * name.length();
+                }
+            }
+        }
+        for (String name : slotNames) {
+            bytes += NAME_BYTES + 2L * name.length();
+        }
+        for (String name : arrayNames) {
+            bytes += NAME_BYTES + 2L * name.length();
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    /**
+     Lex, parse and optimize a whole source.
+     */
+    public static Program compile(String source) {
+        TokenBuffer tokens = new Lexer(source).tokenizeToBuffer();
+        return compile(Interpreter.splitIntoIndentedLines(tokens, source).iterator(), new Optimizer());
+    }
+
+    // Compile lines (in any form) with the given optimizer
+    static Program compile(Iterator<Interpreter.Line> lines, Optimizer optimizer) {
+        Events.Compile event = new Events.Compile();
+        event.begin();
+        Parser parser = new Parser(lines);
+        Stmt.Block parsed = parser.parseProgram();
+        optimizer.optimizeFunctions(parser.newFunctions());
+        Stmt.Block body = optimizer.optimize(parsed);
+        return committed(event, new Program(body, parser.getSlotNames(), parser.getArrayNames(), parser.getFunctions()));
+    }
+
+    // Compile the next entry of a REPL session with the session's Parser (see Repl),
+    // so names it shares with earlier entries get the same slots (and functions defined
+    // by earlier entries can be called; a def in this entry replaces an earlier one)
+    static Program compileMore(Parser parser, Iterator<Interpreter.Line> lines, Optimizer optimizer) {
+        Events.Compile event = new Events.Compile();
+        event.begin();
+        Stmt.Block parsed = parser.parseMore(lines);
+        optimizer.optimizeFunctions(parser.newFunctions());
+        Stmt.Block body = optimizer.optimize(parsed);
+        return committed(event, new Program(body, parser.getSlotNames(), parser.getArrayNames(), parser.getFunctions()));
+    }
+
+    // Finish the JFR event of a compile (see Events)
+    private static Program committed(Events.Compile event, Program program) {
+        if (event.shouldCommit()) {
+            event.engine = "tree";
+            event.variables = program.slotNames.length;
+            event.commit();
+        }
+        return program;
+    }
+
+    /**
+     How many different variables the program uses.
+     */
+    public int variableCount() {
+        return slotNames.length;
+    }
+
+    /**
+     About how much memory the compiled program takes (not counting JIT-compiled loops).
+     */
+    public long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    // Count the nodes of the tree. Every node type is listed, also the ones that hold nothing
+    // but names and slots, so a new one shows up here as missing rather than as "just a node"
+    private static long estimate(Stmt stmt) {
+        long bytes = NODE_BYTES;
+        if (stmt instanceof Stmt.Block) {
+            Stmt[] body = ((Stmt.Block) stmt).body;
+            bytes += REF_BYTES * body.length;
+            for (Stmt s : body) {
+                bytes += estimate(s);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            // (also Increment, the fused "x = x + c")
+            bytes += estimate(((Stmt.Assign) stmt).value);
+        } else if (stmt instanceof Stmt.Print) {
+            bytes += estimate(((Stmt.Print) stmt).value);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            bytes += estimate(ifStmt.condition) + estimate(ifStmt.then);
+            if (ifStmt.otherwise != null) {
+                bytes += estimate(ifStmt.otherwise);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            bytes += estimate(((Stmt.While) stmt).condition) + estimate(((Stmt.While) stmt).body);
+            if (stmt instanceof Stmt.CountedWhile) {
+                // Its closed form: one small object per variable the loop updates
+                bytes += NODE_BYTES * (1L + ((Stmt.CountedWhile) stmt).closedForm.updateCount());
+            }
+        } else if (stmt instanceof Stmt.NewArray) {
+            bytes += estimate(((Stmt.NewArray) stmt).size);
+        } else if (stmt instanceof Stmt.ArrayLiteral) {
+            Expr[] elements = ((Stmt.ArrayLiteral) stmt).elements;
+            bytes += REF_BYTES * elements.length;
+            for (Expr element : elements) {
+                bytes += estimate(element);
+            }
+        } else if (stmt instanceof Stmt.StoreElement) {
+            bytes += estimate(((Stmt.StoreElement) stmt).index) + estimate(((Stmt.StoreElement) stmt).value);
+        } else if (stmt instanceof Stmt.Fill) {
+            bytes += estimate(((Stmt.Fill) stmt).value);
+        } else if (stmt instanceof Stmt.Call) {
+            bytes += estimate(((Stmt.Call) stmt).call);
+        } else if (stmt instanceof Stmt.Return) {
+            bytes += estimate(((Stmt.Return) stmt).value); // (tailCall is that same node)
+        } else if (stmt instanceof Stmt.ShareArray || stmt instanceof Stmt.Combine) {
+            // Only names and slots
+        }
+        return bytes;
+    }
+
+    private static long estimate(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            // (also VarVar and VarNum, which keep the operands they were fused from)
+            return NODE_BYTES + estimate(((Expr.Binary) expr).left) + estimate(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Element) {
+            return NODE_BYTES + estimate(((Expr.Element) expr).index);
+        } else if (expr instanceof Expr.Call) {
+            Expr[] arguments = ((Expr.Call) expr).arguments;
+            long bytes = NODE_BYTES + REF_BYTES * arguments.length;
+            for (Expr argument : arguments) {
+                bytes += estimate(argument);
+            }
+            return bytes;
+        } else if (expr instanceof Expr.BigNum) {
+            // The BigInteger and its int[] of digits
+            return 2L * NODE_BYTES + 4L * (((Expr.BigNum) expr).value.bitLength() / 32 + 1);
+        } else if (expr instanceof Expr.Fail) {
+            return NODE_BYTES + NAME_BYTES + 2L * ((Expr.Fail) expr).message.length();
+        }
+        // Num, Var and ArrayCall: only a number, a slot or names
+        return NODE_BYTES;
+    }
+}
@@ -0,0 +1,131 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ ProgramCache: compiled Programs by source text, so running the same script again
+ skips lexing, parsing and optimizing.
+
+ - Key: SHA-256 of the source (we don't keep the source text itself)
+ - Bounded by number of programs and by their estimated memory (Program.estimatedBytes)
+ - When full, the least recently used program goes first
+ - Counts hits, misses and evictions
+
+ Safe to use from many threads. Compiling happens outside the lock, so a slow
+ compile doesn't block lookups of other programs; if two threads miss on the
+ same source at once, both compile and the first one to finish is kept.
+ */
+public final class ProgramCache {
+    private final int maxPrograms;
+    private final long maxBytes;
+
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Program> programs = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     A cache holding at most maxPrograms programs taking at most maxBytes together.
+     */
+    public ProgramCache(int maxPrograms, long maxBytes) {
+        if (maxPrograms < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Cache limits must be positive: "
+                    + maxPrograms + " programs, " + maxBytes + " bytes");
+        }
+        this.maxPrograms = maxPrograms;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     The compiled program for this source, compiling it on a miss.
+     Compile errors are thrown to the caller and nothing is cached.
+     */
+    public Program get(String source) {
+        String key = hash(source);
+        synchronized (this) {
+            Program cached = programs.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        Program compiled = Program.compile(source);
+
+        synchronized (this) {
+            Program raced = programs.get(key);
+            if (raced != null) {
+                return raced;
+            }
+            // A program bigger than the whole cache is handed out but not kept
+            if (compiled.estimatedBytes() <= maxBytes) {
+                programs.put(key, compiled);
+                bytes += compiled.estimatedBytes();
+                evict();
+            }
+            return compiled;
+        }
+    }
+
+    // Drop least recently used programs until we're within both limits
+    private void evict() {
+        Iterator<Map.Entry<String, Program>> it = programs.entrySet().iterator();
+        while ((programs.size() > maxPrograms || bytes > maxBytes) && it.hasNext()) {
+            bytes -= it.next().getValue().estimatedBytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    // How many programs are cached right now
+    public synchronized int size() {
+        return programs.size();
+    }
+
+    // Estimated memory of all cached programs
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    // Forget every program (the counters stay)
+    public synchronized void clear() {
+        programs.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ProgramCache[" + programs.size() + " programs, " + bytes + " bytes, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+    }
+
+    // Hex SHA-256 of the source text
+    private static String hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
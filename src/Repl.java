@@ -0,0 +1,96 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ Repl: an interactive session. One Interpreter stays alive the whole time,
+ so every variable is still there for the next entry.
+
+ Only the new entry is lexed, parsed and optimized, never what came before:
+ all entries share one Parser, which is what keeps a name on the same slot.
+ An entry is one line, or, if the line ends with ':', that line plus the indented
+ lines after it up to an empty line (the same block rules as a script,
+ so an "else:" line before the empty line belongs to the if above it).
+
+ An error only ends the entry it happened in. Variables assigned before it keep
+ their new values, like in a script that stops halfway.
+ */
+public final class Repl {
+    private static final String PROMPT = ">>> ";
+    private static final String MORE_PROMPT = "... ";
+
+    private final Parser parser = new Parser(Collections.emptyIterator());
+    private final Optimizer optimizer = new Optimizer();
+    private final Interpreter interpreter;
+
+    public Repl() {
+        // Starts out with an empty program; every entry then runs as a program of its own
+        interpreter = new Interpreter(Program.compileMore(parser, Collections.emptyIterator(), optimizer));
+    }
+
+    /**
+     Run one entry (one or more lines of code) against the session's variables.
+     Errors are thrown as usual; the session stays usable afterwards.
+     */
+    public void execute(String entry) {
+        TokenBuffer tokens = new Lexer(entry).tokenizeToBuffer();
+        Iterator<Interpreter.Line> lines = Interpreter.splitIntoIndentedLines(tokens, entry).iterator();
+        interpreter.interpret(Program.compileMore(parser, lines, optimizer));
+    }
+
+    /**
+     All variables of the session so far, see Interpreter.getVariables().
+     */
+    public Map<String, Number> getVariables() {
+        return interpreter.getVariables();
+    }
+
+    /**
+     Send print output somewhere else (System.out by default).
+     */
+    void setOutput(OutputSink out) {
+        interpreter.setOutput(out);
+    }
+
+    /**
+     Read entries from 'in' until it ends, running each one as soon as it's complete.
+     Prompts go to 'prompts' and errors to 'errors'; print output goes to the output sink.
+     */
+    public void run(BufferedReader in, PrintStream prompts, PrintStream errors) throws IOException {
+        while (true) {
+            prompts.print(PROMPT);
+            prompts.flush();
+            String line = in.readLine();
+            if (line == null) {
+                prompts.println();
+                return;
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+
+            StringBuilder entry = new StringBuilder(line).append('\n');
+            if (line.stripTrailing().endsWith(":")) {
+                // A block: keep reading until an empty line (or the end of the input)
+                while (true) {
+                    prompts.print(MORE_PROMPT);
+                    prompts.flush();
+                    String more = in.readLine();
+                    if (more == null || more.isBlank()) {
+                        break;
+                    }
+                    entry.append(more).append('\n');
+                }
+            }
+
+            try {
+                execute(entry.toString());
+            } catch (RuntimeException e) {
+                errors.println("Error: " + e.getMessage());
+            }
+        }
+    }
+}
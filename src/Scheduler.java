@@ -0,0 +1,118 @@
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ Scheduler: runs any number of VMs on a few carrier threads, one time slice at a time.
+
+ A script never gets a thread of its own. Each turn it runs VM.runFor(sliceSteps)
+ and then goes to the back of the queue, so with N scripts waiting every script
+ gets a slice at least once every N slices, however long the others loop.
+ A script that never ends only ever costs its slices, and with a step limit
+ it is stopped with an error.
+
+ Between slices a VM is just an object in the queue; the queue hands it from one
+ carrier to the next, so a VM may run on a different thread every slice
+ but never on two at once.
+ */
+public final class Scheduler implements AutoCloseable {
+
+    /**
+     One submitted VM and how far it got.
+     */
+    private static final class Task {
+        final VM vm;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        long steps = 0; // steps handed out so far (whole slices)
+
+        Task(VM vm) {
+            this.vm = vm;
+        }
+    }
+
+    private final ExecutorService carriers;
+    private final Set<Task> unfinished = ConcurrentHashMap.newKeySet(); // for close()
+    private final long sliceSteps;
+    private final long stepLimit;
+
+    /**
+     'carriers' threads share all scripts; each turn a script runs 'sliceSteps' steps
+     (see VM.runFor). A script that used up 'stepLimit' steps without finishing
+     fails with "Step limit exceeded." (0 = no limit).
+     */
+    public Scheduler(int carriers, long sliceSteps, long stepLimit) {
+        if (carriers <= 0) {
+            throw new IllegalArgumentException("carriers must be > 0, got " + carriers);
+        }
+        if (sliceSteps <= 0) {
+            throw new IllegalArgumentException("sliceSteps must be > 0, got " + sliceSteps);
+        }
+        if (stepLimit < 0) {
+            throw new IllegalArgumentException("stepLimit must be >= 0, got " + stepLimit);
+        }
+        // A fixed pool works through its queue in order, which is the round robin
+        this.carriers = Executors.newFixedThreadPool(carriers);
+        this.sliceSteps = sliceSteps;
+        this.stepLimit = stepLimit;
+    }
+
+    /**
+     Queue a VM (from the start, or wherever it stopped). The future completes when
+     the program finishes, or completes exceptionally with the program's error.
+     Cancelling the future takes the VM out at the end of its current slice.
+     */
+    public CompletableFuture<Void> submit(VM vm) {
+        Task task = new Task(vm);
+        unfinished.add(task);
+        task.done.whenComplete((ignored, error) -> unfinished.remove(task));
+        schedule(task);
+        return task.done;
+    }
+
+    // Put a task at the back of the queue
+    private void schedule(Task task) {
+        try {
+            carriers.execute(() -> slice(task));
+        } catch (RejectedExecutionException e) {
+            // closed
+            task.done.cancel(false);
+        }
+    }
+
+    // One turn of one script, on a carrier thread
+    private void slice(Task task) {
+        if (task.done.isDone()) {
+            return; // cancelled while waiting
+        }
+        boolean finished;
+        try {
+            finished = task.vm.runFor(sliceSteps);
+        } catch (RuntimeException e) {
+            task.done.completeExceptionally(e);
+            return;
+        }
+        task.steps += sliceSteps;
+        if (finished) {
+            task.done.complete(null);
+        } else if (stepLimit > 0 && task.steps >= stepLimit) {
+            task.done.completeExceptionally(new RuntimeException("Step limit exceeded."));
+        } else {
+            schedule(task);
+        }
+    }
+
+    /**
+     Stop the carriers. Scripts that haven't finished yet are cancelled
+     (a slice that's running still ends normally).
+     */
+    @Override
+    public void close() {
+        carriers.shutdownNow(); // drops the waiting slices (its interrupt is harmless: a VM never waits)
+        for (Task task : unfinished) {
+            task.done.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/**
+ Stmt: a compiled statement node.
+ The Parser turns each Line into one of these (plus the lines of its block),
+ so running a program is just calling exec() on the tree.
+ */
+abstract class Stmt {
+
+    // Source line the statement was parsed from (1 = first line), 0 if we don't know
+    int line = 0;
+
+    // Run this statement against the interpreter's state
+    abstract void exec(Interpreter in);
+
+    // Set the source line and return this, handy right after 'new'
+    Stmt at(int line) {
+        this.line = line;
+        return this;
+    }
+
+    // True if running this can run a return statement (only ever inside a function body).
+    // Blocks and loops that can't skip the check for it
+    boolean canReturn() {
+        return false;
+    }
+
+    /**
+     A list of statements run one after another (the whole program, or an if/while body).
+     */
+    static final class Block extends Stmt {
+        final Stmt[] body;
+        private final boolean canReturn;
+
+        Block(Stmt[] body) {
+            this.body = body;
+            boolean any = false;
+            for (Stmt s : body) {
+                any |= s.canReturn();
+            }
+            this.canReturn = any;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            int ran = 0; // for InterpreterMetrics: one add per block, not per statement
+            try {
+                for (Stmt s : body) {
+                    s.exec(in);
+                    ran++;
+                    if (canReturn && in.returning) {
+                        return; // the rest of the function doesn't run
+                    }
+                }
+            } finally {
+                in.countStatements(ran); // only what ran, even on a return or an error
+            }
+        }
+
+        @Override
+        boolean canReturn() {
+            return canReturn;
+        }
+    }
+
+    /**
+     name = expr
+     */
+    static class Assign extends Stmt {
+        final String name; // kept for debugging
+        final int slot;
+        final Expr value;
+
+        Assign(String name, int slot, Expr value) {
+            this.name = name;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            in.store(slot, value.eval(in));
+        }
+    }
+
+    /**
+     Superinstruction for "x = x + number" / "x = x - number": one add, no expression nodes.
+     Made by the optimizer's "fuse" pass. 'value' still holds the original expression,
+     so whoever only knows Assign (VM compiler, LoopJit) sees the same statement.
+     */
+    static final class Increment extends Assign {
+        final long delta;
+
+        Increment(String name, int slot, Expr value, long delta) {
+            super(name, slot, value);
+            this.delta = delta;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long old = in.slots[slot];
+            if (old != Numbers.BIG) {
+                long result = Numbers.add(old, delta);
+                if (result != Numbers.BIG) {
+                    in.slots[slot] = result;
+                    return;
+                }
+            }
+            // Big numbers: evaluate 'value' the normal way
+            super.exec(in);
+        }
+    }
+
+    /**
+     a = array(n): a new array of n zeros.
+     */
+    static final class NewArray extends Stmt {
+        final String name;
+        final int arraySlot;
+        final Expr size;
+
+        NewArray(String name, int arraySlot, Expr size) {
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.size = size;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long n = size.eval(in);
+            if (n < 0 || n > ArrayOps.MAX_LENGTH) {
+                throw ArrayOps.badSize((n == Numbers.BIG) ? in.bigResult.toString() : Long.toString(n));
+            }
+            in.arrays[arraySlot] = new long[(int) n];
+        }
+    }
+
+    /**
+     a = [e1, e2, ...]: a new array holding these values (evaluated left to right).
+     */
+    static final class ArrayLiteral extends Stmt {
+        final String name;
+        final int arraySlot;
+        final Expr[] elements;
+
+        ArrayLiteral(String name, int arraySlot, Expr[] elements) {
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.elements = elements;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long[] array = new long[elements.length];
+            boolean tooBig = false;
+            for (int i = 0; i < array.length; i++) {
+                array[i] = elements[i].eval(in);
+                tooBig |= (array[i] == Numbers.BIG);
+            }
+            if (tooBig) { // only after all of them, like the VM
+                throw ArrayOps.tooBig(name);
+            }
+            in.arrays[arraySlot] = array;
+        }
+    }
+
+    /**
+     a = b: both names are the same array from now on (like in Python, nothing is copied).
+     */
+    static final class ShareArray extends Stmt {
+        final String name;
+        final int arraySlot;
+        final int fromSlot;
+
+        ShareArray(String name, int arraySlot, int fromSlot) {
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.fromSlot = fromSlot;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            in.arrays[arraySlot] = in.arrays[fromSlot];
+        }
+    }
+
+    /**
+     a[index] = value. The value is evaluated first, then the index (like Python),
+     and only then are they checked.
+     */
+    static final class StoreElement extends Stmt {
+        final String name;
+        final int arraySlot;
+        final Expr index;
+        final Expr value;
+
+        StoreElement(String name, int arraySlot, Expr index, Expr value) {
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long v = value.eval(in);
+            long i = index.eval(in);
+            if (v == Numbers.BIG) {
+                throw ArrayOps.tooBig(name);
+            }
+            long[] array = in.arrays[arraySlot];
+            if (i < 0 || i >= array.length) {
+                throw ArrayOps.outOfRange(name, (i == Numbers.BIG) ? in.bigResult.toString() : Long.toString(i), array.length);
+            }
+            array[(int) i] = v;
+        }
+    }
+
+    /**
+     fill(a, value): every element of a becomes value.
+     */
+    static final class Fill extends Stmt {
+        final String name;
+        final int arraySlot;
+        final Expr value;
+
+        Fill(String name, int arraySlot, Expr value) {
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.value = value;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long v = value.eval(in);
+            if (v == Numbers.BIG) {
+                throw ArrayOps.tooBig(name);
+            }
+            ArrayOps.fill(in.arrays[arraySlot], v);
+        }
+    }
+
+    /**
+     add(a, b) / mul(a, b): a[i] = a[i] op b[i] for every i ('op' is PLUS or STAR).
+     Both arrays need the same length, and every result has to fit in an element.
+     */
+    static final class Combine extends Stmt {
+        final TokenType op;
+        final String name;
+        final int arraySlot;
+        final String otherName;
+        final int otherSlot;
+
+        Combine(TokenType op, String name, int arraySlot, String otherName, int otherSlot) {
+            this.op = op;
+            this.name = name;
+            this.arraySlot = arraySlot;
+            this.otherName = otherName;
+            this.otherSlot = otherSlot;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long[] target = in.arrays[arraySlot];
+            long[] other = in.arrays[otherSlot];
+            if (target.length != other.length) {
+                throw ArrayOps.differentLengths(name, target.length, otherName, other.length);
+            }
+            int failed = (op == TokenType.PLUS) ? ArrayOps.add(target, other) : ArrayOps.multiply(target, other);
+            if (failed >= 0) {
+                throw ArrayOps.tooBig(name);
+            }
+        }
+    }
+
+    /**
+     print(expr) or print expr
+     */
+    static final class Print extends Stmt {
+        final Expr value;
+
+        Print(Expr value) {
+            this.value = value;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long result = value.eval(in);
+            if (result == Numbers.BIG) {
+                in.out.printBig(in.bigResult);
+            } else {
+                in.out.printLong(result);
+            }
+            in.printed++;
+        }
+    }
+
+    /**
+     f(a, b) on a line of its own: a call whose value nobody uses.
+     */
+    static final class Call extends Stmt {
+        final Expr.Call call;
+
+        Call(Expr.Call call) {
+            this.call = call;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            call.eval(in);
+        }
+    }
+
+    /**
+     return expr (just "return" gives 0). It leaves the value in in.returnValue
+     (a BIG one's BigInteger stays in bigResult) and sets in.returning, which makes
+     every block and loop of the function stop, up to Interpreter.call().
+
+     "return f(...)" is a tail call: we only evaluate the arguments and tell
+     Interpreter.call() to run f next, in the frame we are leaving.
+     */
+    static final class Return extends Stmt {
+        final Expr value;
+        final Expr.Call tailCall; // value, if it's a call; else null
+
+        Return(Expr value) {
+            this.value = value;
+            this.tailCall = (value instanceof Expr.Call) ? (Expr.Call) value : null;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            if (tailCall != null) {
+                in.pushArguments(tailCall.arguments);
+                in.tailCall = tailCall.function;
+            } else {
+                in.returnValue = value.eval(in);
+            }
+            in.returning = true;
+        }
+
+        @Override
+        boolean canReturn() {
+            return true;
+        }
+    }
+
+    /**
+     if cond: [then] else: [otherwise]
+     otherwise is null when there is no else.
+     */
+    static final class If extends Stmt {
+        final Expr condition;
+        final Block then;
+        final Block otherwise;
+
+        If(Expr condition, Block then, Block otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            if (condition.eval(in) != 0) {
+                then.exec(in);
+            } else if (otherwise != null) {
+                otherwise.exec(in);
+            }
+        }
+
+        @Override
+        boolean canReturn() {
+            return then.canReturn() || (otherwise != null && otherwise.canReturn());
+        }
+    }
+
+    /**
+     while cond: [body]
+     We count iterations, and once the loop is hot (see Interpreter.setJitThreshold)
+     LoopJit compiles it to JVM code and every later run uses that instead.
+     Compiled code only knows longs: when a value gets too big for it, it stops at the start
+     of an iteration and we interpret the rest of this run.
+     */
+    static class While extends Stmt {
+        final Expr condition;
+        final Block body;
+
+        // Iterations over all runs of this loop until it is hot. It stops at the threshold, so a shared
+        // Program's hot loops aren't written by every thread that runs them (and it can't overflow);
+        // it's racy while it counts, which only makes the JIT come a few iterations later
+        private int iterations = 0;
+        private volatile CompiledLoop compiled; // set once the JIT made it
+        private volatile CompiledLoop countingCompiled; // the same for an Interpreter with metrics (see LoopJit)
+        private volatile boolean jitGaveUp = false;
+
+        While(Expr condition, Block body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            Events.Loop event = new Events.Loop();
+            event.begin();
+            long count = run(in);
+            if (event.shouldCommit()) {
+                event.line = line;
+                event.iterations = count;
+                event.compiled = (compiled != null || countingCompiled != null);
+                event.commit();
+            }
+        }
+
+        // The loop itself; returns how many iterations we interpreted (for Events.Loop).
+        // For InterpreterMetrics each one is counted as it ends (compiled code counts its own)
+        private long run(Interpreter in) {
+            boolean counting = in.hasMetrics();
+            CompiledLoop jitted = counting ? countingCompiled : compiled;
+            if (jitted != null && jitted.run(in, in.slots)) {
+                return 0;
+            }
+
+            // Once compiled code gave up on big numbers, don't go back to it in this run
+            boolean tooBig = (jitted != null);
+            int threshold = in.jitThreshold;
+            long count = 0;
+            while (condition.eval(in) != 0) {
+                body.exec(in);
+                count++;
+                in.loopIterations++;
+                if (body.canReturn() && in.returning) {
+                    return count; // (LoopJit never compiles a loop with a return in it)
+                }
+                // (tooBig is also set if this loop was compiled when we started, and then we don't count)
+                if (threshold > 0 && !tooBig && !jitGaveUp && (iterations >= threshold || ++iterations >= threshold)) {
+                    // We are right before the condition check, which is where compiled code starts
+                    jitted = compile(counting);
+                    if (jitted != null) {
+                        if (jitted.run(in, in.slots)) {
+                            return count;
+                        }
+                        tooBig = true;
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        boolean canReturn() {
+            return body.canReturn();
+        }
+
+        private synchronized CompiledLoop compile(boolean counting) {
+            if (jitGaveUp) {
+                return null;
+            }
+            if (counting) {
+                if (countingCompiled == null) {
+                    countingCompiled = LoopJit.compile(this, true);
+                    jitGaveUp = (countingCompiled == null);
+                }
+                return countingCompiled;
+            }
+            if (compiled == null) {
+                compiled = LoopJit.compile(this, false);
+                jitGaveUp = (compiled == null);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     A while-loop the optimizer's "closed" pass recognized as a simple counted loop
+     (see ClosedFormLoop). We jump straight to the final values when we can,
+     and run it as a normal loop (JIT and all) when we can't.
+     */
+    static final class CountedWhile extends While {
+        final ClosedFormLoop closedForm;
+
+        CountedWhile(Expr condition, Block body, ClosedFormLoop closedForm) {
+            super(condition, body);
+            this.closedForm = closedForm;
+        }
+
+        @Override
+        void exec(Interpreter in) {
+            long trips = closedForm.run(in.slots, in.bigSlots);
+            if (trips >= 0) {
+                in.countIterations(trips);
+            } else {
+                super.exec(in);
+            }
+        }
+    }
+}
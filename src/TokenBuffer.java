@@ -0,0 +1,350 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ TokenBuffer: all tokens of a program in a few parallel arrays instead of one Token object each.
+ For token i we keep:
+ - types[i]   the TokenType ordinal
+ - starts[i]  where it starts in the source
+ - lengths[i] how many chars it takes
+ - values[i]  NUMBER: the number, already decoded; IDENT: the identifier id
+ Identifiers are interned: every distinct name is stored once and gets an int id.
+ Keywords are entered first, so keyword k of KEYWORDS has id k (the Lexer finds
+ keywords on its own, without a lookup here).
+ The text of a token is never copied out of the source unless someone asks for it.
+ */
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // Fixed text of tokens that always look the same (null => take it from the source)
+    private static final String[] FIXED_TEXT = new String[TYPES.length];
+
+    static {
+        FIXED_TEXT[TokenType.PLUS.ordinal()] = "+";
+        FIXED_TEXT[TokenType.MINUS.ordinal()] = "-";
+        FIXED_TEXT[TokenType.STAR.ordinal()] = "*";
+        FIXED_TEXT[TokenType.SLASH.ordinal()] = "/";
+        FIXED_TEXT[TokenType.MOD.ordinal()] = "%";
+        FIXED_TEXT[TokenType.LPAREN.ordinal()] = "(";
+        FIXED_TEXT[TokenType.RPAREN.ordinal()] = ")";
+        FIXED_TEXT[TokenType.EQ.ordinal()] = "=";
+        FIXED_TEXT[TokenType.COLON.ordinal()] = ":";
+        FIXED_TEXT[TokenType.LBRACKET.ordinal()] = "[";
+        FIXED_TEXT[TokenType.RBRACKET.ordinal()] = "]";
+        FIXED_TEXT[TokenType.COMMA.ordinal()] = ",";
+        FIXED_TEXT[TokenType.GT.ordinal()] = ">";
+        FIXED_TEXT[TokenType.GTE.ordinal()] = ">=";
+        FIXED_TEXT[TokenType.LT.ordinal()] = "<";
+        FIXED_TEXT[TokenType.LTE.ordinal()] = "<=";
+        FIXED_TEXT[TokenType.EQEQ.ordinal()] = "==";
+        FIXED_TEXT[TokenType.NEQ.ordinal()] = "!=";
+        FIXED_TEXT[TokenType.IF.ordinal()] = "if";
+        FIXED_TEXT[TokenType.ELSE.ordinal()] = "else";
+        FIXED_TEXT[TokenType.WHILE.ordinal()] = "while";
+        FIXED_TEXT[TokenType.PRINT.ordinal()] = "print";
+        FIXED_TEXT[TokenType.DEF.ordinal()] = "def";
+        FIXED_TEXT[TokenType.RETURN.ordinal()] = "return";
+        FIXED_TEXT[TokenType.NEWLINE.ordinal()] = "\\n";
+        FIXED_TEXT[TokenType.EOF.ordinal()] = "";
+    }
+
+    // Keywords and their token types; the index is the keyword's identifier id
+    static final String[] KEYWORDS = {"if", "else", "while", "print", "def", "return"};
+    static final TokenType[] KEYWORD_TYPES = {
+            TokenType.IF, TokenType.ELSE, TokenType.WHILE, TokenType.PRINT, TokenType.DEF, TokenType.RETURN};
+
+    final String source;
+
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] values;
+    private int size = 0;
+
+    // NUMBER tokens too big for an int (values[i] is meaningless for those)
+    private final BitSet bigNumbers = new BitSet();
+
+    // Interned identifiers: id => name and id => token type (IDENT or a keyword)
+    private String[] names = new String[16];
+    private byte[] nameTypes = new byte[16];
+    private int nameCount = 0;
+
+    // Open addressing hash table of (id + 1), 0 = empty
+    private int[] nameTable = new int[64];
+
+    // Spaces at the start of every source line, if ParallelLexer already counted them
+    // (null => Interpreter.splitIntoIndentedLines counts them from the source)
+    int[] lineIndents = null;
+
+    TokenBuffer(String source) {
+        this(source, 256);
+    }
+
+    // A buffer with room for 'capacity' tokens before it has to grow
+    TokenBuffer(String source, int capacity) {
+        this.source = source;
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        values = new int[capacity];
+        // Keywords get the first ids, so looking up an identifier also tells if it's a keyword
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            internKeyword(KEYWORDS[k], KEYWORD_TYPES[k]);
+        }
+    }
+
+    /**
+     A buffer holding the same tokens as a token list (for code that still
+     has a List<Token>). The token texts are copied into a new source string.
+     */
+    static TokenBuffer of(List<Token> tokens) {
+        StringBuilder text = new StringBuilder();
+        for (Token t : tokens) {
+            text.append(t.text).append(' ');
+        }
+        TokenBuffer buffer = new TokenBuffer(text.toString());
+        int position = 0;
+        for (Token t : tokens) {
+            int length = t.text.length();
+            if (t.type == TokenType.IDENT) {
+                buffer.add(t.type, position, length, buffer.intern(position, position + length));
+            } else if (t.type == TokenType.NUMBER) {
+                buffer.addNumber(position, length);
+            } else {
+                buffer.add(t.type, position, length, 0);
+            }
+            position += length + 1;
+        }
+        return buffer;
+    }
+
+    // ---------------------------------
+    // Reading tokens
+    // ---------------------------------
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    int start(int i) {
+        return starts[i];
+    }
+
+    int length(int i) {
+        return lengths[i];
+    }
+
+    // NUMBER: its value (check isBigNumber first); IDENT: its identifier id
+    int value(int i) {
+        return values[i];
+    }
+
+    // True for a NUMBER that doesn't fit in an int
+    boolean isBigNumber(int i) {
+        return bigNumbers.get(i);
+    }
+
+    // The name of an identifier id
+    String identifier(int id) {
+        return names[id];
+    }
+
+    // The text of token i, like Token.text
+    String text(int i) {
+        TokenType type = type(i);
+        if (type == TokenType.IDENT) {
+            return names[values[i]];
+        }
+        String fixed = FIXED_TEXT[types[i]];
+        return (fixed != null) ? fixed : source.substring(starts[i], starts[i] + lengths[i]);
+    }
+
+    // Token i as a Token object (for error messages and the List<Token> API)
+    Token token(int i) {
+        return new Token(type(i), text(i));
+    }
+
+    /**
+     All tokens as Token objects, the way Lexer.tokenize() returns them.
+     */
+    List<Token> toTokens() {
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            tokens.add(token(i));
+        }
+        return tokens;
+    }
+
+    // ---------------------------------
+    // Filling the buffer (used by our Lexer)
+    // ---------------------------------
+
+    void add(TokenType type, int start, int length, int value) {
+        if (size == types.length) {
+            int newCapacity = size * 2;
+            types = Arrays.copyOf(types, newCapacity);
+            starts = Arrays.copyOf(starts, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        values[size] = value;
+        size++;
+    }
+
+    // Add a NUMBER token, decoding its digits right away
+    void addNumber(int start, int length) {
+        long value = 0;
+        for (int i = start; i < start + length && value <= Integer.MAX_VALUE; i++) {
+            value = value * 10 + (source.charAt(i) - '0');
+        }
+        addNumber(start, length, value);
+    }
+
+    // Add a NUMBER token whose digits the caller already decoded (anything over Integer.MAX_VALUE is big)
+    void addNumber(int start, int length, long value) {
+        if (value > Integer.MAX_VALUE) {
+            bigNumbers.set(size);
+            value = 0;
+        }
+        add(TokenType.NUMBER, start, length, (int) value);
+    }
+
+    // ---------------------------------
+    // Merging chunks (used by ParallelLexer)
+    // ---------------------------------
+
+    /**
+     Make room for the tokens of 'chunk' (lexed from another part of our source) after ours,
+     intern its names and mark its big numbers. Returns the chunk's id => our id, for fill().
+     Appending the chunks in source order gives every name the id one Lexer over the whole
+     source would have given it, since a chunk's ids are in the order it first met the names.
+     This buffer must already have the capacity (see TokenBuffer(source, capacity)).
+     */
+    int[] append(TokenBuffer chunk) {
+        if (size + chunk.size > types.length) {
+            throw new IllegalStateException("No room for " + chunk.size + " more tokens");
+        }
+        int[] ids = new int[chunk.nameCount];
+        for (int id = 0; id < chunk.nameCount; id++) {
+            ids[id] = (id < KEYWORDS.length) ? id : internName(chunk.names[id]);
+        }
+        for (int i = chunk.bigNumbers.nextSetBit(0); i >= 0; i = chunk.bigNumbers.nextSetBit(i + 1)) {
+            bigNumbers.set(size + i);
+        }
+        size += chunk.size;
+        return ids;
+    }
+
+    /**
+     Copy the tokens of 'chunk' to position 'at' (where append() put them), with our ids.
+     Only writes [at, at + chunk.size()), so chunks can be filled in at the same time.
+     */
+    void fill(TokenBuffer chunk, int at, int[] ids) {
+        System.arraycopy(chunk.types, 0, types, at, chunk.size);
+        System.arraycopy(chunk.starts, 0, starts, at, chunk.size);
+        System.arraycopy(chunk.lengths, 0, lengths, at, chunk.size);
+        byte ident = (byte) TokenType.IDENT.ordinal();
+        for (int i = 0; i < chunk.size; i++) {
+            int value = chunk.values[i];
+            values[at + i] = (chunk.types[i] == ident) ? ids[value] : value;
+        }
+    }
+
+    // Token type of an interned identifier (IDENT or a keyword)
+    TokenType nameType(int id) {
+        return TYPES[nameTypes[id]];
+    }
+
+    /**
+     The id of the identifier source[start, end), interning it if it's new.
+     Only new names create a String.
+     */
+    int intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        return intern(start, end, hash);
+    }
+
+    // Same, for a caller that already has the name's String.hashCode()
+    int intern(int start, int end, int hash) {
+        int mask = nameTable.length - 1;
+        int index = mix(hash) & mask;
+        while (nameTable[index] != 0) {
+            int id = nameTable[index] - 1;
+            String name = names[id];
+            if (name.length() == end - start && source.regionMatches(start, name, 0, name.length())) {
+                return id;
+            }
+            index = (index + 1) & mask;
+        }
+        return addName(source.substring(start, end), TokenType.IDENT, index);
+    }
+
+    // The id of a name we already have as a String (no new String either way)
+    private int internName(String name) {
+        int mask = nameTable.length - 1;
+        int index = mix(name.hashCode()) & mask;
+        while (nameTable[index] != 0) {
+            int id = nameTable[index] - 1;
+            if (names[id].equals(name)) {
+                return id;
+            }
+            index = (index + 1) & mask;
+        }
+        return addName(name, TokenType.IDENT, index);
+    }
+
+    private void internKeyword(String keyword, TokenType type) {
+        int mask = nameTable.length - 1;
+        int index = mix(keyword.hashCode()) & mask;
+        while (nameTable[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        addName(keyword, type, index);
+    }
+
+    private int addName(String name, TokenType type, int tableIndex) {
+        if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+            nameTypes = Arrays.copyOf(nameTypes, nameCount * 2);
+        }
+        int id = nameCount++;
+        names[id] = name;
+        nameTypes[id] = (byte) type.ordinal();
+        nameTable[tableIndex] = id + 1;
+        if (nameCount * 2 > nameTable.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    // Grow the name table when it's half full
+    private void rehash() {
+        int[] table = new int[nameTable.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < nameCount; id++) {
+            int index = mix(names[id].hashCode()) & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = id + 1;
+        }
+        nameTable = table;
+    }
+
+    // Spread the bits of a String-style hash so the low bits are useful
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ TokenStream: a pull-based Lexer for big scripts.
+ Instead of one String with the whole program, it reads from a java.io.Reader
+ or from a memory-mapped file, a chunk of whole lines (about CHUNK_CHARS) at a time,
+ and hands out tokens as they are asked for. Only the current chunk is in memory.
+
+ No token can cross a line (comments also stop at '\n'), so lexing chunk by chunk
+ with our normal Lexer gives exactly the same tokens as lexing the whole source:
+ the same NEWLINE tokens, one EOF at the end, and the same errors.
+ (A chunk instead of a single line, so the String, Lexer and TokenBuffer we need for
+ every scan are made once per few thousand lines, not for each one.)
+
+ Two ways to pull:
+ - next()/hasNext(): tokens, like Lexer.tokenize() would return them
+ - lines(): the indented lines the Interpreter compiles (like splitIntoIndentedLines)
+ Use one or the other, not both.
+ */
+public class TokenStream implements Iterator<Token>, Closeable {
+
+    // How much of a mapped file we look at at once
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    // How many chars we lex at once (rounded up to a whole line)
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private final CharSource source;
+    private final StringBuilder chunkText = new StringBuilder();
+    private boolean atEnd = false;
+
+    // Tokens of the current chunk still to hand out by next()
+    private List<Token> pending = new ArrayList<>();
+    private int pendingIndex = 0;
+    private boolean eofSent = false;
+
+    private TokenStream(CharSource source) {
+        this.source = source;
+    }
+
+    /**
+     Tokens from a Reader (the reader is read to the end, closed by close()).
+     */
+    public static TokenStream of(Reader reader) {
+        return new TokenStream(new ReaderSource(reader));
+    }
+
+    /**
+     Tokens from a file, read through a memory-mapped FileChannel.
+     The file is read as single bytes (ASCII); other bytes are only fine inside comments.
+     */
+    public static TokenStream mapFile(Path file) throws IOException {
+        return new TokenStream(new MappedSource(FileChannel.open(file, StandardOpenOption.READ)));
+    }
+
+    // ---------------------------------
+    // Token iterator
+    // ---------------------------------
+
+    @Override
+    public boolean hasNext() {
+        fillPending();
+        return pendingIndex < pending.size();
+    }
+
+    @Override
+    public Token next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pending.get(pendingIndex++);
+    }
+
+    // Lex the next chunk if we ran out of tokens
+    private void fillPending() {
+        while (pendingIndex >= pending.size() && !eofSent) {
+            pending.clear();
+            pendingIndex = 0;
+            if (readChunk()) {
+                TokenBuffer chunk = lexChunk();
+                for (int i = 0; i < chunk.size() - 1; i++) { // (the NEWLINEs are in there already)
+                    pending.add(chunk.token(i));
+                }
+            } else {
+                pending.add(new Token(TokenType.EOF, ""));
+                eofSent = true;
+            }
+        }
+    }
+
+    // ---------------------------------
+    // Line iterator
+    // ---------------------------------
+
+    /**
+     The indented lines of the program, read and lexed only when asked for.
+     Same lines as Interpreter.splitIntoIndentedLines gives for the whole source.
+     */
+    Iterator<Interpreter.Line> lines() {
+        return new Iterator<Interpreter.Line>() {
+            // The lines of the current chunk (the Parser may still look at the line before
+            // the current one, so every chunk keeps its own TokenBuffer)
+            private Iterator<Interpreter.Line> chunk = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!chunk.hasNext() && readChunk()) {
+                    // The very last line (no '\n' after it) only counts if it has tokens;
+                    // splitIntoIndentedLines already does it that way
+                    TokenBuffer tokens = lexChunk();
+                    chunk = Interpreter.splitIntoIndentedLines(tokens, tokens.source).iterator();
+                }
+                return chunk.hasNext();
+            }
+
+            @Override
+            public Interpreter.Line next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk.next();
+            }
+        };
+    }
+
+    // ---------------------------------
+    // Reading chunks
+    // ---------------------------------
+
+    // Read the next whole lines (with their '\n's), about CHUNK_CHARS of them, into chunkText.
+    // False at end of input.
+    private boolean readChunk() {
+        chunkText.setLength(0);
+        if (atEnd) {
+            return false;
+        }
+        try {
+            int c;
+            while ((c = source.read()) >= 0) {
+                chunkText.append((char) c);
+                if (c == '\n' && chunkText.length() >= CHUNK_CHARS) {
+                    return true;
+                }
+            }
+            atEnd = true;
+            return chunkText.length() > 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Tokens of the current chunk (the last one is the EOF our Lexer adds)
+    private TokenBuffer lexChunk() {
+        return new Lexer(chunkText.toString()).scan();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    // ---------------------------------
+    // Where the characters come from
+    // ---------------------------------
+
+    /**
+     One character at a time, -1 at the end.
+     */
+    private interface CharSource extends Closeable {
+        int read() throws IOException;
+    }
+
+    /**
+     Characters from a Reader, through our own buffer.
+     */
+    private static final class ReaderSource implements CharSource {
+        private final Reader reader;
+        private final char[] buffer = new char[64 * 1024];
+        private int position = 0;
+        private int limit = 0;
+
+        ReaderSource(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     Bytes from a memory-mapped file, mapping one window at a time
+     so even files bigger than 2 GB work.
+     */
+    private static final class MappedSource implements CharSource {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer window;
+
+        MappedSource(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (window == null || !window.hasRemaining()) {
+                if (window != null) {
+                    windowStart += window.capacity();
+                }
+                if (windowStart >= size) {
+                    return -1;
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(MAP_WINDOW, size - windowStart));
+            }
+            return window.get() & 0xFF;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 enum TokenType {
         // Single-character tokens
         PLUS, MINUS, STAR, SLASH, MOD, LPAREN, RPAREN, EQ, COLON,
+        LBRACKET, RBRACKET, COMMA, // arrays: a[i], [1, 2, 3], fill(a, 0)
 
         // One or two character tokens for comparisons
         GT, GTE, LT, LTE, EQEQ, NEQ,
@@ -10,6 +11,7 @@ enum TokenType {
 
         // Keywords
         IF, ELSE, WHILE, PRINT,
+        DEF, RETURN, // functions: def f(a, b): ... return a + b
 
         // Utility
         NEWLINE, //this will be needed as we need new logic for loops
@@ -21,6 +23,7 @@ explanation for each one to understand what each is for:
 Single-character tokens
         PLUS -> +, MINUS -> -, STAR -> *, SLASH -> /, MOD -> %,
         LPAREN -> (, RPAREN -> ), LBRACE -> {, RBRACE _> }, EQ -> =, COLON -> :
+        LBRACKET -> [, RBRACKET -> ], COMMA -> ,
 
 One or two character tokens for comparisons
         GT -> >, GTE -> >=, LT -> <, LTE -> <=, EQEQ -> ==, NEQ -> !=
@@ -30,6 +33,7 @@ Literals
 
 Keywords
         IF, ELSE, WHILE, PRINT, (I think this is understandable)
+        DEF -> def, RETURN -> return
 
 Utility
         EOF -> end of file
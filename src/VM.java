@@ -0,0 +1,641 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ VM: a second way to run a program, next to the tree-walking Interpreter.
+ The program is compiled into flat Bytecode and run by one tight loop
+ over an int[] with a small long[] operand stack. Output is the same
+ as Interpreter.interpret() for the same source.
+
+ Values work like in the Interpreter (see Numbers): a slot or stack entry that is
+ Numbers.BIG has its BigInteger at the same index of bigSlots / bigStack.
+
+ Everything a running program has is in fields (pc, the stack, the slots), so the VM
+ can stop in the middle and go on later, also on another thread: runFor(steps) runs
+ a time slice and returns. A step is one jump, which is one loop iteration
+ (or the skip over an else), or one call, so a slice can't run forever. Scheduler uses this.
+
+ Calls work like in the Interpreter (see Function): one frame per call depth, made
+ the first time a call gets that deep and reused after that, and the operand stack
+ just goes on above the caller's part of it. TAIL_CALL reuses the frame it's in.
+ */
+public class VM {
+    private static final long BIG = Numbers.BIG;
+
+    // Operator token of each operator opcode (ADD..LE), for the BigInteger path
+    private static final TokenType[] OPERATORS = new TokenType[Bytecode.LE + 1];
+
+    static {
+        OPERATORS[Bytecode.ADD] = TokenType.PLUS;
+        OPERATORS[Bytecode.SUB] = TokenType.MINUS;
+        OPERATORS[Bytecode.MUL] = TokenType.STAR;
+        OPERATORS[Bytecode.DIV] = TokenType.SLASH;
+        OPERATORS[Bytecode.MOD] = TokenType.MOD;
+        OPERATORS[Bytecode.EQ] = TokenType.EQEQ;
+        OPERATORS[Bytecode.NE] = TokenType.NEQ;
+        OPERATORS[Bytecode.GT] = TokenType.GT;
+        OPERATORS[Bytecode.GE] = TokenType.GTE;
+        OPERATORS[Bytecode.LT] = TokenType.LT;
+        OPERATORS[Bytecode.LE] = TokenType.LTE;
+    }
+
+    // The program and its state between slices (Checkpoint saves and restores these)
+    final Bytecode bytecode;
+    final long[] slots; // the script's variables by slot number, like in the Interpreter
+    final BigInteger[] bigSlots;
+    long[] stack;       // grows when a call needs more
+    BigInteger[] bigStack;
+    final long[][] arrays; // array slots, like Interpreter.arrays
+    private BigInteger bigResult; // see slow()
+
+    // The calls we are in: frames[d] is the frame of the call at depth d (frames[0] is 'slots'),
+    // running bytecode.functions[callees[d]], going back to returnPcs[d] when it returns
+    long[][] frames = new long[8][];
+    BigInteger[][] bigFrames = new BigInteger[8][];
+    int[] callees = new int[8];
+    int[] returnPcs = new int[8];
+    int depth = 0;
+
+    // Where execute() goes on from: the next instruction and the next free stack position
+    int pc = 0;
+    int sp = 0;
+    boolean done = false; // reached HALT or failed
+    private OutputSink out = new BufferedOutputSink(System.out);
+
+    // For InterpreterMetrics (see Interpreter): counted here, handed over after every slice
+    private InterpreterMetrics metrics;
+    private boolean runCounted = false; // metrics.runStarted() was called for this run
+    private long runStart;
+    private long printed;
+    private long closedIterations; // iterations of loops done by their closed form
+    private long budgetLeft; // jumps execute() didn't use
+
+    /**
+     Same inputs as the Interpreter: the tokens from our Lexer + original source
+     (for indentation). We parse them into the usual tree, optimize it, then compile that to bytecode.
+     */
+    public VM(List<Token> tokens, String originalSource) {
+        this(tokens, originalSource, new Optimizer());
+    }
+
+    /**
+     Same as above, with our own Optimizer (see Interpreter).
+     */
+    VM(List<Token> tokens, String originalSource, Optimizer optimizer) {
+        this(new Parser(Interpreter.splitIntoIndentedLines(TokenBuffer.of(tokens), originalSource)), optimizer);
+    }
+
+    /**
+     Construct a VM straight from a TokenBuffer (Lexer.tokenizeToBuffer).
+     */
+    VM(TokenBuffer tokens) {
+        this(new Parser(Interpreter.splitIntoIndentedLines(tokens, tokens.source)), new Optimizer());
+    }
+
+    /**
+     Construct a VM straight from a TokenStream (a Reader or a mapped file),
+     without ever holding the whole source or token list.
+     */
+    public VM(TokenStream tokens) {
+        this(new Parser(tokens.lines()), new Optimizer());
+    }
+
+    private VM(Parser parser, Optimizer optimizer) {
+        this(BytecodeCompiler.compile(parser, optimizer));
+    }
+
+    /**
+     Run bytecode compiled earlier, e.g. loaded from a BytecodeFile. A VM runs its
+     program only once (see runFor), so running it again takes a new VM for the same bytecode.
+     */
+    VM(Bytecode bytecode) {
+        this.bytecode = bytecode;
+        this.slots = new long[bytecode.slotNames.length];
+        this.bigSlots = new BigInteger[bytecode.slotNames.length];
+        this.stack = new long[Math.max(bytecode.maxStack, 1)];
+        this.bigStack = new BigInteger[stack.length];
+        this.arrays = new long[bytecode.arrayNames.length][];
+        Arrays.fill(arrays, Interpreter.NO_ELEMENTS);
+        frames[0] = slots;
+        bigFrames[0] = bigSlots;
+    }
+
+    /**
+     Count this VM's run in 'metrics' (see Interpreter.setMetrics).
+     Loop iterations are jumps here (plus the iterations of closed-form loops),
+     and statements are not counted.
+     */
+    public void setMetrics(InterpreterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     Send print output somewhere else (see Interpreter.setOutput).
+     */
+    void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     Run the bytecode until HALT (from the start, or from where runFor() stopped).
+     Printed output is flushed at the end, even if the program fails.
+     */
+    public void run() {
+        runFor(Long.MAX_VALUE);
+    }
+
+    /**
+     Run at most 'steps' jumps (about that many loop iterations), then stop and return,
+     so the next call goes on right there. Returns true once the program has finished;
+     after that (or after an error) further calls do nothing and return true.
+     Printed output is flushed whenever it returns.
+     */
+    public boolean runFor(long steps) {
+        if (steps <= 0) {
+            throw new IllegalArgumentException("steps must be > 0, got " + steps);
+        }
+        if (done) {
+            return true;
+        }
+        Events.Run event = new Events.Run();
+        event.begin();
+        InterpreterMetrics metrics = this.metrics;
+        if (metrics != null && !runCounted) {
+            metrics.runStarted();
+            runCounted = true;
+            runStart = System.nanoTime();
+        }
+        String error = null;
+        long slice = steps;
+        budgetLeft = steps; // stays like this (nothing counted) if the program fails
+        try {
+            done = true; // stays true if the program fails: there's no going on after an error
+            if (metrics == null) {
+                done = execute(steps);
+                return done;
+            }
+            // With metrics: in slices of PUBLISH_EVERY jumps, handing the counts over in between
+            long left = steps;
+            while (true) {
+                slice = Math.min(left, InterpreterMetrics.PUBLISH_EVERY);
+                budgetLeft = slice;
+                if (execute(slice)) {
+                    return true;
+                }
+                left -= slice;
+                if (left == 0) {
+                    done = false;
+                    return false;
+                }
+                publishCounts(metrics, slice);
+            }
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+            throw e;
+        } finally {
+            out.flush();
+            if (event.shouldCommit()) {
+                event.engine = "vm";
+                event.variables = slots.length;
+                event.finished = done;
+                event.error = error;
+                event.commit();
+            }
+            if (metrics != null) {
+                publishCounts(metrics, slice - budgetLeft);
+                if (done && runCounted) {
+                    metrics.runEnded(System.nanoTime() - runStart, error != null);
+                }
+            }
+            printed = 0;
+            closedIterations = 0;
+        }
+    }
+
+    // Hand the counts of the last slice ('jumps' used) to the metrics
+    private void publishCounts(InterpreterMetrics metrics, long jumps) {
+        metrics.add(0, jumps + closedIterations, printed);
+        closedIterations = 0;
+        printed = 0;
+    }
+
+    /**
+     True once the program reached HALT or failed.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    // Run from pc until HALT (true) or until 'budget' jumps are used up (false)
+    private boolean execute(long budget) {
+        final OutputSink out = this.out;
+        final int[] code = bytecode.code;
+        final long[][] arrays = this.arrays;
+        // These change with every call and return
+        long[] slots = frames[depth];
+        BigInteger[] bigSlots = bigFrames[depth];
+        long[] stack = this.stack;
+        BigInteger[] bigStack = this.bigStack;
+        int sp = this.sp; // next free stack position
+        int pc = this.pc;
+        long a, b, r;
+        long[] array;
+
+        while (true) {
+            switch (code[pc++]) {
+                case Bytecode.LOAD:
+                    r = slots[code[pc++]];
+                    if (r == BIG) {
+                        bigStack[sp] = bigSlots[code[pc - 1]];
+                    }
+                    stack[sp++] = r;
+                    break;
+                case Bytecode.STORE:
+                    r = stack[--sp];
+                    if (r == BIG) {
+                        bigSlots[code[pc]] = bigStack[sp];
+                    }
+                    slots[code[pc++]] = r;
+                    break;
+                case Bytecode.CONST:
+                    stack[sp++] = code[pc++];
+                    break;
+                case Bytecode.CONST_BIG:
+                    bigStack[sp] = bytecode.numbers[code[pc++]];
+                    stack[sp] = Numbers.fit(bigStack[sp]);
+                    sp++;
+                    break;
+                // Operators: the long way when both fit (and the result does), else slowOnStack()
+                case Bytecode.ADD:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG && (r = Numbers.add(a, b)) != BIG) ? r : slowOnStack(Bytecode.ADD, a, b, sp - 1);
+                    break;
+                case Bytecode.SUB:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG && (r = Numbers.subtract(a, b)) != BIG) ? r : slowOnStack(Bytecode.SUB, a, b, sp - 1);
+                    break;
+                case Bytecode.MUL:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG && (r = Numbers.multiply(a, b)) != BIG) ? r : slowOnStack(Bytecode.MUL, a, b, sp - 1);
+                    break;
+                case Bytecode.DIV:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? Numbers.divide(a, b) : slowOnStack(Bytecode.DIV, a, b, sp - 1);
+                    break;
+                case Bytecode.MOD:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? Numbers.modulo(a, b) : slowOnStack(Bytecode.MOD, a, b, sp - 1);
+                    break;
+                case Bytecode.EQ:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? ((a == b) ? 1 : 0) : slowOnStack(Bytecode.EQ, a, b, sp - 1);
+                    break;
+                case Bytecode.NE:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? ((a != b) ? 1 : 0) : slowOnStack(Bytecode.NE, a, b, sp - 1);
+                    break;
+                case Bytecode.GT:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? ((a > b) ? 1 : 0) : slowOnStack(Bytecode.GT, a, b, sp - 1);
+                    break;
+                case Bytecode.GE:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? ((a >= b) ? 1 : 0) : slowOnStack(Bytecode.GE, a, b, sp - 1);
+                    break;
+                case Bytecode.LT:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? ((a < b) ? 1 : 0) : slowOnStack(Bytecode.LT, a, b, sp - 1);
+                    break;
+                case Bytecode.LE:
+                    a = stack[sp - 2];
+                    b = stack[--sp];
+                    stack[sp - 1] = (a != BIG && b != BIG) ? ((a <= b) ? 1 : 0) : slowOnStack(Bytecode.LE, a, b, sp - 1);
+                    break;
+                case Bytecode.JUMP:
+                    pc = code[pc];
+                    // Every loop iteration ends with a jump back, so this is where a time slice ends
+                    if (--budget == 0) {
+                        this.pc = pc;
+                        this.sp = sp;
+                        budgetLeft = 0;
+                        return false;
+                    }
+                    break;
+                case Bytecode.JUMP_IF_ZERO:
+                    // BIG is never 0, so big numbers need no special case
+                    if (stack[--sp] == 0) {
+                        pc = code[pc];
+                    } else {
+                        pc++;
+                    }
+                    break;
+                case Bytecode.PRINT:
+                    r = stack[--sp];
+                    if (r == BIG) {
+                        out.printBig(bigStack[sp]);
+                    } else {
+                        out.printLong(r);
+                    }
+                    printed++;
+                    break;
+                case Bytecode.FAIL:
+                    throw new RuntimeException(bytecode.messages[code[pc]]);
+                case Bytecode.HALT:
+                    this.pc = pc - 1;
+                    this.sp = sp;
+                    budgetLeft = budget;
+                    return true;
+                case Bytecode.INC:
+                    a = slots[code[pc]];
+                    r = (a != BIG) ? Numbers.add(a, code[pc + 1]) : BIG;
+                    if (r == BIG) {
+                        r = slow(Bytecode.ADD, a, bigSlots[code[pc]], code[pc + 1], null);
+                        bigSlots[code[pc]] = bigResult;
+                    }
+                    slots[code[pc]] = r;
+                    pc += 2;
+                    break;
+                case Bytecode.STORE_VV:
+                    a = slots[code[pc + 1]];
+                    b = slots[code[pc + 2]];
+                    r = (a != BIG && b != BIG) ? apply(code[pc], a, b) : BIG;
+                    if (r == BIG) {
+                        r = slow(code[pc], a, bigSlots[code[pc + 1]], b, bigSlots[code[pc + 2]]);
+                        bigSlots[code[pc + 3]] = bigResult;
+                    }
+                    slots[code[pc + 3]] = r;
+                    pc += 4;
+                    break;
+                case Bytecode.STORE_VC:
+                    a = slots[code[pc + 1]];
+                    r = (a != BIG) ? apply(code[pc], a, code[pc + 2]) : BIG;
+                    if (r == BIG) {
+                        r = slow(code[pc], a, bigSlots[code[pc + 1]], code[pc + 2], null);
+                        bigSlots[code[pc + 3]] = bigResult;
+                    }
+                    slots[code[pc + 3]] = r;
+                    pc += 4;
+                    break;
+                case Bytecode.JUMP_UNLESS_VV:
+                    a = slots[code[pc + 1]];
+                    b = slots[code[pc + 2]];
+                    // a fast result of BIG means "too big for a long", which is not 0 either
+                    r = (a != BIG && b != BIG) ? apply(code[pc], a, b) : slow(code[pc], a, bigSlots[code[pc + 1]], b, bigSlots[code[pc + 2]]);
+                    pc = (r == 0) ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.JUMP_UNLESS_VC:
+                    a = slots[code[pc + 1]];
+                    r = (a != BIG) ? apply(code[pc], a, code[pc + 2]) : slow(code[pc], a, bigSlots[code[pc + 1]], code[pc + 2], null);
+                    pc = (r == 0) ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.CLOSED_LOOP:
+                    r = bytecode.closedLoops[code[pc]].run(slots, bigSlots);
+                    if (r >= 0) {
+                        closedIterations += r; // (no jumps for these)
+                        pc = code[pc + 1];
+                    } else {
+                        pc += 2;
+                    }
+                    break;
+                // Arrays: elements are never BIG, so reading one is just the load
+                case Bytecode.LOAD_ELEMENT:
+                    r = stack[sp - 1];
+                    array = arrays[code[pc]];
+                    if (r < 0 || r >= array.length) {
+                        throw outOfRange(code[pc], r, sp - 1);
+                    }
+                    stack[sp - 1] = array[(int) r];
+                    pc++;
+                    break;
+                case Bytecode.STORE_ELEMENT:
+                    r = stack[--sp];
+                    a = stack[--sp];
+                    if (a == BIG) {
+                        throw ArrayOps.tooBig(bytecode.arrayNames[code[pc]]);
+                    }
+                    array = arrays[code[pc]];
+                    if (r < 0 || r >= array.length) {
+                        throw outOfRange(code[pc], r, sp + 1);
+                    }
+                    array[(int) r] = a;
+                    pc++;
+                    break;
+                case Bytecode.LEN:
+                    stack[sp++] = arrays[code[pc++]].length;
+                    break;
+                case Bytecode.SUM:
+                    array = arrays[code[pc++]];
+                    r = ArrayOps.sum(array);
+                    if (r == BIG) {
+                        bigStack[sp] = ArrayOps.bigSum(array);
+                    }
+                    stack[sp++] = r;
+                    break;
+                case Bytecode.MAX:
+                    array = arrays[code[pc]];
+                    if (array.length == 0) {
+                        throw ArrayOps.empty("max", bytecode.arrayNames[code[pc]]);
+                    }
+                    stack[sp++] = ArrayOps.max(array);
+                    pc++;
+                    break;
+                case Bytecode.NEW_ARRAY:
+                case Bytecode.ARRAY_OF:
+                case Bytecode.SHARE_ARRAY:
+                case Bytecode.FILL:
+                case Bytecode.ADD_ARRAYS:
+                case Bytecode.MUL_ARRAYS:
+                    // These make or change whole arrays, so the call costs nothing next to them
+                    sp = arrayInstruction(code[pc - 1], pc, sp);
+                    pc += Bytecode.operandCount(code[pc - 1]);
+                    break;
+                case Bytecode.CALL:
+                case Bytecode.TAIL_CALL:
+                    sp -= code[pc + 1];
+                    pc = call(code[pc - 1], code[pc], code[pc + 1], sp, pc + 2);
+                    slots = frames[depth];
+                    bigSlots = bigFrames[depth];
+                    stack = this.stack;
+                    bigStack = this.bigStack;
+                    // Recursion needs no loop to go on and on, so a call is a step too
+                    if (--budget == 0) {
+                        this.pc = pc;
+                        this.sp = sp;
+                        budgetLeft = 0;
+                        return false;
+                    }
+                    break;
+                case Bytecode.RETURN:
+                    // The value is on top of the stack, right where the caller wants it
+                    pc = returnPcs[depth--];
+                    slots = frames[depth];
+                    bigSlots = bigFrames[depth];
+                    break;
+                case Bytecode.POP:
+                    sp--;
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode " + code[pc - 1] + " at " + (pc - 1));
+            }
+        }
+    }
+
+    /**
+     Start function 'index' with the 'count' arguments at stack[base] on: CALL makes it
+     the next depth (coming back to returnPc), TAIL_CALL puts it in place of the
+     function we are in. Returns the pc of its first instruction.
+     */
+    private int call(int op, int index, int count, int base, int returnPc) {
+        Bytecode.FunctionInfo function = bytecode.functions[index];
+        if (function.entry < 0) {
+            throw Function.notDefined(function.name);
+        }
+        if (count != function.paramCount) {
+            throw Function.wrongArguments(function.name, function.paramCount, count);
+        }
+        if (op == Bytecode.CALL) {
+            if (depth == Function.MAX_DEPTH) {
+                throw Function.tooDeep(function.name);
+            }
+            grow(depth + 1, base);
+            returnPcs[++depth] = returnPc;
+        }
+        callees[depth] = index;
+        int size = function.slotNames.length;
+        long[] frame = frames[depth];
+        if (frame == null || frame.length < size) {
+            frame = frames[depth] = new long[Math.max(size, 8)];
+            bigFrames[depth] = new BigInteger[frame.length];
+        }
+        System.arraycopy(stack, base, frame, 0, count);
+        System.arraycopy(bigStack, base, bigFrames[depth], 0, count);
+        Arrays.fill(frame, count, size, 0);
+        Arrays.fill(bigFrames[depth], count, size, null); // don't keep an earlier call's big numbers alive
+        return function.entry;
+    }
+
+    // Room for the call at depth 'newDepth', whose stack starts at 'base'
+    // (also used by Checkpoint.restore)
+    void grow(int newDepth, int base) {
+        if (newDepth >= frames.length) {
+            int length = Math.max(frames.length * 2, newDepth + 1);
+            frames = Arrays.copyOf(frames, length);
+            bigFrames = Arrays.copyOf(bigFrames, length);
+            callees = Arrays.copyOf(callees, length);
+            returnPcs = Arrays.copyOf(returnPcs, length);
+        }
+        if (base + bytecode.maxStack > stack.length) {
+            int length = Math.max(stack.length * 2, base + bytecode.maxStack);
+            stack = Arrays.copyOf(stack, length);
+            bigStack = Arrays.copyOf(bigStack, length);
+        }
+    }
+
+    /**
+     One of the array instructions that work on a whole array, with its operands at code[pc].
+     Returns the new stack pointer.
+     */
+    private int arrayInstruction(int op, int pc, int sp) {
+        int[] code = bytecode.code;
+        String name = bytecode.arrayNames[code[pc]];
+        switch (op) {
+            case Bytecode.NEW_ARRAY:
+                long n = stack[--sp];
+                if (n < 0 || n > ArrayOps.MAX_LENGTH) {
+                    throw ArrayOps.badSize((n == BIG) ? bigStack[sp].toString() : Long.toString(n));
+                }
+                arrays[code[pc]] = new long[(int) n];
+                return sp;
+            case Bytecode.ARRAY_OF:
+                long[] values = new long[code[pc + 1]];
+                sp -= values.length;
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = stack[sp + i];
+                    if (values[i] == BIG) {
+                        throw ArrayOps.tooBig(name);
+                    }
+                }
+                arrays[code[pc]] = values;
+                return sp;
+            case Bytecode.SHARE_ARRAY:
+                arrays[code[pc]] = arrays[code[pc + 1]];
+                return sp;
+            case Bytecode.FILL:
+                long value = stack[--sp];
+                if (value == BIG) {
+                    throw ArrayOps.tooBig(name);
+                }
+                ArrayOps.fill(arrays[code[pc]], value);
+                return sp;
+            default: // ADD_ARRAYS, MUL_ARRAYS
+                long[] target = arrays[code[pc]];
+                long[] other = arrays[code[pc + 1]];
+                if (target.length != other.length) {
+                    throw ArrayOps.differentLengths(name, target.length, bytecode.arrayNames[code[pc + 1]], other.length);
+                }
+                int failed = (op == Bytecode.ADD_ARRAYS) ? ArrayOps.add(target, other) : ArrayOps.multiply(target, other);
+                if (failed >= 0) {
+                    throw ArrayOps.tooBig(name);
+                }
+                return sp;
+        }
+    }
+
+    // The error for an index that isn't in array slot 'arraySlot'; a BIG index is in bigStack[at]
+    private RuntimeException outOfRange(int arraySlot, long index, int at) {
+        return ArrayOps.outOfRange(bytecode.arrayNames[arraySlot],
+                (index == BIG) ? bigStack[at].toString() : Long.toString(index), arrays[arraySlot].length);
+    }
+
+    // The operator of a superinstruction (ADD..LE) on two longs; BIG if the result doesn't fit
+    private static long apply(int op, long a, long b) {
+        switch (op) {
+            case Bytecode.ADD: return Numbers.add(a, b);
+            case Bytecode.SUB: return Numbers.subtract(a, b);
+            case Bytecode.MUL: return Numbers.multiply(a, b);
+            case Bytecode.DIV: return Numbers.divide(a, b);
+            case Bytecode.MOD: return Numbers.modulo(a, b);
+            case Bytecode.EQ: return (a == b) ? 1 : 0;
+            case Bytecode.NE: return (a != b) ? 1 : 0;
+            case Bytecode.GT: return (a > b) ? 1 : 0;
+            case Bytecode.GE: return (a >= b) ? 1 : 0;
+            case Bytecode.LT: return (a < b) ? 1 : 0;
+            case Bytecode.LE: return (a <= b) ? 1 : 0;
+            default:
+                throw new IllegalStateException("Bad operator " + op);
+        }
+    }
+
+    /**
+     a op b on BigIntegers, for when a, b or the result doesn't fit in a long.
+     bigA/bigB are only looked at when a/b is BIG. Returns the value, and if that's BIG
+     the BigInteger is in bigResult.
+     */
+    private long slow(int op, long a, BigInteger bigA, long b, BigInteger bigB) {
+        bigResult = Numbers.apply(OPERATORS[op], Numbers.big(a, bigA), Numbers.big(b, bigB));
+        return Numbers.fit(bigResult);
+    }
+
+    // slow() for an operator on the stack: a and b (and the result) at position 'at' and 'at + 1'
+    private long slowOnStack(int op, long a, long b, int at) {
+        long result = slow(op, a, bigStack[at], b, bigStack[at + 1]);
+        bigStack[at] = bigResult;
+        return result;
+    }
+
+    // Listing of the compiled program, for debugging
+    public String disassemble() {
+        return bytecode.disassemble();
+    }
+}
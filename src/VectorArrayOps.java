@@ -0,0 +1,114 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ VectorArrayOps: ArrayOps with the incubating Vector API, as many elements per
+ instruction as the CPU's widest registers hold (4 longs with AVX2, 8 with AVX-512).
+ Only ArrayOps calls this, and only after checking the module is there,
+ so without --add-modules jdk.incubator.vector this class is never even loaded.
+
+ Every loop does whole vectors up to SPECIES.loopBound() and the few elements
+ after that one by one. Where a vector might overflow (add, multiply) we check the
+ whole vector first, and if any lane would, that vector is done one element at a
+ time by the plain loop, which stops at exactly the same element the plain code would.
+ */
+final class VectorArrayOps {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    static final int LANES = SPECIES.length();
+
+    private VectorArrayOps() {
+    }
+
+    // Same split into high and low halves as ArrayOps.sum(), one pair of sums per lane
+    static long sum(long[] array) {
+        LongVector high = LongVector.zero(SPECIES);
+        LongVector low = LongVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(array.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            LongVector v = LongVector.fromArray(SPECIES, array, i);
+            high = high.add(v.lanewise(VectorOperators.ASHR, 32));
+            low = low.add(v.and(0xFFFFFFFFL));
+        }
+        long highSum = high.reduceLanes(VectorOperators.ADD);
+        long lowSum = low.reduceLanes(VectorOperators.ADD);
+        for (; i < array.length; i++) {
+            highSum += array[i] >> 32;
+            lowSum += array[i] & 0xFFFFFFFFL;
+        }
+        return ArrayOps.combine(highSum, lowSum);
+    }
+
+    static long max(long[] array) {
+        LongVector max = LongVector.broadcast(SPECIES, array[0]);
+        int bound = SPECIES.loopBound(array.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            max = max.max(LongVector.fromArray(SPECIES, array, i));
+        }
+        long result = max.reduceLanes(VectorOperators.MAX);
+        for (; i < array.length; i++) {
+            result = Math.max(result, array[i]);
+        }
+        return result;
+    }
+
+    static void fill(long[] array, long value) {
+        LongVector v = LongVector.broadcast(SPECIES, value);
+        int bound = SPECIES.loopBound(array.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            v.intoArray(array, i);
+        }
+        for (; i < array.length; i++) {
+            array[i] = value;
+        }
+    }
+
+    static int add(long[] target, long[] other) {
+        int bound = SPECIES.loopBound(target.length);
+        for (int i = 0; i < bound; i += LANES) {
+            LongVector a = LongVector.fromArray(SPECIES, target, i);
+            LongVector b = LongVector.fromArray(SPECIES, other, i);
+            LongVector sum = a.add(b);
+            // Overflow flips the sign against both inputs; Long.MIN_VALUE (BIG) doesn't fit either
+            VectorMask<Long> bad = a.lanewise(VectorOperators.XOR, sum)
+                    .and(b.lanewise(VectorOperators.XOR, sum))
+                    .compare(VectorOperators.LT, 0)
+                    .or(sum.compare(VectorOperators.EQ, Long.MIN_VALUE));
+            if (bad.anyTrue()) {
+                // the plain loop stops at the lane that overflowed
+                return ArrayOps.add(target, other, i, i + LANES);
+            }
+            sum.intoArray(target, i);
+        }
+        return ArrayOps.add(target, other, bound, target.length);
+    }
+
+    static int multiply(long[] target, long[] other) {
+        int bound = SPECIES.loopBound(target.length);
+        for (int i = 0; i < bound; i += LANES) {
+            LongVector a = LongVector.fromArray(SPECIES, target, i);
+            LongVector b = LongVector.fromArray(SPECIES, other, i);
+            // Two numbers that fit in an int multiply to one that fits in a long
+            // (and is never Long.MIN_VALUE); anything bigger goes the careful way
+            if (!fitsInt(a).and(fitsInt(b)).allTrue()) {
+                int failed = ArrayOps.multiply(target, other, i, i + LANES);
+                if (failed >= 0) {
+                    return failed;
+                }
+                continue;
+            }
+            a.mul(b).intoArray(target, i);
+        }
+        return ArrayOps.multiply(target, other, bound, target.length);
+    }
+
+    // Lanes that keep their value when cut down to 32 bits
+    private static VectorMask<Long> fitsInt(LongVector v) {
+        return v.compare(VectorOperators.EQ, v.lanewise(VectorOperators.LSHL, 32).lanewise(VectorOperators.ASHR, 32));
+    }
+}
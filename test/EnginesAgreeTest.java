@@ -0,0 +1,259 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ EnginesAgreeTest: runs the same scripts every way we can run them and checks they
+ all print the same thing (and fail with the same error, if they fail):
+ - the tree interpreter without the JIT
+ - the tree interpreter with JIT threshold 1, so every loop runs compiled by LoopJit
+ - the VM
+ - the VM stopped every few steps, saved with Checkpoint and restored into a new VM
+ - the VM running a BytecodeFile written and read back
+ The tree without the JIT is the reference; every other way is compared to it.
+ */
+class EnginesAgreeTest {
+
+    // Steps the checkpointed VM runs between a save and the next restore
+    // (odd, so the saves don't always land at the same place in a loop)
+    private static final long CHECKPOINT_STEPS = 97;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void sumsAndNestedLoops() throws IOException {
+        assertSameEverywhere("""
+                s = 0
+                i = 0
+                while i < 1000:
+                    s = s + i
+                    i = i + 1
+                print(s)
+                i = 0
+                while i < 3:
+                    j = 0
+                    while j < 2:
+                        print(i * 10 + j)
+                        j = j + 1
+                    i = i + 1
+                n = 1
+                while n < 1000000:
+                    n = n * 3 % 1000001 + 1
+                print(n)
+                """);
+    }
+
+    @Test
+    void overflowToBigIntegerInCompiledLoops() throws IOException {
+        assertSameEverywhere("""
+                x = 1
+                i = 0
+                y = 5
+                while i < 100:
+                    y = y + 1
+                    x = x * 3
+                    i = i + 1
+                print(x)
+                print(y)
+                print(i)
+                a = 9223372036854775000
+                k = 0
+                while k < 5000:
+                    k = k + 1
+                    a = a + 1
+                print(a)
+                print(k)
+                b = 0
+                j = 0
+                while j < 3000:
+                    b = b + j
+                    j = j + 1
+                    if j == 2990:
+                        b = 9223372036854775800
+                print(b)
+                print(j)
+                c = 0 - 9223372036854775807
+                m = 0
+                while m < 10:
+                    c = c - 1
+                    m = m + 1
+                print(c)
+                """);
+    }
+
+    @Test
+    void countedLoopsInClosedForm() throws IOException {
+        assertSameEverywhere("""
+                s = 0
+                i = 0
+                while i < 100000:
+                    s = s + 7
+                    i = i + 1
+                print(s)
+                print(i)
+                t = 0
+                i = 0
+                while i < 3000000:
+                    t = t + 4000000000000
+                    i = i + 1
+                print(t)
+                """);
+    }
+
+    @Test
+    void functionsAndTailCalls() throws IOException {
+        assertSameEverywhere("""
+                def gcd(a, b):
+                    if b == 0:
+                        return a
+                    return gcd(b, a % b)
+
+                def fib(n):
+                    if n < 2:
+                        return n
+                    return fib(n - 1) + fib(n - 2)
+
+                def countdown(n, acc):
+                    if n == 0:
+                        return acc
+                    return countdown(n - 1, acc + n)
+
+                print(gcd(48, 18))
+                print(fib(15))
+                print(countdown(100000, 0))
+                i = 0
+                f = 1
+                while i < 30:
+                    f = f * 5
+                    i = i + 1
+                print(gcd(f, 75))
+                """);
+    }
+
+    @Test
+    void arrays() throws IOException {
+        assertSameEverywhere("""
+                a = [3, 1, 4, 1, 5]
+                b = array(1000)
+                b[0] = a[2] + 1
+                c = b
+                print(len(b))
+                print(sum(a))
+                print(max(a))
+                fill(b, 7)
+                add(b, c)
+                mul(b, c)
+                print(sum(b))
+                i = 0
+                while i < 1000:
+                    b[i] = i * i
+                    i = i + 1
+                print(sum(c))
+                print(b[999])
+                """);
+    }
+
+    @Test
+    void errorsAfterOutput() throws IOException {
+        assertSameEverywhere("""
+                x = 5
+                i = 0
+                while i < 2000:
+                    i = i + 1
+                    if i == 1500:
+                        print(x)
+                        x = 1 / 0
+                print(i)
+                """);
+        assertSameEverywhere("""
+                def down(n):
+                    return down(n + 1) + 1
+
+                print(7)
+                print(down(1))
+                """);
+    }
+
+    // ---------------------------------
+    // Running a script every way
+    // ---------------------------------
+
+    private void assertSameEverywhere(String source) throws IOException {
+        String expected = tree(source, 0);
+        assertEquals(expected, tree(source, 1), "tree interpreter with JIT threshold 1");
+        assertEquals(expected, vm(source), "VM");
+        assertEquals(expected, checkpointed(source), "VM restored from a checkpoint every " + CHECKPOINT_STEPS + " steps");
+        assertEquals(expected, bytecodeFile(source), "VM running a bytecode file");
+    }
+
+    // What the tree interpreter prints (a threshold of 0 turns the JIT off)
+    private static String tree(String source, int jitThreshold) {
+        MemoryOutputSink out = new MemoryOutputSink();
+        Interpreter interpreter = new Interpreter(Program.compile(source));
+        interpreter.setJitThreshold(jitThreshold);
+        interpreter.setOutput(out);
+        try {
+            interpreter.interpret();
+        } catch (RuntimeException e) {
+            return out + "Error: " + e.getMessage();
+        }
+        return out.toString();
+    }
+
+    private static String vm(String source) {
+        return run(newVm(source));
+    }
+
+    private String bytecodeFile(String source) throws IOException {
+        Path script = Files.writeString(dir.resolve("script.py"), source);
+        Path compiled = dir.resolve("script.pyb");
+        BytecodeFile.compile(script, compiled);
+        return run(new VM(BytecodeFile.read(compiled)));
+    }
+
+    // Every few steps: save the VM, throw it away and go on in a new one restored from the file
+    private String checkpointed(String source) throws IOException {
+        Path file = dir.resolve("state.ckpt");
+        Files.deleteIfExists(file);
+        StringBuilder printed = new StringBuilder();
+        while (true) {
+            MemoryOutputSink out = new MemoryOutputSink();
+            VM vm = newVm(source);
+            vm.setOutput(out);
+            if (Files.exists(file)) {
+                Checkpoint.restore(vm, file);
+            }
+            boolean done;
+            try {
+                done = vm.runFor(CHECKPOINT_STEPS);
+            } catch (RuntimeException e) {
+                return printed.append(out).append("Error: ").append(e.getMessage()).toString();
+            }
+            printed.append(out);
+            if (done) {
+                return printed.toString();
+            }
+            Checkpoint.save(vm, file);
+        }
+    }
+
+    private static VM newVm(String source) {
+        return new VM(new Lexer(source).tokenize(), source);
+    }
+
+    private static String run(VM vm) {
+        MemoryOutputSink out = new MemoryOutputSink();
+        vm.setOutput(out);
+        try {
+            vm.run();
+        } catch (RuntimeException e) {
+            return out + "Error: " + e.getMessage();
+        }
+        return out.toString();
+    }
+}